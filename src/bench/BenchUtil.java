@@ -0,0 +1,72 @@
+import java.util.Arrays;
+
+//
+// Bits shared by the benchmarks: queue sizes, percentiles, formatting
+//
+public class BenchUtil
+{
+
+    //
+    // Queue sizes each benchmark is run at, unless told otherwise
+    //
+    static final int[] DEFAULT_SIZES = { 10, 100, 1000, 10000, 100000, 1000000 };
+
+    //
+    // Sizes from a comma separated argument, e.g. "10,1000,100000"
+    //
+    static int[] parseSizes( String args[], int index, int[] defaults )
+    {
+        if( args.length <= index )
+        {
+            return defaults;
+        }
+
+        String[] parts = args[ index ].split( "," );
+        int[] sizes = new int[ parts.length ];
+
+        for( int i = 0; i < parts.length; i++ )
+        {
+            sizes[ i ] = Integer.parseInt( parts[ i ].trim() );
+        }
+
+        return sizes;
+    }
+
+    static long percentile( long[] sorted, double p )
+    {
+        int index = (int) Math.min( sorted.length - 1, Math.round( p * (sorted.length - 1) ) );
+        return sorted[ index ];
+    }
+
+    //
+    // Sort a copy of the samples and summarize them
+    //
+    static String summarize( long[] samples, String unit )
+    {
+        long[] sorted = Arrays.copyOf( samples, samples.length );
+
+        Arrays.sort( sorted );
+
+        return "p50=" + percentile( sorted, 0.50 ) + unit +
+            " p99=" + percentile( sorted, 0.99 ) + unit +
+            " p99.9=" + percentile( sorted, 0.999 ) + unit +
+            " max=" + sorted[ sorted.length - 1 ] + unit;
+    }
+
+    static long perSecond( long count, long elapsedNanos )
+    {
+        return (elapsedNanos <= 0) ? 0 : (long) (count * 1000000000.0 / elapsedNanos);
+    }
+
+    //
+    // Give the collector a chance between rounds, so one round's
+    // garbage isn't billed to the next
+    //
+    static void settle()
+        throws InterruptedException
+    {
+        System.gc();
+        Thread.sleep( 200 );
+    }
+
+}
@@ -0,0 +1,127 @@
+import mbot.*;
+
+import java.util.concurrent.CountDownLatch;
+
+//
+// Measures how late due jobs start, with the waiting queue holding
+// size other jobs that aren't due for an hour. Lateness is measured
+// on the scheduler clock's NS timeline, from the job's start time to
+// the moment executeJob() is entered on a worker.
+//
+// Usage: DispatchLatencyBench [sizes] [samples] [spinThresholdNS]
+//
+public class DispatchLatencyBench
+{
+
+    static final long FAR_FUTURE_MS = 60 * 60 * 1000;
+
+    //
+    // Sampled jobs are spread over this many MS, starting a little
+    // way out so they are all on the queue before the first is due
+    //
+    static final long LEAD_MS = 50;
+    static final long SPREAD_MS = 1000;
+
+    static class NoopJob extends Job
+    {
+        public void executeJob()
+        {
+        }
+    }
+
+    static class TimedJob extends Job
+    {
+        SchedulerClock clock;
+        CountDownLatch done;
+        long startedNanos;
+
+        TimedJob( SchedulerClock clock, CountDownLatch done )
+        {
+            this.clock = clock;
+            this.done = done;
+        }
+
+        public void executeJob()
+        {
+            startedNanos = clock.currentTimeNanos();
+            done.countDown();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception
+    {
+
+        int[] sizes = BenchUtil.parseSizes( args, 0, BenchUtil.DEFAULT_SIZES );
+        int samples = (args.length > 1) ? Integer.parseInt( args[1] ) : 2000;
+        long spinThreshold = (args.length > 2) ? Long.parseLong( args[2] ) : 0;
+
+        Scheduler scheduler = new Scheduler();
+        scheduler.setSpinThreshold( spinThreshold );
+        scheduler.startEvaluatorThread();
+
+        System.out.println( "due-job dispatch latency, " + samples + " samples, spin threshold " + spinThreshold + " ns" );
+
+        runRound( scheduler, 1000, samples, false );
+
+        for( int i = 0; i < sizes.length; i++ )
+        {
+            BenchUtil.settle();
+            runRound( scheduler, sizes[ i ], samples, true );
+        }
+
+        scheduler.shutdown();
+
+    }
+
+    static void runRound( Scheduler scheduler, int size, int samples, boolean report )
+        throws Exception
+    {
+
+        //
+        // Background load
+        //
+        JobHandle[] background = new JobHandle[ size ];
+
+        for( int i = 0; i < size; i++ )
+        {
+            background[ i ] = scheduler.scheduleAtTimeDelta( new NoopJob(), FAR_FUTURE_MS );
+        }
+
+        CountDownLatch done = new CountDownLatch( samples );
+        TimedJob[] jobs = new TimedJob[ samples ];
+
+        long base = scheduler.currentTime() + LEAD_MS;
+
+        for( int i = 0; i < samples; i++ )
+        {
+            jobs[ i ] = new TimedJob( scheduler.getClock(), done );
+            jobs[ i ].startTime = base + (i * SPREAD_MS) / samples;
+
+            scheduler.scheduleAtTime( jobs[ i ], jobs[ i ].startTime );
+        }
+
+        done.await();
+
+        for( int i = 0; i < size; i++ )
+        {
+            background[ i ].cancel();
+        }
+
+        if( report == false )
+        {
+            return;
+        }
+
+        long[] lateness = new long[ samples ];
+
+        for( int i = 0; i < samples; i++ )
+        {
+            lateness[ i ] = (jobs[ i ].startedNanos - jobs[ i ].startTime * SchedulerClock.NANOS_PER_MS) / 1000;
+        }
+
+        System.out.println( "size=" + size + " latenessUS[" + BenchUtil.summarize( lateness, "" ) + "]" );
+
+    }
+
+}
@@ -0,0 +1,192 @@
+import mbot.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+//
+// Runs size short jobs to completion three ways and compares the wall
+// time: a new thread per job (how the scheduler used to run them), the
+// scheduler's worker pool, and the scheduler on virtual threads where
+// the JVM has them. Each job does a little arithmetic and optionally
+// sleeps, to stand in for a blocking call.
+//
+// Usage: ExecutionModeBench [sizes] [sleepMS]
+//
+public class ExecutionModeBench
+{
+
+    //
+    // Thread-per-job tops out long before a million; past this
+    // size it is skipped
+    //
+    static final int MAX_THREAD_PER_JOB = 100000;
+
+    static final AtomicLong sink = new AtomicLong();
+
+    static void work( long sleepMS )
+    {
+        long x = 0;
+
+        for( int i = 0; i < 1000; i++ )
+        {
+            x += i * 31L;
+        }
+
+        sink.addAndGet( x );
+
+        if( sleepMS > 0 )
+        {
+            try
+            {
+                Thread.sleep( sleepMS );
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static class WorkJob extends Job
+    {
+        CountDownLatch done;
+        long sleepMS;
+
+        WorkJob( CountDownLatch done, long sleepMS )
+        {
+            this.done = done;
+            this.sleepMS = sleepMS;
+        }
+
+        public void executeJob()
+        {
+            work( sleepMS );
+            done.countDown();
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception
+    {
+
+        int[] sizes = BenchUtil.parseSizes( args, 0, BenchUtil.DEFAULT_SIZES );
+        long sleepMS = (args.length > 1) ? Long.parseLong( args[1] ) : 0;
+
+        System.out.println( "thread-per-job vs pooled execution, sleep " + sleepMS + " ms per job" );
+
+        Scheduler pooled = new Scheduler();
+        pooled.startEvaluatorThread();
+
+        Scheduler virtual = null;
+
+        try
+        {
+            virtual = new Scheduler( Scheduler.EXECUTION_VIRTUAL,
+                                     Scheduler.DEFAULT_MAX_VIRTUAL_JOBS,
+                                     Scheduler.DEFAULT_WORK_QUEUE_SIZE,
+                                     new TimingWheelWaitingQueue() );
+
+            virtual.startEvaluatorThread();
+        }
+        catch( SchedulerException e )
+        {
+            System.out.println( "Skipping virtual: " + e.getMessage() );
+        }
+
+        boolean haveVirtual = (virtual != null);
+
+        //
+        // Warmup
+        //
+        runThreadPerJob( 10000, 0 );
+        runScheduler( pooled, 10000, 0 );
+
+        for( int i = 0; i < sizes.length; i++ )
+        {
+            int size = sizes[ i ];
+
+            StringBuilder sb = new StringBuilder( "size=" + size );
+
+            BenchUtil.settle();
+
+            if( size <= MAX_THREAD_PER_JOB )
+            {
+                sb.append( " threadPerJob=" + BenchUtil.perSecond( size, runThreadPerJob( size, sleepMS ) ) + " jobs/s" );
+            }
+            else
+            {
+                sb.append( " threadPerJob=skipped" );
+            }
+
+            BenchUtil.settle();
+
+            sb.append( " pooled=" + BenchUtil.perSecond( size, runScheduler( pooled, size, sleepMS ) ) + " jobs/s" );
+
+            if( haveVirtual )
+            {
+                BenchUtil.settle();
+
+                sb.append( " virtual=" + BenchUtil.perSecond( size, runScheduler( virtual, size, sleepMS ) ) + " jobs/s" );
+            }
+
+            System.out.println( sb );
+        }
+
+        pooled.shutdown();
+
+        if( haveVirtual )
+        {
+            virtual.shutdown();
+        }
+
+    }
+
+    //
+    // Returns the elapsed NS
+    //
+    static long runThreadPerJob( int size, final long sleepMS )
+        throws Exception
+    {
+
+        final CountDownLatch done = new CountDownLatch( size );
+
+        long begin = System.nanoTime();
+
+        for( int i = 0; i < size; i++ )
+        {
+            new Thread( new Runnable()
+                {
+                    public void run()
+                    {
+                        work( sleepMS );
+                        done.countDown();
+                    }
+                } ).start();
+        }
+
+        done.await();
+
+        return System.nanoTime() - begin;
+
+    }
+
+    static long runScheduler( Scheduler scheduler, int size, long sleepMS )
+        throws Exception
+    {
+
+        CountDownLatch done = new CountDownLatch( size );
+
+        long begin = System.nanoTime();
+
+        for( int i = 0; i < size; i++ )
+        {
+            scheduler.scheduleNow( new WorkJob( done, sleepMS ) );
+        }
+
+        done.await();
+
+        return System.nanoTime() - begin;
+
+    }
+
+}
@@ -0,0 +1,110 @@
+import mbot.*;
+
+import java.util.concurrent.TimeUnit;
+
+//
+// Measures schedule and cancel throughput at different queue sizes.
+// Each round schedules size jobs an hour out, then cancels them all
+// and waits for every cancel to be processed, so the cancel numbers
+// include the evaluator pulling the jobs back off the timing wheel.
+//
+// Usage: ScheduleCancelBench [sizes] [shards]
+//
+public class ScheduleCancelBench
+{
+
+    static final long FAR_FUTURE_MS = 60 * 60 * 1000;
+
+    static class NoopJob extends Job
+    {
+        public void executeJob()
+        {
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception
+    {
+
+        int[] sizes = BenchUtil.parseSizes( args, 0, BenchUtil.DEFAULT_SIZES );
+        int shards = (args.length > 1) ? Integer.parseInt( args[1] ) : 1;
+
+        Scheduler scheduler = new Scheduler();
+        scheduler.setShardCount( shards );
+        scheduler.startEvaluatorThread();
+
+        System.out.println( "schedule/cancel throughput, " + shards + " shard(s)" );
+
+        //
+        // Warm up on a mid-sized round so the JIT has compiled the hot paths
+        //
+        runRound( scheduler, 100000, false );
+
+        for( int i = 0; i < sizes.length; i++ )
+        {
+            BenchUtil.settle();
+            runRound( scheduler, sizes[ i ], true );
+        }
+
+        scheduler.shutdown();
+
+    }
+
+    static void runRound( Scheduler scheduler, int size, boolean report )
+        throws Exception
+    {
+
+        NoopJob[] jobs = new NoopJob[ size ];
+        JobHandle[] handles = new JobHandle[ size ];
+
+        for( int i = 0; i < size; i++ )
+        {
+            jobs[ i ] = new NoopJob();
+        }
+
+        long begin = System.nanoTime();
+
+        for( int i = 0; i < size; i++ )
+        {
+            handles[ i ] = scheduler.scheduleAtTimeDelta( jobs[ i ], FAR_FUTURE_MS );
+        }
+
+        long scheduled = System.nanoTime();
+
+        for( int i = 0; i < size; i++ )
+        {
+            handles[ i ].cancel();
+        }
+
+        long canceled = System.nanoTime();
+
+        //
+        // Every future settles once the evaluator has taken its job off
+        //
+        for( int i = 0; i < size; i++ )
+        {
+            try
+            {
+                handles[ i ].getCompletion().get( 60, TimeUnit.SECONDS );
+            }
+            catch( java.util.concurrent.CancellationException e )
+            {
+                // expected
+            }
+        }
+
+        long settled = System.nanoTime();
+
+        if( report == false )
+        {
+            return;
+        }
+
+        System.out.println( "size=" + size +
+                            " schedule=" + BenchUtil.perSecond( size, scheduled - begin ) + " ops/s" +
+                            " cancel=" + BenchUtil.perSecond( size, canceled - scheduled ) + " ops/s" +
+                            " cancelSettled=" + BenchUtil.perSecond( size, settled - scheduled ) + " ops/s" );
+
+    }
+
+}
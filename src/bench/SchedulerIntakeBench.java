@@ -0,0 +1,140 @@
+import mbot.*;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+//
+// Measures how long schedule calls take when many threads are
+// submitting jobs at once. Jobs are scheduled an hour out so the
+// numbers reflect submission alone, not running the jobs.
+//
+// Usage: SchedulerIntakeBench [producers] [jobsPerProducer]
+//
+public class SchedulerIntakeBench
+{
+
+    static final long FAR_FUTURE_MS = 60 * 60 * 1000;
+
+    //
+    // Does nothing, it never runs anyway
+    //
+    static class NoopJob extends Job
+    {
+        public void executeJob()
+        {
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception
+    {
+
+        int producers = (args.length > 0) ? Integer.parseInt( args[0] ) : 16;
+        int jobsPerProducer = (args.length > 1) ? Integer.parseInt( args[1] ) : 100000;
+
+        Scheduler scheduler = new Scheduler();
+        scheduler.startEvaluatorThread();
+
+        //
+        // One warmup round so the JIT has compiled the hot paths
+        //
+        runRound( scheduler, producers, jobsPerProducer / 10, false );
+        runRound( scheduler, producers, jobsPerProducer, true );
+
+        scheduler.shutdown();
+
+    }
+
+    static void runRound( final Scheduler scheduler,
+                          int producers,
+                          final int jobsPerProducer,
+                          boolean report )
+        throws Exception
+    {
+
+        final long[][] latencies = new long[ producers ][ jobsPerProducer ];
+        final CountDownLatch startGate = new CountDownLatch( 1 );
+        final CountDownLatch doneGate = new CountDownLatch( producers );
+
+        for( int p = 0; p < producers; p++ )
+        {
+            final long[] samples = latencies[ p ];
+
+            //
+            // Allocate the jobs up front so we only time the submit
+            //
+            final NoopJob[] jobs = new NoopJob[ jobsPerProducer ];
+
+            for( int i = 0; i < jobsPerProducer; i++ )
+            {
+                jobs[ i ] = new NoopJob();
+            }
+
+            Thread t = new Thread( new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            startGate.await();
+
+                            for( int i = 0; i < jobsPerProducer; i++ )
+                            {
+                                long begin = System.nanoTime();
+                                scheduler.scheduleAtTimeDelta( jobs[ i ], FAR_FUTURE_MS );
+                                samples[ i ] = System.nanoTime() - begin;
+                            }
+                        }
+                        catch( Exception e )
+                        {
+                            System.out.println("Exception in producer: " + e.getMessage() );
+                        }
+
+                        doneGate.countDown();
+                    }
+                } );
+
+            t.start();
+        }
+
+        long begin = System.nanoTime();
+
+        startGate.countDown();
+        doneGate.await();
+
+        long elapsed = System.nanoTime() - begin;
+
+        if( report == false )
+        {
+            return;
+        }
+
+        //
+        // Merge and sort all samples for percentiles
+        //
+        long[] all = new long[ producers * jobsPerProducer ];
+
+        for( int p = 0; p < producers; p++ )
+        {
+            System.arraycopy( latencies[ p ], 0, all, p * jobsPerProducer, jobsPerProducer );
+        }
+
+        Arrays.sort( all );
+
+        System.out.println( "producers:        " + producers );
+        System.out.println( "jobs submitted:   " + all.length );
+        System.out.println( "throughput:       " + (all.length * 1000000000L / elapsed) + " jobs/s" );
+        System.out.println( "latency p50:      " + percentile( all, 0.50 ) + " ns" );
+        System.out.println( "latency p99:      " + percentile( all, 0.99 ) + " ns" );
+        System.out.println( "latency p99.9:    " + percentile( all, 0.999 ) + " ns" );
+        System.out.println( "latency max:      " + all[ all.length - 1 ] + " ns" );
+
+    }
+
+    static long percentile( long[] sorted, double p )
+    {
+        int index = (int) Math.min( sorted.length - 1, Math.round( p * (sorted.length - 1) ) );
+        return sorted[ index ];
+    }
+
+}
@@ -0,0 +1,149 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+//
+// Bits shared by the checks. A check is a main() that runs some pure
+// logic against known answers and exits non-zero on the first wrong one.
+//
+public class CheckUtil
+{
+
+    static int passed = 0;
+
+    static void check( boolean ok, String what )
+    {
+        if( ok == false )
+        {
+            System.out.println( "FAILED: " + what );
+            System.exit( 1 );
+        }
+
+        passed++;
+    }
+
+    static void checkEquals( long expected, long actual, String what )
+    {
+        check( expected == actual, what + ": expected " + expected + ", got " + actual );
+    }
+
+    static void checkEquals( double expected, double actual, String what )
+    {
+        boolean same = (Double.isNaN( expected ) && Double.isNaN( actual )) || expected == actual;
+
+        check( same, what + ": expected " + expected + ", got " + actual );
+    }
+
+    static void checkEquals( Object expected, Object actual, String what )
+    {
+        boolean same = (expected == null) ? actual == null : expected.equals( actual );
+
+        check( same, what + ": expected " + expected + ", got " + actual );
+    }
+
+    static void done( String name )
+    {
+        System.out.println( name + ": " + passed + " checks passed" );
+    }
+
+    //
+    // Just enough of TWS to log a client in: answers the handshake with
+    // a server version and a next valid id, then swallows requests.
+    // Returns the port it listens on.
+    //
+    static int startFakeTws()
+        throws IOException
+    {
+        final ServerSocket server = new ServerSocket( 0 );
+
+        Thread acceptor = new Thread( "fake-tws" )
+            {
+                public void run()
+                {
+                    try
+                    {
+                        while( true )
+                        {
+                            serve( server.accept() );
+                        }
+                    }
+                    catch( IOException e )
+                    {
+                        // Done
+                    }
+                }
+            };
+
+        acceptor.setDaemon( true );
+        acceptor.start();
+
+        return server.getLocalPort();
+    }
+
+    private static void serve( final Socket socket )
+    {
+        Thread session = new Thread( "fake-tws-session" )
+            {
+                public void run()
+                {
+                    try
+                    {
+                        InputStream in = socket.getInputStream();
+                        OutputStream out = socket.getOutputStream();
+
+                        readField( in );                    // client version
+                        writeFields( out, "45", "20110101 00:00:00 EST" );
+                        readField( in );                    // client id
+                        writeFields( out, "9", "1", "100" ); // nextValidId
+
+                        while( true )
+                        {
+                            readField( in );
+                        }
+                    }
+                    catch( IOException e )
+                    {
+                        // Client went away
+                    }
+                }
+            };
+
+        session.setDaemon( true );
+        session.start();
+    }
+
+    private static String readField( InputStream in )
+        throws IOException
+    {
+        StringBuilder field = new StringBuilder();
+        int c;
+
+        while( (c = in.read()) > 0 )
+        {
+            field.append( (char) c );
+        }
+
+        if( c < 0 )
+        {
+            throw new EOFException();
+        }
+
+        return field.toString();
+    }
+
+    private static void writeFields( OutputStream out, String... fields )
+        throws IOException
+    {
+        for( String field : fields )
+        {
+            out.write( field.getBytes( "US-ASCII" ) );
+            out.write( 0 );
+        }
+
+        out.flush();
+    }
+
+}
@@ -0,0 +1,167 @@
+import mbot.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//
+// Checks how ConsistentHash spreads ticker symbols: every node gets
+// about an even share, lookups are stable, and adding or removing a
+// node only moves the keys that have to move (about 1/N of them).
+//
+// Usage: ConsistentHashCheck
+//
+public class ConsistentHashCheck
+{
+
+    //
+    // How far a node's share may stray from an even split
+    //
+    static final double SPREAD_TOLERANCE = 0.25;
+
+    public static void main( String args[] )
+    {
+        List<String> symbols = symbols();
+
+        checkSpread( symbols );
+        checkAddNode( symbols );
+        checkRemoveNode( symbols );
+        checkSingleNode( symbols );
+
+        CheckUtil.done( "ConsistentHashCheck" );
+
+        System.exit( 0 );
+    }
+
+    //
+    // Every one, two and three letter symbol: short, similar keys,
+    // which is what hashes badly without mixing
+    //
+    static List<String> symbols()
+    {
+        List<String> symbols = new ArrayList<String>();
+
+        for( char a = 'A'; a <= 'Z'; a++ )
+        {
+            symbols.add( "" + a );
+
+            for( char b = 'A'; b <= 'Z'; b++ )
+            {
+                symbols.add( "" + a + b );
+
+                for( char c = 'A'; c <= 'Z'; c++ )
+                {
+                    symbols.add( "" + a + b + c );
+                }
+            }
+        }
+
+        return symbols;
+    }
+
+    static Integer[] nodes( int count )
+    {
+        Integer[] nodes = new Integer[ count ];
+
+        for( int i = 0; i < count; i++ )
+        {
+            nodes[ i ] = i;
+        }
+
+        return nodes;
+    }
+
+    static void checkSpread( List<String> symbols )
+    {
+        for( int count = 2; count <= 8; count++ )
+        {
+            ConsistentHash<Integer> ring = new ConsistentHash<Integer>( nodes( count ) );
+
+            int[] shares = new int[ count ];
+
+            for( String symbol : symbols )
+            {
+                shares[ ring.get( symbol ) ]++;
+            }
+
+            double even = (double) symbols.size() / count;
+
+            for( int node = 0; node < count; node++ )
+            {
+                CheckUtil.check( Math.abs( shares[ node ] - even ) <= even * SPREAD_TOLERANCE,
+                                 count + " nodes: node " + node + " got " + shares[ node ] +
+                                 " keys, even share is " + (int) even );
+            }
+        }
+
+        //
+        // Same nodes, same answers
+        //
+        ConsistentHash<Integer> first = new ConsistentHash<Integer>( nodes( 4 ) );
+        ConsistentHash<Integer> second = new ConsistentHash<Integer>( nodes( 4 ) );
+
+        for( String symbol : symbols )
+        {
+            CheckUtil.checkEquals( first.get( symbol ), second.get( symbol ), "stable lookup of " + symbol );
+        }
+    }
+
+    //
+    // Going from 4 nodes to 5 should move about a fifth of the keys,
+    // all of them to the new node
+    //
+    static void checkAddNode( List<String> symbols )
+    {
+        ConsistentHash<Integer> before = new ConsistentHash<Integer>( nodes( 4 ) );
+        ConsistentHash<Integer> after = new ConsistentHash<Integer>( nodes( 5 ) );
+
+        int moved = 0;
+
+        for( String symbol : symbols )
+        {
+            int from = before.get( symbol );
+            int to = after.get( symbol );
+
+            if( from != to )
+            {
+                CheckUtil.checkEquals( 4, to, symbol + " moved to an old node" );
+                moved++;
+            }
+        }
+
+        double fraction = (double) moved / symbols.size();
+
+        CheckUtil.check( fraction > 0.2 * (1 - SPREAD_TOLERANCE) && fraction < 0.2 * (1 + SPREAD_TOLERANCE),
+                         "adding a fifth node moved " + moved + " of " + symbols.size() + " keys" );
+    }
+
+    //
+    // Going from 4 nodes to 3 should only move the keys the
+    // last node had
+    //
+    static void checkRemoveNode( List<String> symbols )
+    {
+        ConsistentHash<Integer> before = new ConsistentHash<Integer>( nodes( 4 ) );
+        ConsistentHash<Integer> after = new ConsistentHash<Integer>( nodes( 3 ) );
+
+        for( String symbol : symbols )
+        {
+            int from = before.get( symbol );
+
+            if( from != 3 )
+            {
+                CheckUtil.checkEquals( from, (int) after.get( symbol ), symbol + " moved off a surviving node" );
+            }
+        }
+    }
+
+    static void checkSingleNode( List<String> symbols )
+    {
+        ConsistentHash<Integer> ring = new ConsistentHash<Integer>( nodes( 1 ) );
+
+        for( String symbol : symbols )
+        {
+            CheckUtil.checkEquals( 0, (int) ring.get( symbol ), "single node gets " + symbol );
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+import mbot.*;
+
+import com.ib.client.TickType;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+//
+// Checks RTVolume decoding: well formed ticks, empty fields, the
+// isSingleTrade flag, strings that aren't RTVolumes, that TwsConnection
+// only decodes RT_VOLUME ticks, and that decoding allocates nothing.
+//
+// Usage: RTVolumeParserCheck
+//
+public class RTVolumeParserCheck
+{
+
+    static final int ALLOCATION_ROUNDS = 100000;
+
+    //
+    // Records the last tick it was handed
+    //
+    static class RecordingController extends Controller
+    {
+        String kind;
+        int field;
+        String value;
+        double lastPrice;
+        long lastSize;
+        long lastTimeMS;
+        long totalVolume;
+        double vwap;
+        boolean isSingleTrade;
+
+        RecordingController()
+        {
+            controllerName = "RTVolumeParserCheck";
+        }
+
+        protected void completionCallback( Job job )
+        {
+        }
+
+        public void onTickString( int symbolId, int field, String value )
+        {
+            this.kind = "string";
+            this.field = field;
+            this.value = value;
+        }
+
+        public void onRTVolume( int symbolId,
+                                double lastPrice,
+                                long lastSize,
+                                long lastTimeMS,
+                                long totalVolume,
+                                double vwap,
+                                boolean isSingleTrade )
+        {
+            this.kind = "rtvolume";
+            this.lastPrice = lastPrice;
+            this.lastSize = lastSize;
+            this.lastTimeMS = lastTimeMS;
+            this.totalVolume = totalVolume;
+            this.vwap = vwap;
+            this.isSingleTrade = isSingleTrade;
+        }
+    }
+
+    public static void main( String args[] )
+        throws Exception
+    {
+        checkParser();
+        checkAllocation();
+        checkConnection();
+
+        CheckUtil.done( "RTVolumeParserCheck" );
+
+        System.exit( 0 );
+    }
+
+    static void checkParser()
+    {
+        RTVolumeParser parser = new RTVolumeParser();
+
+        CheckUtil.check( parser.parse( "12.5;100;1300000000000;5000;12.4;true" ), "full tick parses" );
+        CheckUtil.checkEquals( 12.5, parser.lastPrice, "lastPrice" );
+        CheckUtil.checkEquals( 100, parser.lastSize, "lastSize" );
+        CheckUtil.checkEquals( 1300000000000L, parser.lastTimeMS, "lastTimeMS" );
+        CheckUtil.checkEquals( 5000, parser.totalVolume, "totalVolume" );
+        CheckUtil.checkEquals( 12.4, parser.vwap, "vwap" );
+        CheckUtil.check( parser.isSingleTrade, "isSingleTrade true" );
+
+        //
+        // IB leaves price and size empty on volume-only updates
+        //
+        CheckUtil.check( parser.parse( ";;1300000000000;5000;1.2;false" ), "empty fields parse" );
+        CheckUtil.checkEquals( RTVolumeParser.NO_PRICE, parser.lastPrice, "empty lastPrice" );
+        CheckUtil.checkEquals( RTVolumeParser.NO_VALUE, parser.lastSize, "empty lastSize" );
+        CheckUtil.checkEquals( 1300000000000L, parser.lastTimeMS, "lastTimeMS after empties" );
+        CheckUtil.checkEquals( 5000, parser.totalVolume, "totalVolume after empties" );
+        CheckUtil.checkEquals( 1.2, parser.vwap, "vwap after empties" );
+        CheckUtil.check( parser.isSingleTrade == false, "isSingleTrade false" );
+
+        //
+        // Malformed, and not an RTVolume at all
+        //
+        CheckUtil.check( parser.parse( "12.5;abc;1300000000000;5000;12.4;true" ) == false, "bad size rejected" );
+        CheckUtil.check( parser.parse( "12.5;100;1300000000000;5000" ) == false, "missing fields rejected" );
+        CheckUtil.check( parser.parse( "12.5;100;1300000000000;5000;12.4;true;7" ) == false, "extra field rejected" );
+        CheckUtil.check( parser.parse( "1300000000" ) == false, "LAST_TIMESTAMP string rejected" );
+        CheckUtil.check( parser.parse( "" ) == false, "empty string rejected" );
+        CheckUtil.check( parser.parse( null ) == false, "null rejected" );
+    }
+
+    //
+    // Decoding a tick must not allocate; measured on this thread
+    // after warming up, allowing a little for the measurement itself
+    //
+    static void checkAllocation()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        if( (threads instanceof com.sun.management.ThreadMXBean) == false )
+        {
+            System.out.println( "No per-thread allocation counts on this JVM, skipping the allocation check" );
+            return;
+        }
+
+        com.sun.management.ThreadMXBean counters = (com.sun.management.ThreadMXBean) threads;
+
+        RTVolumeParser parser = new RTVolumeParser();
+
+        String[] ticks = { "12.5;100;1300000000000;5000;12.4;true",
+                           ";;1300000000000;5000;1.2;false",
+                           "12.5;abc;1300000000000;5000;12.4;true" };
+
+        for( int i = 0; i < ALLOCATION_ROUNDS; i++ )
+        {
+            parser.parse( ticks[ i % ticks.length ] );
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = counters.getThreadAllocatedBytes( thread );
+
+        for( int i = 0; i < ALLOCATION_ROUNDS; i++ )
+        {
+            parser.parse( ticks[ i % ticks.length ] );
+        }
+
+        long allocated = counters.getThreadAllocatedBytes( thread ) - before;
+
+        CheckUtil.check( allocated < 1024, "parsing allocated " + allocated + " bytes over " + ALLOCATION_ROUNDS + " ticks" );
+    }
+
+    //
+    // Only RT_VOLUME ticks are decoded; other string ticks, and
+    // RTVolumes that don't parse, go through as strings
+    //
+    static void checkConnection()
+        throws Exception
+    {
+        TwsSubsystem tws = new TwsSubsystem( "localhost", CheckUtil.startFakeTws() );
+
+        RecordingController controller = new RecordingController();
+
+        tws.requestMktStkData( controller, "MSFT" );
+
+        int tickerId = tws.getActiveRequests().get( 0 ).tickerId;
+        TwsConnection connection = tws.getConnection( "MSFT" );
+
+        connection.tickString( tickerId, TickType.RT_VOLUME, "12.5;100;1300000000000;5000;12.4;true" );
+        CheckUtil.checkEquals( "rtvolume", controller.kind, "RT_VOLUME decoded" );
+        CheckUtil.checkEquals( 12.5, controller.lastPrice, "decoded lastPrice" );
+        CheckUtil.check( controller.isSingleTrade, "decoded isSingleTrade" );
+
+        connection.tickString( tickerId, TickType.LAST_TIMESTAMP, "1300000000" );
+        CheckUtil.checkEquals( "string", controller.kind, "LAST_TIMESTAMP passed through" );
+        CheckUtil.checkEquals( "1300000000", controller.value, "LAST_TIMESTAMP value" );
+
+        connection.tickString( tickerId, TickType.LAST_TIMESTAMP, "12.5;100;1300000000000;5000;12.4;true" );
+        CheckUtil.checkEquals( "string", controller.kind, "RTVolume text on another tick type not decoded" );
+
+        connection.tickString( tickerId, TickType.RT_VOLUME, "12.5;abc;1300000000000;5000;12.4;true" );
+        CheckUtil.checkEquals( "string", controller.kind, "malformed RT_VOLUME passed through" );
+        CheckUtil.checkEquals( TickType.RT_VOLUME, controller.field, "malformed RT_VOLUME field" );
+
+        tws.shutdown();
+    }
+
+}
@@ -0,0 +1,266 @@
+import mbot.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+//
+// Checks SlidingWindowRule limits through a RateLimiter: each scope
+// allows maxRequests per window and then holds requests back until the
+// oldest one ages out, keys are counted separately, a refused request
+// counts for nothing, and restored requests count like real ones.
+//
+// Then a greedy client runs against the IB historical data rules (no
+// identical request within 15s, 5 per contract in 2s, 60 in 10 minutes),
+// always asking again at the time it was told to, and every window of
+// the requests it was let through is counted by brute force.
+//
+// Usage: SlidingWindowCheck [seed]
+//
+public class SlidingWindowCheck
+{
+
+    static final String CATEGORY = "check";
+
+    static final int GREEDY_REQUESTS = 2000;
+
+    //
+    // A request with fixed pacing keys
+    //
+    static class PacedJob extends Job
+    {
+        String contract;
+        String fingerprint;
+
+        PacedJob( String contract, String fingerprint )
+        {
+            this.contract = contract;
+            this.fingerprint = fingerprint;
+        }
+
+        public void executeJob()
+        {
+        }
+
+        public String getRateLimitCategory()
+        {
+            return CATEGORY;
+        }
+
+        public String getRateLimitContract()
+        {
+            return contract;
+        }
+
+        public String getRateLimitFingerprint()
+        {
+            return fingerprint;
+        }
+    }
+
+    static class UnpacedJob extends Job
+    {
+        public void executeJob()
+        {
+        }
+    }
+
+    public static void main( String args[] )
+    {
+        long seed = (args.length > 0) ? Long.parseLong( args[0] ) : 1;
+
+        checkGlobal();
+        checkContract();
+        checkFingerprint();
+        checkRestore();
+        checkGreedy( seed );
+
+        CheckUtil.done( "SlidingWindowCheck" );
+
+        System.exit( 0 );
+    }
+
+    static RateLimiter limiter( int scope, int maxRequests, long windowMS )
+    {
+        RateLimiter limiter = new RateLimiter();
+
+        limiter.addRule( CATEGORY, new SlidingWindowRule( scope, maxRequests, windowMS ) );
+
+        return limiter;
+    }
+
+    static void checkGlobal()
+    {
+        RateLimiter limiter = limiter( RateLimitRule.SCOPE_GLOBAL, 3, 1000 );
+
+        CheckUtil.checkEquals( 0, limiter.acquire( new PacedJob( "A", "A1" ), 0 ), "global first" );
+        CheckUtil.checkEquals( 10, limiter.acquire( new PacedJob( "B", "B1" ), 10 ), "global second" );
+        CheckUtil.checkEquals( 20, limiter.acquire( new PacedJob( "C", "C1" ), 20 ), "global third" );
+
+        //
+        // Full: wait for the first to age out, and the refusals
+        // mustn't count
+        //
+        CheckUtil.checkEquals( 1000, limiter.acquire( new PacedJob( "D", "D1" ), 30 ), "global full" );
+        CheckUtil.checkEquals( 1000, limiter.acquire( new PacedJob( "D", "D1" ), 999 ), "global still full" );
+        CheckUtil.checkEquals( 1000, limiter.acquire( new PacedJob( "D", "D1" ), 1000 ), "global aged out" );
+        CheckUtil.checkEquals( 1010, limiter.acquire( new PacedJob( "E", "E1" ), 1000 ), "global full again" );
+        CheckUtil.checkEquals( 1010, limiter.acquire( new PacedJob( "E", "E1" ), 1010 ), "global second aged out" );
+
+        //
+        // Jobs outside the category aren't paced
+        //
+        CheckUtil.checkEquals( 1010, limiter.acquire( new UnpacedJob(), 1010 ), "unpaced job" );
+    }
+
+    static void checkContract()
+    {
+        RateLimiter limiter = limiter( RateLimitRule.SCOPE_CONTRACT, 2, 500 );
+
+        CheckUtil.checkEquals( 0, limiter.acquire( new PacedJob( "A", "A1" ), 0 ), "contract A first" );
+        CheckUtil.checkEquals( 100, limiter.acquire( new PacedJob( "A", "A2" ), 100 ), "contract A second" );
+        CheckUtil.checkEquals( 500, limiter.acquire( new PacedJob( "A", "A3" ), 200 ), "contract A full" );
+
+        //
+        // Another contract has a window of its own
+        //
+        CheckUtil.checkEquals( 200, limiter.acquire( new PacedJob( "B", "B1" ), 200 ), "contract B first" );
+        CheckUtil.checkEquals( 200, limiter.acquire( new PacedJob( "B", "B2" ), 200 ), "contract B second" );
+        CheckUtil.checkEquals( 700, limiter.acquire( new PacedJob( "B", "B3" ), 200 ), "contract B full" );
+
+        CheckUtil.checkEquals( 500, limiter.acquire( new PacedJob( "A", "A3" ), 500 ), "contract A aged out" );
+        CheckUtil.checkEquals( 600, limiter.acquire( new PacedJob( "A", "A4" ), 500 ), "contract A full again" );
+
+        //
+        // No contract, no limit
+        //
+        CheckUtil.checkEquals( 500, limiter.acquire( new PacedJob( null, "X1" ), 500 ), "no contract" );
+        CheckUtil.checkEquals( 500, limiter.acquire( new PacedJob( null, "X2" ), 500 ), "no contract again" );
+    }
+
+    static void checkFingerprint()
+    {
+        RateLimiter limiter = limiter( RateLimitRule.SCOPE_FINGERPRINT, 1, 15000 );
+
+        CheckUtil.checkEquals( 0, limiter.acquire( new PacedJob( "A", "A1" ), 0 ), "fingerprint first" );
+        CheckUtil.checkEquals( 15000, limiter.acquire( new PacedJob( "A", "A1" ), 1 ), "identical request" );
+        CheckUtil.checkEquals( 1, limiter.acquire( new PacedJob( "A", "A2" ), 1 ), "different request" );
+        CheckUtil.checkEquals( 15000, limiter.acquire( new PacedJob( "A", "A1" ), 14999 ), "identical request later" );
+        CheckUtil.checkEquals( 15000, limiter.acquire( new PacedJob( "A", "A1" ), 15000 ), "identical request aged out" );
+    }
+
+    //
+    // Requests restored from the journal fill the window like real ones
+    //
+    static void checkRestore()
+    {
+        RateLimiter limiter = limiter( RateLimitRule.SCOPE_CONTRACT, 2, 1000 );
+
+        limiter.restore( CATEGORY, "A", "A1", 100 );
+        limiter.restore( CATEGORY, "A", "A2", 300 );
+
+        CheckUtil.checkEquals( 1100, limiter.acquire( new PacedJob( "A", "A3" ), 400 ), "restored window full" );
+        CheckUtil.checkEquals( 400, limiter.acquire( new PacedJob( "B", "B1" ), 400 ), "restored other contract" );
+
+        //
+        // Restoring into a category with no rules does nothing
+        //
+        limiter.restore( "other", "B", "B1", 400 );
+
+        CheckUtil.checkEquals( 400, limiter.acquire( new PacedJob( "B", "B2" ), 400 ), "restored other category" );
+    }
+
+    static void checkGreedy( long seed )
+    {
+        Random random = new Random( seed );
+
+        RateLimiter limiter = new RateLimiter();
+
+        limiter.addRule( CATEGORY, new SlidingWindowRule( RateLimitRule.SCOPE_FINGERPRINT, 1, 15000 ) );
+        limiter.addRule( CATEGORY, new SlidingWindowRule( RateLimitRule.SCOPE_CONTRACT, 5, 2000 ) );
+        limiter.addRule( CATEGORY, new SlidingWindowRule( RateLimitRule.SCOPE_GLOBAL, 60, 600000 ) );
+
+        List<PacedJob> granted = new ArrayList<PacedJob>();
+        List<Long> times = new ArrayList<Long>();
+
+        long now = 0;
+
+        while( granted.size() < GREEDY_REQUESTS )
+        {
+            //
+            // A few contracts and a few distinct requests each, so
+            // every rule gets its turn to be the one holding back
+            //
+            int contract = random.nextInt( 4 );
+
+            PacedJob job = new PacedJob( "C" + contract, "C" + contract + "/" + random.nextInt( 8 ) );
+
+            long allowed = limiter.acquire( job, now );
+
+            CheckUtil.check( allowed >= now, "acquire went back in time" );
+
+            if( allowed == now )
+            {
+                granted.add( job );
+                times.add( now );
+            }
+            else
+            {
+                //
+                // Asking again at the time we were given must work
+                //
+                CheckUtil.checkEquals( allowed, limiter.acquire( job, allowed ), "retry at the given time" );
+
+                granted.add( job );
+                times.add( allowed );
+
+                now = allowed;
+            }
+
+            now += random.nextInt( 50 );
+        }
+
+        countWindows( granted, times, 1, 15000, RateLimitRule.SCOPE_FINGERPRINT );
+        countWindows( granted, times, 5, 2000, RateLimitRule.SCOPE_CONTRACT );
+        countWindows( granted, times, 60, 600000, RateLimitRule.SCOPE_GLOBAL );
+    }
+
+    //
+    // For every granted request, count the requests under the same key
+    // in the window ending at it
+    //
+    static void countWindows( List<PacedJob> granted, List<Long> times, int maxRequests, long windowMS, int scope )
+    {
+        for( int i = 0; i < granted.size(); i++ )
+        {
+            String key = key( granted.get( i ), scope );
+            int count = 0;
+
+            for( int j = i; j >= 0 && times.get( j ) > times.get( i ) - windowMS; j-- )
+            {
+                if( key.equals( key( granted.get( j ), scope ) ) )
+                {
+                    count++;
+                }
+            }
+
+            CheckUtil.check( count <= maxRequests,
+                             "scope " + scope + ": " + count + " requests for " + key +
+                             " in the " + windowMS + "ms before " + times.get( i ) );
+        }
+    }
+
+    static String key( PacedJob job, int scope )
+    {
+        switch( scope )
+        {
+        case RateLimitRule.SCOPE_CONTRACT:
+            return job.contract;
+        case RateLimitRule.SCOPE_FINGERPRINT:
+            return job.fingerprint;
+        default:
+            return "";
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+import mbot.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+//
+// Checks TimingWheelWaitingQueue against a plain list of start times.
+// A small wheel (two levels) is used so that most jobs start out in the
+// overflow set or a higher level and have to be cascaded down, then the
+// clock is stepped forward unevenly, draining what is due each time.
+//
+// Jobs must never come due before their start time, must all have come
+// out once their tick has passed, must come out in start time order
+// (to the tick), and removed jobs must never come out at all. Jobs added
+// when they are already late come out on the next poll, ahead of the
+// rest, so they are left out of the order check.
+//
+// Usage: TimingWheelCheck [seed]
+//
+public class TimingWheelCheck
+{
+
+    static final int JOBS = 20000;
+    static final long HORIZON_MS = 50000;
+    static final long MAX_STEP_MS = 300;
+
+    static class NoopJob extends Job
+    {
+        public void executeJob()
+        {
+        }
+    }
+
+    public static void main( String args[] )
+    {
+        long seed = (args.length > 0) ? Long.parseLong( args[0] ) : 1;
+
+        checkWheel( seed, 1, 2 );
+        checkWheel( seed, 7, 2 );
+        checkWheel( seed, 1, TimingWheelWaitingQueue.DEFAULT_LEVELS );
+
+        CheckUtil.done( "TimingWheelCheck" );
+
+        System.exit( 0 );
+    }
+
+    static void checkWheel( long seed, long tickMS, int levels )
+    {
+        String wheel = "tick " + tickMS + "ms, " + levels + " levels: ";
+
+        Random random = new Random( seed );
+
+        TimingWheelWaitingQueue queue = new TimingWheelWaitingQueue( tickMS, levels );
+
+        List<Job> pending = new ArrayList<Job>();
+        HashSet<Job> removed = new HashSet<Job>();
+
+        //
+        // Some jobs before the wheel has seen the time, which go to
+        // overflow until the first poll
+        //
+        for( int i = 0; i < JOBS / 10; i++ )
+        {
+            pending.add( add( queue, random.nextInt( (int) HORIZON_MS ) ) );
+        }
+
+        HashSet<Job> late = new HashSet<Job>();
+
+        long now = 0;
+        long lastTick = Long.MIN_VALUE;
+        int delivered = 0;
+
+        //
+        // The first poll starts the wheel
+        //
+        Job job;
+
+        while( (job = queue.pollDue( now )) != null )
+        {
+            CheckUtil.check( job.startTime <= now, wheel + "job for " + job.startTime + " came due at start" );
+
+            lastTick = Math.max( lastTick, roundUp( job.startTime, tickMS ) );
+
+            pending.remove( job );
+            delivered++;
+        }
+
+        for( int i = pending.size(); i < JOBS; i++ )
+        {
+            pending.add( add( queue, random.nextInt( (int) HORIZON_MS ) ) );
+        }
+
+        //
+        // Take a few out again, wherever they happen to be
+        //
+        for( Job taken : new ArrayList<Job>( pending ) )
+        {
+            if( random.nextInt( 5 ) == 0 )
+            {
+                CheckUtil.check( queue.remove( taken ), wheel + "remove " + taken.startTime );
+
+                pending.remove( taken );
+                removed.add( taken );
+            }
+        }
+
+        CheckUtil.checkEquals( pending.size(), queue.size(), wheel + "size after removes" );
+
+        while( queue.size() > 0 )
+        {
+            //
+            // The wheel must never sleep past the earliest job
+            //
+            long wakeup = queue.nextWakeupTime();
+            long earliest = earliestStart( pending );
+
+            CheckUtil.check( wakeup != WaitingQueue.NO_WAKEUP && wakeup <= roundUp( earliest, tickMS ),
+                             wheel + "wakeup " + wakeup + " after earliest job " + earliest );
+
+            long previous = now;
+
+            now += 1 + random.nextInt( (int) MAX_STEP_MS );
+
+            //
+            // Now and then, add a job while running, sometimes
+            // already late
+            //
+            if( random.nextInt( 4 ) == 0 )
+            {
+                long startTime = previous - 50 + random.nextInt( 5000 );
+
+                Job added = add( queue, startTime );
+
+                pending.add( added );
+
+                if( startTime <= previous )
+                {
+                    late.add( added );
+                }
+            }
+
+            while( (job = queue.pollDue( now )) != null )
+            {
+                CheckUtil.check( removed.contains( job ) == false, wheel + "removed job came due" );
+                CheckUtil.check( job.startTime <= now, wheel + "job for " + job.startTime + " came due at " + now );
+
+                if( late.contains( job ) == false )
+                {
+                    long tick = roundUp( job.startTime, tickMS );
+
+                    CheckUtil.check( tick >= lastTick, wheel + "job for tick " + tick + " came out after tick " + lastTick );
+
+                    lastTick = tick;
+                }
+
+                pending.remove( job );
+                delivered++;
+            }
+
+            //
+            // Everything whose tick has come is out
+            //
+            CheckUtil.check( pending.isEmpty() || roundUp( earliestStart( pending ), tickMS ) > now,
+                             wheel + "job for " + earliestStart( pending ) + " still waiting at " + now );
+        }
+
+        CheckUtil.check( pending.isEmpty(), wheel + pending.size() + " jobs never came due" );
+        CheckUtil.check( delivered >= JOBS - removed.size(), wheel + "only " + delivered + " jobs came due" );
+        CheckUtil.checkEquals( WaitingQueue.NO_WAKEUP, queue.nextWakeupTime(), wheel + "empty wakeup" );
+    }
+
+    static Job add( TimingWheelWaitingQueue queue, long startTime )
+    {
+        Job job = new NoopJob();
+
+        job.startTime = startTime;
+
+        queue.add( job );
+
+        return job;
+    }
+
+    static long earliestStart( List<Job> jobs )
+    {
+        long earliest = Long.MAX_VALUE;
+
+        for( Job job : jobs )
+        {
+            earliest = Math.min( earliest, job.startTime );
+        }
+
+        return earliest;
+    }
+
+    static long roundUp( long time, long tickMS )
+    {
+        return -Math.floorDiv( -time, tickMS ) * tickMS;
+    }
+
+}
@@ -0,0 +1,237 @@
+import mbot.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+//
+// Checks TokenBucketRule limits through a RateLimiter: a full bucket
+// lets a burst of capacity requests through, then requests are held
+// back until a token has refilled, idle time never banks more than the
+// capacity, keys have buckets of their own, a refused request takes no
+// token, and restored requests take tokens like real ones.
+//
+// Then a greedy client runs against a bucket alongside a sliding window
+// in the same category, always asking again at the time it was told
+// to, and every window of the requests it was let through is checked
+// against what the bucket allows: capacity plus the refill over the
+// window.
+//
+// Usage: TokenBucketCheck [seed]
+//
+public class TokenBucketCheck
+{
+
+    static final String CATEGORY = "check";
+
+    static final int GREEDY_REQUESTS = 5000;
+
+    static final int CAPACITY = 5;
+    static final double TOKENS_PER_SECOND = 2.0;
+
+    //
+    // A request with fixed pacing keys
+    //
+    static class PacedJob extends Job
+    {
+        String contract;
+
+        PacedJob( String contract )
+        {
+            this.contract = contract;
+        }
+
+        public void executeJob()
+        {
+        }
+
+        public String getRateLimitCategory()
+        {
+            return CATEGORY;
+        }
+
+        public String getRateLimitContract()
+        {
+            return contract;
+        }
+
+        public String getRateLimitFingerprint()
+        {
+            return null;
+        }
+    }
+
+    public static void main( String args[] )
+    {
+        long seed = (args.length > 0) ? Long.parseLong( args[0] ) : 1;
+
+        checkBurst();
+        checkIdle();
+        checkContract();
+        checkRestore();
+        checkGreedy( seed );
+
+        CheckUtil.done( "TokenBucketCheck" );
+
+        System.exit( 0 );
+    }
+
+    static RateLimiter limiter( int scope, int capacity, double tokensPerSecond )
+    {
+        RateLimiter limiter = new RateLimiter();
+
+        limiter.addRule( CATEGORY, new TokenBucketRule( scope, capacity, tokensPerSecond ) );
+
+        return limiter;
+    }
+
+    static void checkBurst()
+    {
+        RateLimiter limiter = limiter( RateLimitRule.SCOPE_GLOBAL, 3, 1.0 );
+
+        CheckUtil.checkEquals( 0, limiter.acquire( new PacedJob( "A" ), 0 ), "burst first" );
+        CheckUtil.checkEquals( 0, limiter.acquire( new PacedJob( "B" ), 0 ), "burst second" );
+        CheckUtil.checkEquals( 0, limiter.acquire( new PacedJob( "C" ), 0 ), "burst third" );
+
+        //
+        // Empty: one token a second, and the refusals mustn't
+        // take anything
+        //
+        CheckUtil.checkEquals( 1000, limiter.acquire( new PacedJob( "D" ), 0 ), "empty" );
+        CheckUtil.checkEquals( 1000, limiter.acquire( new PacedJob( "D" ), 500 ), "half a token" );
+        CheckUtil.checkEquals( 1000, limiter.acquire( new PacedJob( "D" ), 1000 ), "refilled one" );
+        CheckUtil.checkEquals( 2000, limiter.acquire( new PacedJob( "E" ), 1000 ), "empty again" );
+        CheckUtil.checkEquals( 2000, limiter.acquire( new PacedJob( "E" ), 2000 ), "refilled another" );
+    }
+
+    //
+    // However long the bucket sits idle, the next burst is
+    // no bigger than its capacity
+    //
+    static void checkIdle()
+    {
+        RateLimiter limiter = limiter( RateLimitRule.SCOPE_GLOBAL, 3, 1.0 );
+
+        CheckUtil.checkEquals( 0, limiter.acquire( new PacedJob( "A" ), 0 ), "before idle" );
+
+        long now = 60 * 1000;
+
+        for( int i = 0; i < 3; i++ )
+        {
+            CheckUtil.checkEquals( now, limiter.acquire( new PacedJob( "A" ), now ), "burst after idle " + i );
+        }
+
+        CheckUtil.checkEquals( now + 1000, limiter.acquire( new PacedJob( "A" ), now ), "idle banked no more than capacity" );
+    }
+
+    static void checkContract()
+    {
+        RateLimiter limiter = limiter( RateLimitRule.SCOPE_CONTRACT, 1, 0.5 );
+
+        CheckUtil.checkEquals( 0, limiter.acquire( new PacedJob( "A" ), 0 ), "contract A first" );
+        CheckUtil.checkEquals( 2000, limiter.acquire( new PacedJob( "A" ), 0 ), "contract A empty" );
+
+        //
+        // Another contract has a bucket of its own
+        //
+        CheckUtil.checkEquals( 100, limiter.acquire( new PacedJob( "B" ), 100 ), "contract B first" );
+        CheckUtil.checkEquals( 2100, limiter.acquire( new PacedJob( "B" ), 100 ), "contract B empty" );
+
+        //
+        // No contract, no limit
+        //
+        CheckUtil.checkEquals( 100, limiter.acquire( new PacedJob( null ), 100 ), "no contract" );
+        CheckUtil.checkEquals( 100, limiter.acquire( new PacedJob( null ), 100 ), "no contract again" );
+    }
+
+    //
+    // Requests restored from the journal take tokens like real ones
+    //
+    static void checkRestore()
+    {
+        RateLimiter limiter = limiter( RateLimitRule.SCOPE_CONTRACT, 2, 1.0 );
+
+        limiter.restore( CATEGORY, "A", null, 100 );
+        limiter.restore( CATEGORY, "A", null, 300 );
+
+        CheckUtil.checkEquals( 1100, limiter.acquire( new PacedJob( "A" ), 400 ), "restored bucket empty" );
+        CheckUtil.checkEquals( 400, limiter.acquire( new PacedJob( "B" ), 400 ), "restored other contract" );
+    }
+
+    static void checkGreedy( long seed )
+    {
+        Random random = new Random( seed );
+
+        RateLimiter limiter = new RateLimiter();
+
+        limiter.addRule( CATEGORY, new TokenBucketRule( RateLimitRule.SCOPE_GLOBAL, CAPACITY, TOKENS_PER_SECOND ) );
+        limiter.addRule( CATEGORY, new SlidingWindowRule( RateLimitRule.SCOPE_CONTRACT, 2, 1500 ) );
+
+        List<PacedJob> granted = new ArrayList<PacedJob>();
+        List<Long> times = new ArrayList<Long>();
+
+        long now = 0;
+
+        while( granted.size() < GREEDY_REQUESTS )
+        {
+            PacedJob job = new PacedJob( "C" + random.nextInt( 3 ) );
+
+            long allowed = limiter.acquire( job, now );
+
+            CheckUtil.check( allowed >= now, "acquire went back in time" );
+
+            if( allowed > now )
+            {
+                //
+                // Asking again at the time we were given must work
+                //
+                CheckUtil.checkEquals( allowed, limiter.acquire( job, allowed ), "retry at the given time" );
+
+                now = allowed;
+            }
+
+            granted.add( job );
+            times.add( now );
+
+            //
+            // Now and then go quiet for long enough to refill
+            //
+            now += (random.nextInt( 50 ) == 0) ? random.nextInt( 10000 ) : random.nextInt( 200 );
+        }
+
+        //
+        // No window holds more than a full bucket plus what refilled
+        // over it (a request at each end of the window counts)
+        //
+        for( int i = 0; i < times.size(); i++ )
+        {
+            for( int j = i; j < times.size() && times.get( j ) - times.get( i ) <= 20000; j++ )
+            {
+                long windowMS = times.get( j ) - times.get( i );
+                double allowedInWindow = CAPACITY + windowMS * TOKENS_PER_SECOND / 1000.0;
+
+                CheckUtil.check( j - i + 1 <= allowedInWindow + 1e-9,
+                                 (j - i + 1) + " requests in " + windowMS + "ms from " + times.get( i ) );
+            }
+        }
+
+        //
+        // And the sliding window still holds alongside the bucket
+        //
+        for( int i = 0; i < granted.size(); i++ )
+        {
+            int count = 0;
+
+            for( int j = i; j >= 0 && times.get( j ) > times.get( i ) - 1500; j-- )
+            {
+                if( granted.get( j ).contract.equals( granted.get( i ).contract ) )
+                {
+                    count++;
+                }
+            }
+
+            CheckUtil.check( count <= 2, count + " requests for " + granted.get( i ).contract + " in the 1500ms before " + times.get( i ) );
+        }
+    }
+
+}
@@ -0,0 +1,14 @@
+package mbot;
+
+//
+// Thrown when the scheduler turns a job away because its controller's
+// queue is full (see Scheduler.setControllerQuota). Nothing about the
+// job has been scheduled; try again later or shed the work.
+//
+public class AdmissionRejectedException extends SchedulerException
+{
+    public AdmissionRejectedException( String message )
+    {
+        super(message);
+    }
+}
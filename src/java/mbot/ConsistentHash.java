@@ -0,0 +1,124 @@
+package mbot;
+
+// Java imports
+import java.util.Arrays;
+
+//
+// Consistent hashing of string keys (e.g. symbols) onto a fixed set of
+// nodes (e.g. TWS connections). Each node is placed at a number of
+// points around a 32 bit ring, and a key belongs to the node at the
+// first point at or after its own hash, wrapping around.
+//
+// Unlike hash-mod-N, only about 1/N of the keys move when a node is
+// added or taken away, and spreading each node over many points keeps
+// the share of keys each one gets roughly even.
+//
+// Immutable, so lookups need no locking.
+//
+public class ConsistentHash<T>
+{
+
+    public static final int DEFAULT_POINTS_PER_NODE = 160;
+
+    //
+    // Sorted point hashes, and the node at each
+    //
+    private final int[] points;
+    private final Object[] owners;
+
+    private final Object[] nodes;
+
+    public ConsistentHash( T[] nodes )
+    {
+        this( nodes, DEFAULT_POINTS_PER_NODE );
+    }
+
+    public ConsistentHash( T[] nodes, int pointsPerNode )
+    {
+        if( nodes.length == 0 || pointsPerNode < 1 )
+        {
+            throw new IllegalArgumentException("Need at least one node and one point per node");
+        }
+
+        this.nodes = nodes.clone();
+
+        int count = nodes.length * pointsPerNode;
+
+        //
+        // Sort the points by hash, carrying the node index along in
+        // the low bits. Ties go to the lower node index.
+        //
+        long[] placed = new long[ count ];
+
+        for( int node = 0; node < nodes.length; node++ )
+        {
+            for( int point = 0; point < pointsPerNode; point++ )
+            {
+                int hash = hash( "node-" + node + "#" + point );
+
+                placed[ node * pointsPerNode + point ] = ((long) hash << 32) | node;
+            }
+        }
+
+        Arrays.sort( placed );
+
+        points = new int[ count ];
+        owners = new Object[ count ];
+
+        for( int i = 0; i < count; i++ )
+        {
+            points[ i ] = (int) (placed[ i ] >> 32);
+            owners[ i ] = nodes[ (int) placed[ i ] ];
+        }
+    }
+
+    //
+    // The node a key belongs to
+    //
+    @SuppressWarnings("unchecked")
+    public T get( String key )
+    {
+        if( nodes.length == 1 )
+        {
+            return (T) nodes[ 0 ];
+        }
+
+        int index = Arrays.binarySearch( points, hash( key ) );
+
+        if( index < 0 )
+        {
+            index = -index - 1;
+        }
+
+        if( index == points.length )
+        {
+            index = 0;
+        }
+
+        return (T) owners[ index ];
+    }
+
+    public int size()
+    {
+        return nodes.length;
+    }
+
+    //
+    // String.hashCode() clusters badly for short, similar keys like
+    // ticker symbols, so mix its bits (the murmur3 finalizer) before
+    // placing anything on the ring
+    //
+    static int hash( String key )
+    {
+        int h = key.hashCode();
+
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        return h;
+    }
+
+}
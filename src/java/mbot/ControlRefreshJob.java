@@ -0,0 +1,36 @@
+package mbot;
+
+//
+// Re-reads a controller's work from Control. Normally scheduled
+// as a repeating job (see Scheduler.scheduleRefresh).
+//
+public class ControlRefreshJob extends Job
+{
+
+    private Refreshable refreshable;
+
+    public <C extends Controller & Refreshable> ControlRefreshJob( C controller )
+    {
+        this.controller = controller;
+        this.refreshable = controller;
+    }
+
+    //
+    // Implement job::executeJob()
+    //
+    public void executeJob()
+        throws JobException
+    {
+
+        try
+        {
+            refreshable.refreshFromControl();
+        }
+        catch( Exception e )
+        {
+            throw new JobException("Exception refreshing from control: " + e.getMessage() );
+        }
+
+    }
+
+}
@@ -8,7 +8,9 @@ import com.ib.client.*;
 
 // Java imports
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.function.BiConsumer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
@@ -18,7 +20,7 @@ import java.text.SimpleDateFormat;
 // various tasks to accomplish their goals. The actual scheduling
 // of jobs is most likely handled by a single (external) scheduler.
 //
-public abstract class Controller
+public abstract class Controller implements TickCallback
 {
 
     //
@@ -32,9 +34,9 @@ public abstract class Controller
     protected Scheduler scheduler;
 
     //
-    // Track all jobs we have scheduled
+    // Track all jobs we have scheduled and that haven't finished
     //
-    protected LinkedList<Job> pendingJobs;
+    protected HashSet<Job> pendingJobs;
 
 
     //
@@ -66,12 +68,31 @@ public abstract class Controller
     //
     protected TwsSubsystem twsSubsystem;
 
-
     //
     // This is called by the scheduler when a job is complete
     //
     protected abstract void completionCallback( Job job );
- 
+
+    //
+    // Track a job we just scheduled until it is done with, then
+    // hand it to completionCallback()
+    //
+    protected void trackJob( final JobHandle handle )
+    {
+        synchronized( this )
+        {
+            pendingJobs.add( handle.getJob() );
+        }
+
+        handle.getCompletion().whenComplete( new BiConsumer<Job, Throwable>()
+            {
+                public void accept( Job job, Throwable t )
+                {
+                    completionCallback( handle.getJob() );
+                }
+            } );
+    }
+
     //
     // Convenience functions
     //
@@ -167,6 +188,105 @@ public abstract class Controller
         }
     }
 
+    //
+    // Primitive tick callbacks (see TickCallback). These adapt ticks
+    // onto the boxed callbacks below, routing each field to its
+    // callback; a controller that wants ticks without the garbage
+    // overrides these instead.
+    //
+
+    public void onTickPrice( int symbolId, int field, double price, boolean canAutoExecute )
+    {
+        String symbol = SymbolIds.symbolFor( symbolId );
+        String f = TickType.getField( field );
+        Double p = Double.valueOf( price );
+
+        switch( field )
+        {
+        case TickType.LOW_13_WEEK:
+        case TickType.HIGH_13_WEEK:
+        case TickType.LOW_26_WEEK:
+        case TickType.HIGH_26_WEEK:
+        case TickType.LOW_52_WEEK:
+        case TickType.HIGH_52_WEEK:
+            callbackMiscellaneous( symbol, f, p, canAutoExecute );
+            break;
+        default:
+            tickPriceCallback( symbol, f, p, canAutoExecute );
+        }
+    }
+
+    public void onTickSize( int symbolId, int field, long size )
+    {
+        String symbol = SymbolIds.symbolFor( symbolId );
+        String f = TickType.getField( field );
+        Integer s = Integer.valueOf( (int) size );
+
+        switch( field )
+        {
+        case TickType.OPTION_CALL_VOLUME:
+        case TickType.OPTION_PUT_VOLUME:
+            callbackOptionVolume( symbol, f, s );
+            break;
+        case TickType.OPTION_CALL_OPEN_INTEREST:
+        case TickType.OPTION_PUT_OPEN_INTEREST:
+            callbackOptionOpenInterest( symbol, f, s );
+            break;
+        case TickType.AVG_VOLUME:
+            callbackMiscellaneous( symbol, f, s );
+            break;
+        default:
+            tickSizeCallback( symbol, f, s );
+        }
+    }
+
+    public void onTickGeneric( int symbolId, int field, double value )
+    {
+        String symbol = SymbolIds.symbolFor( symbolId );
+        String f = TickType.getField( field );
+        Double v = Double.valueOf( value );
+
+        switch( field )
+        {
+        case TickType.OPTION_HISTORICAL_VOL:
+            callbackOptionHistoricalVolatility( symbol, f, v );
+            break;
+        case TickType.OPTION_IMPLIED_VOL:
+            callbackOptionImpliedVolatility( symbol, f, v );
+            break;
+        case TickType.SHORTABLE:
+            callbackShortable( symbol, f, v );
+            break;
+        default:
+            tickGenericCallback( symbol, f, v );
+        }
+    }
+
+    public void onTickString( int symbolId, int field, String value )
+    {
+        tickStringCallback( SymbolIds.symbolFor( symbolId ), TickType.getField( field ), value );
+    }
+
+    public void onRTVolume( int symbolId,
+                            double lastPrice,
+                            long lastSize,
+                            long lastTimeMS,
+                            long totalVolume,
+                            double vwap,
+                            boolean isSingleTrade )
+    {
+        //
+        // Fields IB left empty come through as nulls
+        //
+        callbackRTVolume( SymbolIds.symbolFor( symbolId ),
+                          Double.isNaN( lastPrice ) ? null : Double.valueOf( lastPrice ),
+                          (lastSize == RTVolumeParser.NO_VALUE) ? null : Integer.valueOf( (int) lastSize ),
+                          (lastTimeMS == RTVolumeParser.NO_VALUE) ? null : Long.valueOf( lastTimeMS ),
+                          (totalVolume == RTVolumeParser.NO_VALUE) ? null : Integer.valueOf( (int) totalVolume ),
+                          Double.isNaN( vwap ) ? null : Double.valueOf( vwap ),
+                          isSingleTrade );
+    }
+
     //
     // Callbacks for the TWS subsystem to use
     //
@@ -261,6 +381,7 @@ public abstract class Controller
     public void callbackHistoricalData( String symbol, Long startDate, Double open, Double high, Double low,
                                         Double close, Integer volume, Integer count, Double WAP, boolean hasGaps ) { thunk(); }
     public void callbackHistoricalDataFinished( String symbol ) { thunk(); }
+    public void callbackHistoricalDataLost( String symbol ) { thunk(); }
 
     public void scannerParameters( String xml ) { thunk(); }
     public void scannerData( int reqId, int rank, ContractDetails contractDetails, String distance,
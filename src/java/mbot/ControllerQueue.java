@@ -0,0 +1,225 @@
+package mbot;
+
+// Java imports
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+//
+// A controller's share of the scheduler (see Scheduler.setControllerQuota).
+//
+// The weight sets how the controller's due jobs are interleaved with
+// other controllers' in the same lane: a controller with weight 2 gets
+// twice the dispatches of one with weight 1 while both have work.
+//
+// maxQueued caps how many of the controller's jobs may be scheduled
+// but not yet started. Past the cap a submission is either rejected
+// with an AdmissionRejectedException, or deferred: accepted, but held
+// out of the schedule until the controller's queue drains below the
+// cap. At most maxQueued jobs can be deferred; past that, submissions
+// are rejected either way.
+//
+public class ControllerQueue
+{
+
+    //
+    // What happens to submissions past the cap
+    //
+    public static final int OVERFLOW_REJECT = 0;
+    public static final int OVERFLOW_DEFER = 1;
+
+    //
+    // maxQueued for no cap
+    //
+    public static final int NO_LIMIT = 0;
+
+    public static final int DEFAULT_WEIGHT = 1;
+
+    Controller controller;
+
+    volatile int weight = DEFAULT_WEIGHT;
+    volatile int maxQueued = NO_LIMIT;
+    volatile int overflowMode = OVERFLOW_REJECT;
+
+    //
+    // Jobs admitted and not yet started, and jobs deferred. Counted
+    // from submitting threads as well as the evaluator.
+    //
+    AtomicInteger queued;
+    AtomicInteger deferred;
+
+    //
+    // The deferred jobs themselves, oldest first. Evaluator thread only.
+    //
+    LinkedList<Job> deferredJobs;
+
+    LongAdder admitted;
+    LongAdder deferrals;
+    LongAdder rejected;
+
+    ControllerQueue( Controller controller )
+    {
+        this.controller = controller;
+
+        queued = new AtomicInteger( 0 );
+        deferred = new AtomicInteger( 0 );
+        deferredJobs = new LinkedList<Job>();
+
+        admitted = new LongAdder();
+        deferrals = new LongAdder();
+        rejected = new LongAdder();
+    }
+
+    //
+    // Another evaluator shard's queue for the same controller. It
+    // keeps its own deferred jobs, but shares the counts, so the cap
+    // covers the controller's jobs on every shard.
+    //
+    ControllerQueue( ControllerQueue shared )
+    {
+        this.controller = shared.controller;
+
+        queued = shared.queued;
+        deferred = shared.deferred;
+        deferredJobs = new LinkedList<Job>();
+
+        admitted = shared.admitted;
+        deferrals = shared.deferrals;
+        rejected = shared.rejected;
+    }
+
+    //
+    // Take a slot in the queue if there is one. Jobs that are
+    // already deferred keep their place ahead of new ones.
+    //
+    boolean tryAdmit()
+    {
+        int max = maxQueued;
+
+        if( max > NO_LIMIT )
+        {
+            if( deferred.get() > 0 )
+            {
+                return false;
+            }
+
+            if( queued.incrementAndGet() > max )
+            {
+                queued.decrementAndGet();
+                return false;
+            }
+        }
+        else
+        {
+            queued.incrementAndGet();
+        }
+
+        admitted.increment();
+
+        return true;
+    }
+
+    //
+    // Take a deferred slot, if deferring is allowed and there's one left
+    //
+    boolean tryDefer()
+    {
+        if( overflowMode != OVERFLOW_DEFER )
+        {
+            return false;
+        }
+
+        if( deferred.incrementAndGet() > Math.max( 1, maxQueued ) )
+        {
+            deferred.decrementAndGet();
+            return false;
+        }
+
+        deferrals.increment();
+
+        return true;
+    }
+
+    //
+    // Move a deferred job into a queue slot, if one is free
+    //
+    boolean tryPromote()
+    {
+        int max = maxQueued;
+
+        if( max > NO_LIMIT && queued.incrementAndGet() > max )
+        {
+            queued.decrementAndGet();
+            return false;
+        }
+
+        if( max <= NO_LIMIT )
+        {
+            queued.incrementAndGet();
+        }
+
+        deferred.decrementAndGet();
+
+        return true;
+    }
+
+    //
+    // An admitted job started or came off the schedule
+    //
+    void released()
+    {
+        queued.decrementAndGet();
+    }
+
+    public Controller getController()
+    {
+        return controller;
+    }
+
+    public int getWeight()
+    {
+        return weight;
+    }
+
+    public int getMaxQueued()
+    {
+        return maxQueued;
+    }
+
+    public int getQueued()
+    {
+        return queued.get();
+    }
+
+    public int getDeferred()
+    {
+        return deferred.get();
+    }
+
+    public long getAdmitted()
+    {
+        return admitted.sum();
+    }
+
+    public long getDeferrals()
+    {
+        return deferrals.sum();
+    }
+
+    public long getRejected()
+    {
+        return rejected.sum();
+    }
+
+    public String toString()
+    {
+        return ((controller == null) ? "-" : controller.getName()) +
+            ": weight=" + weight +
+            " queued=" + getQueued() + "/" + ((maxQueued > NO_LIMIT) ? String.valueOf( maxQueued ) : "unlimited") +
+            " deferred=" + getDeferred() +
+            " admitted=" + getAdmitted() +
+            " deferrals=" + getDeferrals() +
+            " rejected=" + getRejected();
+    }
+
+}
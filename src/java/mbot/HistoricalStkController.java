@@ -15,14 +15,17 @@ import java.util.Collections;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.io.DataInputStream;
+import java.io.IOException;
 
 //
 // This is a controller responsible for handling the real-time
 // stock market datafeed (MktStk). 
 //
 
-public class HistoricalStkController extends Controller
+public class HistoricalStkController extends Controller implements Refreshable
 {
 
     //
@@ -43,16 +46,18 @@ public class HistoricalStkController extends Controller
     //
 
     //
-    // The last time we scheduled a request to run
+    // These limits are enforced by the scheduler's RateLimiter (see
+    // addPacingRules), which releases each request as soon as all of
+    // them allow it. The windows are padded a little because the job is
+    // released slightly before its request actually goes out to TWS.
     //
-    long lastRequestTimeMS = 0;
+    static final long PACING_MARGIN_MS = 250;
 
-    //
-    // How long to wait before another request can be issued.
-    // From above, the rate should allow once every 10 seconds,
-    // but we'll do once every 12 seconds to be safe.
-    //
-    long interRequestDelayMS = 12 * 1000;
+    static final long IDENTICAL_REQUEST_WINDOW_MS = 15 * 1000;
+    static final int CONTRACT_REQUEST_LIMIT = 5;
+    static final long CONTRACT_REQUEST_WINDOW_MS = 2 * 1000;
+    static final int TOTAL_REQUEST_LIMIT = 60;
+    static final long TOTAL_REQUEST_WINDOW_MS = 10 * 60 * 1000;
 
     //
     // Helpful units of time 
@@ -60,11 +65,38 @@ public class HistoricalStkController extends Controller
     public static final long TIME_30_MINUTES_IN_MS = 30*60*1000;
     public static final long TIME_1_YEAR_IN_MS = 31556926000L;//365*24*60*60*1000;
 
+    //
+    // How often to check Control for work, in case the chain of
+    // finished callbacks pulling the next request has stopped
+    //
+    public static final long PULL_WORK_PERIOD_MS = 60 * 1000;
+
+    //
+    // A request runs until its data has all arrived. If it takes longer
+    // than this it is canceled and retried, backing off each time, and
+    // after the last retry we move on.
+    //
+    public static final long REQUEST_TIMEOUT_MS = 2 * 60 * 1000;
+    public static final int REQUEST_RETRIES = 3;
+    public static final long REQUEST_RETRY_BACKOFF_MS = 30 * 1000;
+    public static final long REQUEST_MAX_RETRY_BACKOFF_MS = 5 * 60 * 1000;
+
     //
     // The current symbol we are working on
     //
     String currentSymbol = null;
 
+    //
+    // Whether a request for currentSymbol has been queued and its
+    // data hasn't finished arriving yet
+    //
+    boolean requestPending = false;
+
+    //
+    // The job for that request, to tell when its data is in
+    //
+    HistoricalStkJob activeRequest = null;
+
     //
     // Constructor
     //
@@ -80,10 +112,86 @@ public class HistoricalStkController extends Controller
         controllerName = "HistoricalStk";
         cassandraKeyspace = "HistoricalStk";
 
-        pendingJobs = new LinkedList<Job>();
+        pendingJobs = new HashSet<Job>();
+
+        addPacingRules( scheduler.getRateLimiter() );
+
+        scheduler.setJobPolicy( HistoricalStkJob.class,
+                                new JobPolicy( REQUEST_TIMEOUT_MS,
+                                               REQUEST_RETRIES,
+                                               REQUEST_RETRY_BACKOFF_MS,
+                                               REQUEST_MAX_RETRY_BACKOFF_MS,
+                                               2.0 ) );
+
+        //
+        // Outstanding requests can be recovered after a restart
+        //
+        JobJournal journal = scheduler.getJournal();
+
+        if( journal != null )
+        {
+            journal.registerFactory( HistoricalStkJob.JOURNAL_TYPE, new JournaledJobFactory()
+                {
+                    public Job restoreJob( DataInputStream in )
+                        throws IOException, JobException
+                    {
+                        return restoreRequest( in );
+                    }
+                } );
+        }
 
     }
 
+    //
+    // Recreate a request from the job journal. Its symbol becomes the
+    // one we are working on, so we don't pull a second request from
+    // Control while it is outstanding.
+    //
+    private synchronized HistoricalStkJob restoreRequest( DataInputStream in )
+        throws IOException, JobException
+    {
+        HistoricalStkJob job = HistoricalStkJob.restore( in, twsSubsystem, this );
+
+        if( job.isDataRequest() )
+        {
+            currentSymbol = job.getSymbol();
+            requestPending = true;
+            activeRequest = job;
+        }
+
+        return job;
+    }
+
+    //
+    // Register the IB historical data pacing rules. They are shared by
+    // every controller making historical requests, so only add them once.
+    //
+    static void addPacingRules( RateLimiter rateLimiter )
+    {
+        synchronized( rateLimiter )
+        {
+            if( rateLimiter.hasRules( HistoricalStkJob.RATE_LIMIT_CATEGORY ) )
+            {
+                return;
+            }
+
+            rateLimiter.addRule( HistoricalStkJob.RATE_LIMIT_CATEGORY,
+                                 new SlidingWindowRule( RateLimitRule.SCOPE_FINGERPRINT,
+                                                        1,
+                                                        IDENTICAL_REQUEST_WINDOW_MS + PACING_MARGIN_MS ) );
+
+            rateLimiter.addRule( HistoricalStkJob.RATE_LIMIT_CATEGORY,
+                                 new SlidingWindowRule( RateLimitRule.SCOPE_CONTRACT,
+                                                        CONTRACT_REQUEST_LIMIT,
+                                                        CONTRACT_REQUEST_WINDOW_MS + PACING_MARGIN_MS ) );
+
+            rateLimiter.addRule( HistoricalStkJob.RATE_LIMIT_CATEGORY,
+                                 new SlidingWindowRule( RateLimitRule.SCOPE_GLOBAL,
+                                                        TOTAL_REQUEST_LIMIT,
+                                                        TOTAL_REQUEST_WINDOW_MS + PACING_MARGIN_MS ) );
+        }
+    }
+
     //
     // Cassandra stores values in byte[].
     // Java natively represents time as a Long, in milliseconds.
@@ -116,6 +224,14 @@ public class HistoricalStkController extends Controller
         throws ControllerException
     {
 
+        //
+        // Don't queue a second request while one is outstanding
+        //
+        if( requestPending == true )
+        {
+            return;
+        }
+
         //
         // Load controller metadata
         //
@@ -143,15 +259,24 @@ public class HistoricalStkController extends Controller
             */
             //Iterator<byte[]> symbol = symbols.iterator();
 
+            HashSet<String> deadSymbols = getDeadLetteredSymbols();
+
             for( String symbol : symbols )
             {
 
                 //
-                // If we aren't already working on a symbol, get one
+                // If we aren't already working on a symbol, get one.
+                // Skip symbols whose requests have failed for good;
+                // asking again would just burn another retry budget.
                 //
                 if( currentSymbol == null )
                 {
 
+                    if( deadSymbols.contains( symbol ) )
+                    {
+                        continue;
+                    }
+
                     //
                     // Just pull one symbol and use that, order doesn't matter
                     //
@@ -195,26 +320,38 @@ public class HistoricalStkController extends Controller
     }
 
     //
-    // Queue up a work item, while respecting the throttling rates.
-    // When the job is queued to run isn't quite the same as when the 
-    // request actually goes to the TWS, so there is a bit of fuzziness
-    // here, and we could hit the throttling rate. To account for this,
-    // the Control data isn't updated until we we have all the data.
+    // Symbols of our requests that ran out of retries and are on the
+    // scheduler's dead-letter list. They stay skipped until the list
+    // is cleared.
     //
-    private synchronized void queueRequest( String symbol, Long endDateTime )
-        throws ControllerException
+    private HashSet<String> getDeadLetteredSymbols()
     {
+        HashSet<String> deadSymbols = new HashSet<String>();
 
-        System.out.println("Requesting " + symbol+ " " + endDateTime);
+        for( Job job : scheduler.getDeadLetters() )
+        {
+            if( job.controller == this && job instanceof HistoricalStkJob )
+            {
+                deadSymbols.add( ((HistoricalStkJob) job).getSymbol() );
+            }
+        }
 
-        //
-        // Figure out when we can run this job
-        //
-        long nowMS = getTimestampMS();
+        return deadSymbols;
+    }
 
-        long nextRequestTimeMS = lastRequestTimeMS + interRequestDelayMS;
+    //
+    // Queue up a work item. The scheduler holds the job back until the
+    // pacing rules allow it to run. When the job runs isn't quite the
+    // same as when the request actually goes to the TWS, so there is a
+    // bit of fuzziness here, and we could hit the throttling rate. To
+    // account for this, the Control data isn't updated until we we have
+    // all the data.
+    //
+    private synchronized void queueRequest( String symbol, Long endDateTime )
+        throws ControllerException
+    {
 
-        long queueTime = Math.max( nowMS, nextRequestTimeMS );
+        System.out.println("Requesting " + symbol+ " " + endDateTime);
 
         HistoricalStkJob job = null;
 
@@ -236,18 +373,28 @@ public class HistoricalStkController extends Controller
 
         try
         {
-            scheduler.scheduleAtTime( job, queueTime );
+            requestPending = true;
+            activeRequest = job;
+
+            trackJob( scheduler.scheduleNow( job ) );
         }
         catch( Exception e )
         {
+            requestPending = false;
+            activeRequest = null;
+
             throw new ControllerException("Exception scheduling job: " + e.getMessage());
         }
 
-        //
-        // Remember this queueTime for later
-        //
-        lastRequestTimeMS = queueTime;
+    }
 
+    //
+    // Periodic refresh just looks for more work
+    //
+    public void refreshFromControl()
+        throws ControllerException
+    {
+        pullWorkFromControl();
     }
 
     //
@@ -324,6 +471,24 @@ public class HistoricalStkController extends Controller
     {
         pendingJobs.remove( job );
 
+        //
+        // If the request failed for good (the scheduler has already
+        // retried it), no data is coming back to clear requestPending.
+        // Give up on the symbol so we don't stall on it; it's on the
+        // dead-letter list now, so pullWorkFromControl() passes it by.
+        //
+        if( job instanceof HistoricalStkJob &&
+            job.jobStatus != Job.JOB_STATUS_COMPLETE )
+        {
+            requestPending = false;
+
+            if( job == activeRequest )
+            {
+                activeRequest = null;
+                currentSymbol = null;
+            }
+        }
+
         //
         // Wakeup anything waiting on pendingJobs to finish,
         // e.g. cancelFeeds()
@@ -369,6 +534,20 @@ public class HistoricalStkController extends Controller
 
         adjustControl( symbol, TIME_30_MINUTES_IN_MS );
 
+        synchronized( this )
+        {
+            //
+            // Lets the request's job finish
+            //
+            if( activeRequest != null && symbol.equals( activeRequest.getSymbol() ) )
+            {
+                activeRequest.dataFinished();
+                activeRequest = null;
+            }
+
+            requestPending = false;
+        }
+
         try
         {
             pullWorkFromControl();
@@ -379,6 +558,21 @@ public class HistoricalStkController extends Controller
         }
 
     }
+
+    //
+    // The connection to TWS was reopened with the request outstanding.
+    // Its job fails and is retried, paced like any other request; the
+    // symbol stays ours in the meantime.
+    //
+    public synchronized void callbackHistoricalDataLost( String symbol )
+    {
+        System.out.println( "HistoricalDataLost: "+symbol );
+
+        if( activeRequest != null && symbol.equals( activeRequest.getSymbol() ) )
+        {
+            activeRequest.dataLost();
+        }
+    }
     
 
     /*
@@ -4,10 +4,16 @@ package mbot;
 import samples.base.StkContract;
 import com.ib.client.EClientSocket;
 
+// Java imports
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
 //
 // This class represents all jobs relating to a historical stk request
 //
-public class HistoricalStkJob extends Job
+public class HistoricalStkJob extends Job implements JournaledJob
 {
 
     //
@@ -20,14 +26,37 @@ public class HistoricalStkJob extends Job
     private int jobType = JOB_INVALID;
 
     //
-    // TWS EClientSock object to make IB API calls
+    // RateLimiter category for IB historical data requests
     //
-    private TwsSubsystem twsSubsystem;
+    public static final String RATE_LIMIT_CATEGORY = "IbHistorical";
 
     //
-    // The controller that issued this job
+    // Exchange used for the request. StkContract always routes SMART.
     //
-    private Controller controller;
+    private static final String EXCHANGE = "SMART";
+
+    //
+    // Name for these jobs in the scheduler's job journal
+    //
+    public static final String JOURNAL_TYPE = "HistoricalStkJob";
+
+    //
+    // A data request runs until all of its data has arrived (see
+    // dataFinished), so the scheduler's watchdog can time out requests
+    // TWS never answers. A fresh latch for each attempt.
+    //
+    private volatile CountDownLatch dataFinished = null;
+
+    //
+    // Set when the request was dropped by a reconnect before its data
+    // finished (see dataLost)
+    //
+    private volatile boolean dataLost = false;
+
+    //
+    // TWS EClientSock object to make IB API calls
+    //
+    private TwsSubsystem twsSubsystem;
 
 
     //
@@ -94,6 +123,11 @@ public class HistoricalStkJob extends Job
 
         if( jobType == JOB_REQUEST_1SEC_TRADES )
         {
+
+            //
+            // Backfill can always wait for more urgent work
+            //
+            this.lane = JOB_LANE_BACKFILL;
             
             //
             // Limited to 2000 bars per request.
@@ -136,6 +170,58 @@ public class HistoricalStkJob extends Job
         }
     }
 
+    //
+    // Recreate a job from the state written by writeJournalState()
+    //
+    public static HistoricalStkJob restore( DataInputStream in,
+                                            TwsSubsystem twsSubsystem,
+                                            Controller controller )
+        throws IOException, JobException
+    {
+        int jobType = in.readInt();
+        String symbol = in.readUTF();
+
+        if( jobType == JOB_CANCEL_REQUEST )
+        {
+            return new HistoricalStkJob( jobType, twsSubsystem, controller, symbol );
+        }
+
+        Long endDateTime = in.readBoolean() ? Long.valueOf( in.readLong() ) : null;
+
+        return new HistoricalStkJob( jobType, twsSubsystem, controller, symbol, endDateTime );
+    }
+
+    public String getSymbol()
+    {
+        return symbol;
+    }
+
+    public boolean isDataRequest()
+    {
+        return jobType == JOB_REQUEST_1SEC_TRADES;
+    }
+
+    //
+    // Implement JournaledJob
+    //
+    public String getJournalType()
+    {
+        return JOURNAL_TYPE;
+    }
+
+    public void writeJournalState( DataOutputStream out )
+        throws IOException
+    {
+        out.writeInt( jobType );
+        out.writeUTF( symbol );
+
+        if( jobType != JOB_CANCEL_REQUEST )
+        {
+            out.writeBoolean( endDateTime != null );
+            out.writeLong( (endDateTime != null) ? endDateTime : 0 );
+        }
+    }
+
     //
     // Implement job::executeJob()
     //
@@ -149,7 +235,10 @@ public class HistoricalStkJob extends Job
             cancelRequest();
             break;
         case JOB_REQUEST_1SEC_TRADES:
+            dataLost = false;
+            dataFinished = new CountDownLatch( 1 );
             requestData();
+            awaitData();
             break;
         default:
             // do nothing
@@ -169,6 +258,103 @@ public class HistoricalStkJob extends Job
 
     }
 
+    //
+    // Pacing -- only actual data requests count against the limits
+    //
+    public String getRateLimitCategory()
+    {
+        if( jobType != JOB_REQUEST_1SEC_TRADES )
+        {
+            return null;
+        }
+
+        return RATE_LIMIT_CATEGORY;
+    }
+
+    //
+    // IB paces on contract, exchange and tick type
+    //
+    public String getRateLimitContract()
+    {
+        return symbol + "/" + EXCHANGE + "/" + whatToShow;
+    }
+
+    //
+    // Requests for a symbol are made in order
+    //
+    public Object getShardKey()
+    {
+        return symbol;
+    }
+
+    //
+    // Identical requests are ones for the same data over the same range
+    //
+    public String getRateLimitFingerprint()
+    {
+        return getRateLimitContract() + "/" + endDateTime + "/" + duration + "/" + barSize;
+    }
+
+    //
+    // The controller calls this when the last of the data is in
+    //
+    void dataFinished()
+    {
+        CountDownLatch latch = dataFinished;
+
+        if( latch != null )
+        {
+            latch.countDown();
+        }
+    }
+
+    //
+    // The controller calls this when the connection to TWS was reopened
+    // before the data finished. The request is gone, so the job fails
+    // and the scheduler retries it.
+    //
+    void dataLost()
+    {
+        CountDownLatch latch = dataFinished;
+
+        if( latch != null )
+        {
+            dataLost = true;
+            latch.countDown();
+        }
+    }
+
+    private void awaitData()
+        throws JobException
+    {
+        try
+        {
+            dataFinished.await();
+
+            if( dataLost )
+            {
+                throw new JobException("Historical data request lost with the connection to TWS");
+            }
+        }
+        catch( InterruptedException e )
+        {
+            //
+            // Timed out or canceled. Don't leave the request open, or
+            // a retry would collide with it.
+            //
+            try
+            {
+                cancelRequest();
+            }
+            catch( JobException ce )
+            {
+                // Nothing more we can do
+            }
+
+            throw new JobException("Interrupted waiting for historical data");
+        }
+    }
+
     //
     // Request data
     //
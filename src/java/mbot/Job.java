@@ -1,5 +1,10 @@
 package mbot;
 
+// Java imports
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
 //
 // A job encapsulates a collection of things to do, and 
 // might be  be scheduled to run at a certain time.
@@ -8,15 +13,61 @@ public abstract class Job implements Comparable<Job>, Runnable
 {
 
     //
-    // The thread that backs this job
+    // Every job gets a unique, increasing id. This breaks ties
+    // between jobs with the same start time.
+    //
+    private static final AtomicLong nextJobId = new AtomicLong( 0 );
+
+    public final long jobId = nextJobId.getAndIncrement();
+
+    //
+    // The thread currently running this job, if any.
+    // Threads come from the scheduler's worker pool, so this
+    // is only valid between run() starting and finishing.
     //
     Thread thread;
 
+    //
+    // Set once the job has been handed to an executor, and
+    // cleared when it finishes running
+    //
+    boolean started = false;
+
+    //
+    // Set if cancel() comes in while the job is queued in the
+    // executor or running
+    //
+    volatile boolean cancelRequested = false;
+
     //
     // The scheduler scheduling this job
     //
     Scheduler scheduler;
 
+    //
+    // The controller that issued this job. The scheduler uses this
+    // to enforce per-controller limits; it may be null.
+    //
+    protected Controller controller;
+
+    //
+    // Bookkeeping for the scheduler's waiting queue. Only touched
+    // by the queue implementation, on the evaluator thread of the
+    // shard the job was scheduled on.
+    //
+    Job queueNext = null;
+    Job queuePrev = null;
+    int queueSlot = TimingWheelWaitingQueue.SLOT_NONE;
+    long queueTick = 0;
+
+    //
+    // Bookkeeping for the lane FIFO the job is due in, if any (see
+    // SchedulerLane). Same thread as above.
+    //
+    SchedulerLane.Flow laneFlow = null;
+    Job laneNext = null;
+    Job lanePrev = null;
+
     //
     // Status defs
     //
@@ -24,8 +75,115 @@ public abstract class Job implements Comparable<Job>, Runnable
     public static int JOB_STATUS_RUNNING = 1;
     public static int JOB_STATUS_COMPLETE = 2;
     public static int JOB_STATUS_CANCELED = 3;
+    public static int JOB_STATUS_FAILED = 4;
+
+    public volatile int jobStatus = JOB_STATUS_WAITING;
 
-    public int jobStatus = JOB_STATUS_WAITING;
+    //
+    // Why the last run failed, if it did
+    //
+    volatile JobException failure = null;
+
+    //
+    // Completed when the job is finished with: after its run for a
+    // one-shot job, or when a repeating job is canceled or unscheduled.
+    // A new one is created each time the job is scheduled.
+    //
+    volatile CompletableFuture<Job> completion = null;
+
+    //
+    // Priority lanes. When workers are scarce, due jobs in a higher
+    // lane (lower number) are run first. Latency-sensitive work like
+    // feed subscription changes should go in the realtime lane, bulk
+    // work like historical backfill in the backfill lane.
+    //
+    public static final int JOB_LANE_REALTIME = 0;
+    public static final int JOB_LANE_DEFAULT = 1;
+    public static final int JOB_LANE_BACKFILL = 2;
+    public static final int JOB_LANE_COUNT = 3;
+
+    public int lane = JOB_LANE_DEFAULT;
+
+    //
+    // When the job came due and entered its lane, in MS
+    //
+    long dueTime = 0;
+
+    //
+    // Repeating jobs. The scheduler puts the same job instance back
+    // on the waiting queue each time it completes, until it is
+    // canceled or unscheduled.
+    //
+    public static final int JOB_REPEAT_NONE = 0;
+    public static final int JOB_REPEAT_FIXED_RATE = 1;
+    public static final int JOB_REPEAT_FIXED_DELAY = 2;
+
+    //
+    // What a fixed rate job does when it falls a whole period or more
+    // behind (e.g. a run took too long, or the process was stalled):
+    // skip the missed runs and carry on from the next slot on the
+    // original schedule, or run them back to back until caught up.
+    //
+    public static final int JOB_MISSED_RUNS_SKIP = 0;
+    public static final int JOB_MISSED_RUNS_CATCH_UP = 1;
+
+    public int missedRunPolicy = JOB_MISSED_RUNS_SKIP;
+
+    //
+    // Set by the scheduler
+    //
+    volatile int repeatMode = JOB_REPEAT_NONE;
+    volatile long repeatPeriod = 0;
+
+    //
+    // When this run was supposed to start. Unlike startTime this isn't
+    // moved by pacing delays, so fixed rate jobs don't drift. Jobs
+    // scheduled to run immediately get the time they were scheduled.
+    //
+    long scheduledTime = 0;
+
+    //
+    // When the last run actually started, in MS, and how long
+    // executeJob() took, in NS. Read by the scheduler's metrics.
+    //
+    long runStartTime = 0;
+    long runNanos = 0;
+
+    //
+    // Runs skipped under JOB_MISSED_RUNS_SKIP
+    //
+    public volatile long missedRuns = 0;
+
+    //
+    // Watchdog and retries (see JobPolicy). timeoutTime is when the
+    // current run gets canceled, or 0 for never; timedOut is set when
+    // that happens, so the run counts as a failure rather than a cancel.
+    //
+    long timeoutTime = 0;
+    volatile boolean timedOut = false;
+
+    //
+    // Retries made since the job was scheduled, and whether the
+    // scheduler is going to retry the run that just finished
+    //
+    volatile int attempts = 0;
+    volatile boolean retryPending = false;
+
+    //
+    // Admission control. The controller queue this job holds a slot
+    // in until it starts, and whether it is deferred, i.e. accepted
+    // but held off the schedule until its controller's queue has room.
+    //
+    volatile ControllerQueue admittedTo = null;
+    volatile boolean deferred = false;
+
+    //
+    // Evaluator shards (see Scheduler.setShardCount). The shard whose
+    // queues hold the job, and whether it has been offered up for
+    // another shard to steal and may be on its way there.
+    //
+    volatile Scheduler shard = null;
+    volatile boolean inTransit = false;
 
     //
     // When the job is scheduled to run in MS.
@@ -51,37 +209,82 @@ public abstract class Job implements Comparable<Job>, Runnable
         // nothing by default
     }
 
+    //
+    // Pacing. A job that makes rate-limited requests names the
+    // RateLimiter category whose rules apply to it, plus the keys
+    // those rules may be scoped on: the contract (including exchange
+    // and tick type) and a fingerprint identifying the exact request.
+    // A null category means the job isn't paced.
+    //
+    public String getRateLimitCategory()
+    {
+        return null;
+    }
+
+    public String getRateLimitContract()
+    {
+        return null;
+    }
+
+    public String getRateLimitFingerprint()
+    {
+        return null;
+    }
+
+    //
+    // Sharding. Jobs with the same key always go to the same evaluator
+    // shard, so they run in the order they were scheduled. Jobs without
+    // a key are spread across the shards and may be stolen by an idle
+    // one, so they have no ordering with respect to each other.
+    //
+    public Object getShardKey()
+    {
+        return null;
+    }
+
     //
     // Synchronized so we don't start() and cancel() a job at the same time
     //
-    public synchronized void start()
+    public synchronized void start( Executor executor )
     {
 
         // 
-        // We don't want more than 1 thread per job
+        // We don't want the job running more than once at a time
         //
-        if( thread != null )
+        if( started == true )
         {
             return;
         }
 
         //
-        // Spin up a new thread to call the job's run() method
+        // Hand ourselves to the executor, which will call run() on
+        // one of its threads. This may throw if the executor is full,
+        // in which case the job is left untouched for a later retry.
         //
-        thread = new Thread( this );
+        executor.execute( this );
 
-        thread.start();
+        started = true;
 
     }
 
     //
-    // Just a run method to run on our thread
+    // Just a run method to run on the executor's thread
     //
     public void run()
     {
 
+        synchronized( this )
+        {
+            thread = Thread.currentThread();
+        }
+
         jobStatus = JOB_STATUS_RUNNING;
 
+        runStartTime = scheduler.currentTime();
+        runNanos = 0;
+
+        long runStartNanos = System.nanoTime();
+
         //
         // Wrap the actual doJob method with interrupt exception
         // handling. This mechanism is used to cancel the job.
@@ -91,13 +294,16 @@ public abstract class Job implements Comparable<Job>, Runnable
 
             //
             // Race condition where a cancelation (i.e. interrupt) can
-            // come in before we even reach the try/catch block
+            // come in before we even reach the try/catch block, or
+            // while we were still waiting in the executor's queue
             //
-            if( Thread.interrupted() )
+            if( cancelRequested || Thread.interrupted() )
             {
                 throw new InterruptedException();
             }
 
+            failure = null;
+
             //
             // Actually do the job
             //
@@ -109,27 +315,153 @@ public abstract class Job implements Comparable<Job>, Runnable
         catch( InterruptedException e )
         {
             //
-            // End this job by simply returning
+            // End this job by simply returning. If it was the watchdog
+            // that interrupted us, the run failed.
             //
-            jobStatus = JOB_STATUS_CANCELED;
+            if( timedOut == true )
+            {
+                markTimedOut();
+            }
+            else
+            {
+                jobStatus = JOB_STATUS_CANCELED;
+            }
 
         }
         catch( JobException e )
         {
-            System.out.println("Exception running job: " + e.getMessage() );
+            //
+            // Jobs blocked in I/O often turn the interrupt from cancel()
+            // into a JobException of their own. That is still a cancel.
+            //
+            if( timedOut == true )
+            {
+                markTimedOut();
+            }
+            else if( cancelRequested == true )
+            {
+                jobStatus = JOB_STATUS_CANCELED;
+            }
+            else
+            {
+                System.out.println("Exception running job: " + e.getMessage() );
+
+                failure = e;
+                jobStatus = JOB_STATUS_FAILED;
+            }
         }
+        catch( RuntimeException e )
+        {
+            //
+            // A bug in the job is a failed run like any other, so it
+            // is retried or dead-lettered rather than left holding
+            // its slots
+            //
+            System.out.println("Unexpected exception running job: " + e );
+
+            failure = new JobException( "Unexpected exception running job: " + e, e );
+            jobStatus = JOB_STATUS_FAILED;
+        }
+        finally
+        {
+            //
+            // Anything worse (an Error) still gets the bookkeeping
+            // below on its way out
+            //
+            if( jobStatus == JOB_STATUS_RUNNING )
+            {
+                failure = new JobException( "Job did not finish" );
+                jobStatus = JOB_STATUS_FAILED;
+            }
+
+            finishRun( runStartNanos );
+        }
+
+    }
+
+    //
+    // Bookkeeping at the end of every run, however it ended
+    //
+    private void finishRun( long runStartNanos )
+    {
+        runNanos = System.nanoTime() - runStartNanos;
 
         //
         // We are done with this thread. This also allows us to 
         // hypothetically start() this job again if we wish.
         //
-        thread = null;
+        synchronized( this )
+        {
+            thread = null;
+            started = false;
+            cancelRequested = false;
+
+            //
+            // A cancel() that raced with the end of the job may have
+            // interrupted this pool thread. Clear it so the next job
+            // run on this thread isn't canceled by mistake.
+            //
+            Thread.interrupted();
+        }
+
+        //
+        // Decided here, before the scheduler can start a retry that
+        // would reset the flag underneath us
+        //
+        boolean retrying = scheduler.willRetry( this );
+
+        retryPending = retrying;
 
         //
         // Tell the scheduler we are done
         //
         scheduler.completionCallback(this);
 
+        //
+        // One-shot jobs are finished with now, unless they are going to
+        // be retried. Anything chained on the completion runs here on
+        // the worker thread, not the evaluator. Repeating jobs are
+        // completed by the scheduler when they stop.
+        //
+        if( repeatMode == JOB_REPEAT_NONE && retrying == false )
+        {
+            complete();
+        }
+    }
+
+    private void markTimedOut()
+    {
+        System.out.println("Job timed out: " + getClass().getSimpleName() );
+
+        failure = new JobException("Job timed out");
+        jobStatus = JOB_STATUS_FAILED;
+    }
+
+    //
+    // Settle the completion future according to the job status.
+    // Safe to call more than once; only the first call counts.
+    //
+    void complete()
+    {
+        CompletableFuture<Job> future = completion;
+
+        if( future == null )
+        {
+            return;
+        }
+
+        if( jobStatus == JOB_STATUS_CANCELED )
+        {
+            future.cancel( false );
+        }
+        else if( jobStatus == JOB_STATUS_FAILED && failure != null )
+        {
+            future.completeExceptionally( failure );
+        }
+        else
+        {
+            future.complete( this );
+        }
     }
 
     //
@@ -138,14 +470,25 @@ public abstract class Job implements Comparable<Job>, Runnable
     public synchronized void cancel()
     {
 
+        //
+        // Still queued in the executor -- run() will see this
+        // flag and bail out before doing any work
+        //
         if( thread == null )
         {
+            if( started == true )
+            {
+                cancelRequested = true;
+            }
+
             return;
         }
 
         //
         // The InterruptedException handler should exit the thread
         //
+        cancelRequested = true;
+
         thread.interrupt();
 
     }
@@ -177,23 +520,21 @@ public abstract class Job implements Comparable<Job>, Runnable
             //
             // We want to differentiate between different jobs
             // that have the same start time, as opposed
-            // to the same job.
+            // to the same job. The job id gives a consistent
+            // order, so sorted collections can find and remove
+            // the job again.
             //
-
-            if( this == j )
+            if( this.jobId < j.jobId )
             {
-                return 0;
+                return -1;
             }
-            else
+            else if( this.jobId > j.jobId )
             {
-
-                //
-                // If they are different objects, just define
-                // one to be the bigger.
-                //
-                return -1;
+                return +1;
             }
 
+            return 0;
+
         }
 
     }
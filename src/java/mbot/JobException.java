@@ -6,4 +6,9 @@ public class JobException extends Exception
     {
         super(message);
     }
+
+    public JobException( String message, Throwable cause )
+    {
+        super(message, cause);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+package mbot;
+
+// Java imports
+import java.util.concurrent.CompletableFuture;
+
+//
+// Returned by the scheduler for every job it accepts. The handle can
+// cancel the job whether it is still waiting or already running, report
+// its status, and hands out a future that settles when the job is done:
+//
+//  - completes with the job when a run finishes normally
+//  - completes exceptionally with the JobException if the run failed
+//  - is cancelled if the job was canceled before or while running
+//
+// For a repeating job the future only settles once it stops repeating.
+//
+// Follow-up work chained with the non-async CompletableFuture methods
+// runs on the thread that settles the future, which is normally the
+// worker that ran the job. Keep it short, or use the *Async variants.
+//
+public class JobHandle
+{
+
+    Scheduler scheduler;
+    Job job;
+    CompletableFuture<Job> completion;
+
+    JobHandle( Scheduler scheduler, Job job, CompletableFuture<Job> completion )
+    {
+        this.scheduler = scheduler;
+        this.job = job;
+        this.completion = completion;
+    }
+
+    public Job getJob()
+    {
+        return job;
+    }
+
+    //
+    // One of Job.JOB_STATUS_*
+    //
+    public int getStatus()
+    {
+        return job.jobStatus;
+    }
+
+    //
+    // Whether the job was accepted but is being held off the schedule
+    // because its controller's queue is full (see ControllerQueue)
+    //
+    public boolean isDeferred()
+    {
+        return job.deferred;
+    }
+
+    public boolean isDone()
+    {
+        return completion.isDone();
+    }
+
+    public CompletableFuture<Job> getCompletion()
+    {
+        return completion;
+    }
+
+    //
+    // Cancel the job. A waiting job is taken off the schedule, a
+    // running one is interrupted, and a repeating one won't run again.
+    // This returns right away; the future settles once it has happened.
+    //
+    public void cancel()
+    {
+        scheduler.cancel( job );
+    }
+
+}
@@ -0,0 +1,651 @@
+package mbot;
+
+// Java imports
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+//
+// An append-only, memory-mapped journal of what the scheduler has done,
+// so that waiting jobs and pacing state survive the process dying.
+//
+// Three kinds of record are written:
+//
+//   SCHEDULED  a journaled job (see JournaledJob) was scheduled, with
+//              its start time, repeat settings and serialized state
+//   STARTED    a job was handed to the executor; for paced jobs this
+//              carries its RateLimiter category and keys
+//   COMPLETED  a journaled job is finished with and needn't come back
+//
+// On restart the scheduler reads the journal back (see
+// Scheduler.replayJournal), reschedules every journaled job that never
+// completed -- including ones that were mid-run, so those run again --
+// and replays recent STARTED records into the RateLimiter so the pacing
+// windows pick up where they left off. The journal is then rewritten
+// from just that live state.
+//
+// A long-running process doesn't restart to get that, so the journal
+// also compacts itself whenever it fills its mapping: completed jobs
+// and STARTED records too old to matter for pacing are dropped, and
+// the rest is written to a new file that replaces the old one. The
+// mapping only grows if the journal is still over half full after
+// that.
+//
+// Records are written straight into the mapped file, so they survive a
+// crash of the process as soon as they are written. Surviving a crash of
+// the machine needs sync(). Each record is written body first and its
+// length last, with a zero length after it, so a record cut short by a
+// crash is never read back.
+//
+public class JobJournal
+{
+
+    //
+    // File header: magic, then format version
+    //
+    static final int MAGIC = 0x6d626f74;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+
+    //
+    // Record types
+    //
+    static final byte RECORD_SCHEDULED = 1;
+    static final byte RECORD_STARTED = 2;
+    static final byte RECORD_COMPLETED = 3;
+
+    //
+    // Initial size of the mapping; it doubles as needed
+    //
+    public static final int DEFAULT_INITIAL_SIZE = 1 << 20;
+
+    //
+    // STARTED records older than this aren't replayed into the
+    // RateLimiter. Comfortably longer than any IB pacing window.
+    //
+    public static final long DEFAULT_PACING_RETENTION_MS = 60 * 60 * 1000;
+
+    File file;
+    RandomAccessFile raf;
+    FileChannel channel;
+    MappedByteBuffer buffer;
+
+    //
+    // Where the next record goes
+    //
+    int position = HEADER_SIZE;
+
+    //
+    // Nothing is written until the old contents have been replayed,
+    // so records from this run never mix with the last run's
+    //
+    boolean writable = false;
+
+    long pacingRetentionMS = DEFAULT_PACING_RETENTION_MS;
+
+    //
+    // Set if a write fails, after which the journal stops writing
+    // rather than leave a gap the replay can't see
+    //
+    boolean failed = false;
+
+    //
+    // Times the journal has compacted itself
+    //
+    int compactions = 0;
+
+    //
+    // Journal type -> factory
+    //
+    HashMap<String, JournaledJobFactory> factories;
+
+    //
+    // Constructor. Opens the journal, creating it if need be.
+    //
+    public JobJournal( File file )
+        throws SchedulerException
+    {
+        this( file, DEFAULT_INITIAL_SIZE );
+    }
+
+    public JobJournal( File file, int initialSize )
+        throws SchedulerException
+    {
+        this.file = file;
+
+        factories = new HashMap<String, JournaledJobFactory>();
+
+        try
+        {
+            raf = new RandomAccessFile( file, "rw" );
+            channel = raf.getChannel();
+
+            boolean isNew = (channel.size() == 0);
+
+            map( (int) Math.max( initialSize, Math.min( channel.size(), Integer.MAX_VALUE ) ) );
+
+            if( isNew )
+            {
+                buffer.putInt( 0, MAGIC );
+                buffer.putInt( 4, VERSION );
+                buffer.putInt( HEADER_SIZE, 0 );
+            }
+            else if( buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) != VERSION )
+            {
+                throw new SchedulerException("Not a job journal: " + file);
+            }
+        }
+        catch( IOException e )
+        {
+            throw new SchedulerException("Failed to open job journal " + file + ": " + e.getMessage());
+        }
+    }
+
+    //
+    // How far back STARTED records are replayed into the RateLimiter
+    //
+    public synchronized void setPacingRetention( long pacingRetentionMS )
+    {
+        this.pacingRetentionMS = pacingRetentionMS;
+    }
+
+    //
+    // Register the factory for a journal type. Needs to happen
+    // before the journal is replayed.
+    //
+    public synchronized void registerFactory( String journalType, JournaledJobFactory factory )
+    {
+        factories.put( journalType, factory );
+    }
+
+    //
+    // Flush the mapping to disk, for durability across machine crashes
+    //
+    public synchronized void sync()
+    {
+        buffer.force();
+    }
+
+    public synchronized int getCompactions()
+    {
+        return compactions;
+    }
+
+    public synchronized void close()
+    {
+        try
+        {
+            buffer.force();
+            channel.close();
+            raf.close();
+        }
+        catch( IOException e )
+        {
+            System.out.println("Failed to close job journal: " + e.getMessage());
+        }
+    }
+
+    //
+    // Writers. Called by the scheduler from its producer, evaluator
+    // and worker threads.
+    //
+
+    synchronized void scheduled( Job job, long startTime, long time )
+    {
+        JournaledJob journaled = (JournaledJob) job;
+
+        try
+        {
+            ByteArrayOutputStream state = new ByteArrayOutputStream();
+            journaled.writeJournalState( new DataOutputStream( state ) );
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( bytes );
+
+            out.writeByte( RECORD_SCHEDULED );
+            out.writeLong( job.jobId );
+            out.writeLong( time );
+            out.writeUTF( journaled.getJournalType() );
+            out.writeLong( startTime );
+            out.writeInt( job.repeatMode );
+            out.writeLong( job.repeatPeriod );
+            out.writeInt( state.size() );
+            out.write( state.toByteArray() );
+
+            append( bytes.toByteArray() );
+        }
+        catch( IOException e )
+        {
+            writeFailed( e );
+        }
+    }
+
+    synchronized void started( long jobId, long time, String category, String contract, String fingerprint )
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( bytes );
+
+            out.writeByte( RECORD_STARTED );
+            out.writeLong( jobId );
+            out.writeLong( time );
+            writeNullableUTF( out, category );
+            writeNullableUTF( out, contract );
+            writeNullableUTF( out, fingerprint );
+
+            append( bytes.toByteArray() );
+        }
+        catch( IOException e )
+        {
+            writeFailed( e );
+        }
+    }
+
+    synchronized void completed( long jobId, long time )
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( bytes );
+
+            out.writeByte( RECORD_COMPLETED );
+            out.writeLong( jobId );
+            out.writeLong( time );
+
+            append( bytes.toByteArray() );
+        }
+        catch( IOException e )
+        {
+            writeFailed( e );
+        }
+    }
+
+    //
+    // Replay side
+    //
+
+    //
+    // Read the journal back: the journaled jobs that never completed,
+    // in the order they were first scheduled, and the paced requests
+    // started within the retention window, oldest first
+    //
+    synchronized Replay read( long now )
+    {
+        Replay replay = new Replay();
+
+        LinkedHashMap<Long, ScheduledRecord> live = new LinkedHashMap<Long, ScheduledRecord>();
+
+        int offset = HEADER_SIZE;
+
+        while( true )
+        {
+            int length = buffer.getInt( offset );
+
+            if( length <= 0 || offset + 4 + length + 4 > buffer.capacity() )
+            {
+                break;
+            }
+
+            byte[] body = new byte[ length ];
+
+            buffer.position( offset + 4 );
+            buffer.get( body );
+
+            try
+            {
+                readRecord( new DataInputStream( new ByteArrayInputStream( body ) ), now, live, replay );
+            }
+            catch( IOException e )
+            {
+                System.out.println("Stopping job journal replay at a bad record: " + e.getMessage());
+                break;
+            }
+
+            offset += 4 + length;
+        }
+
+        replay.jobs.addAll( live.values() );
+
+        return replay;
+    }
+
+    private void readRecord( DataInputStream in,
+                             long now,
+                             LinkedHashMap<Long, ScheduledRecord> live,
+                             Replay replay )
+        throws IOException
+    {
+        byte type = in.readByte();
+        long jobId = in.readLong();
+        long time = in.readLong();
+
+        switch( type )
+        {
+        case RECORD_SCHEDULED:
+            ScheduledRecord scheduled = new ScheduledRecord();
+
+            scheduled.journalType = in.readUTF();
+            scheduled.startTime = in.readLong();
+            scheduled.repeatMode = in.readInt();
+            scheduled.repeatPeriod = in.readLong();
+            scheduled.state = new byte[ in.readInt() ];
+            in.readFully( scheduled.state );
+
+            //
+            // A job scheduled again just moved; keep its first place
+            //
+            live.put( jobId, scheduled );
+            break;
+        case RECORD_STARTED:
+            PacingRecord pacing = new PacingRecord();
+
+            pacing.time = time;
+            pacing.category = readNullableUTF( in );
+            pacing.contract = readNullableUTF( in );
+            pacing.fingerprint = readNullableUTF( in );
+
+            if( pacing.category != null && time >= now - pacingRetentionMS )
+            {
+                replay.pacing.add( pacing );
+            }
+            break;
+        case RECORD_COMPLETED:
+            live.remove( jobId );
+            break;
+        default:
+            throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    //
+    // Recreate a job from its SCHEDULED record, or null if there
+    // is no factory for it or it can't be read
+    //
+    synchronized Job restoreJob( ScheduledRecord record )
+    {
+        JournaledJobFactory factory = factories.get( record.journalType );
+
+        if( factory == null )
+        {
+            System.out.println("No factory to restore journaled job of type " + record.journalType);
+            return null;
+        }
+
+        try
+        {
+            return factory.restoreJob( new DataInputStream( new ByteArrayInputStream( record.state ) ) );
+        }
+        catch( Exception e )
+        {
+            System.out.println("Failed to restore journaled " + record.journalType + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    //
+    // Throw away everything written so far and start taking records.
+    // The scheduler does this after a replay, before writing the live
+    // state back out.
+    //
+    synchronized void reset()
+    {
+        position = HEADER_SIZE;
+
+        buffer.putInt( HEADER_SIZE, 0 );
+
+        writable = true;
+        failed = false;
+    }
+
+    //
+    // Internals
+    //
+
+    private void map( int size )
+        throws IOException
+    {
+        buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+    }
+
+    private void append( byte[] body )
+        throws IOException
+    {
+        if( writable == false || failed == true )
+        {
+            return;
+        }
+
+        //
+        // Room for the length, the body and the terminating zero
+        //
+        int needed = position + 4 + body.length + 4;
+
+        if( needed > buffer.capacity() )
+        {
+            compact();
+
+            needed = position + 4 + body.length + 4;
+
+            //
+            // Grow if it is still over half full, so it isn't
+            // compacted over and over for a few records each time
+            //
+            if( needed > buffer.capacity() / 2 )
+            {
+                long size = buffer.capacity();
+
+                while( size < (long) needed * 2 )
+                {
+                    size *= 2;
+                }
+
+                if( size <= Integer.MAX_VALUE )
+                {
+                    buffer.force();
+                    map( (int) size );
+                }
+                else if( needed > buffer.capacity() )
+                {
+                    throw new IOException("Job journal is full");
+                }
+            }
+        }
+
+        buffer.position( position + 4 );
+        buffer.put( body );
+        buffer.putInt( 0 );
+
+        //
+        // Publishing the length is what makes the record visible
+        //
+        buffer.putInt( position, body.length );
+
+        position += 4 + body.length;
+    }
+
+    //
+    // Rewrite the journal with only what a replay would use: the
+    // SCHEDULED records of jobs that haven't completed, in the order
+    // they were first scheduled, and the paced STARTED records within
+    // the retention window (measured back from the newest record).
+    // The records are copied as they are, into a new file that then
+    // replaces this one, so a crash part way leaves the old journal.
+    //
+    private void compact()
+        throws IOException
+    {
+        LinkedHashMap<Long, byte[]> live = new LinkedHashMap<Long, byte[]>();
+        List<byte[]> pacing = new ArrayList<byte[]>();
+
+        long newest = Long.MIN_VALUE;
+
+        int offset = HEADER_SIZE;
+
+        while( offset < position )
+        {
+            int length = buffer.getInt( offset );
+
+            byte[] body = new byte[ length ];
+
+            buffer.position( offset + 4 );
+            buffer.get( body );
+
+            //
+            // Type, job id and time lead every record
+            //
+            ByteBuffer header = ByteBuffer.wrap( body );
+
+            byte type = header.get( 0 );
+            long jobId = header.getLong( 1 );
+            long time = header.getLong( 9 );
+
+            newest = Math.max( newest, time );
+
+            if( type == RECORD_SCHEDULED )
+            {
+                live.put( jobId, body );
+            }
+            else if( type == RECORD_COMPLETED )
+            {
+                live.remove( jobId );
+            }
+            else if( type == RECORD_STARTED && header.get( 17 ) != 0 )
+            {
+                //
+                // Only paced jobs, i.e. ones with a category
+                //
+                pacing.add( body );
+            }
+
+            offset += 4 + length;
+        }
+
+        File compacted = new File( file.getPath() + ".compact" );
+
+        FileOutputStream stream = new FileOutputStream( compacted );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( stream ) );
+
+        int size = HEADER_SIZE;
+
+        try
+        {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+
+            for( byte[] body : live.values() )
+            {
+                out.writeInt( body.length );
+                out.write( body );
+
+                size += 4 + body.length;
+            }
+
+            for( byte[] body : pacing )
+            {
+                if( ByteBuffer.wrap( body ).getLong( 9 ) < newest - pacingRetentionMS )
+                {
+                    continue;
+                }
+
+                out.writeInt( body.length );
+                out.write( body );
+
+                size += 4 + body.length;
+            }
+
+            out.writeInt( 0 );
+            out.flush();
+
+            stream.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+
+        int capacity = buffer.capacity();
+
+        channel.close();
+        raf.close();
+
+        Files.move( compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+
+        raf = new RandomAccessFile( file, "rw" );
+        channel = raf.getChannel();
+
+        map( capacity );
+
+        System.out.println("Compacted job journal " + file + " from " + position + " to " + size + " bytes");
+
+        position = size;
+        compactions++;
+    }
+
+    private void writeFailed( IOException e )
+    {
+        System.out.println("Job journal write failed, journaling stopped: " + e.getMessage());
+
+        failed = true;
+    }
+
+    private static void writeNullableUTF( DataOutputStream out, String value )
+        throws IOException
+    {
+        out.writeBoolean( value != null );
+
+        if( value != null )
+        {
+            out.writeUTF( value );
+        }
+    }
+
+    private static String readNullableUTF( DataInputStream in )
+        throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    //
+    // What a replay found
+    //
+    static final class Replay
+    {
+        List<ScheduledRecord> jobs = new LinkedList<ScheduledRecord>();
+        List<PacingRecord> pacing = new LinkedList<PacingRecord>();
+    }
+
+    static final class ScheduledRecord
+    {
+        String journalType;
+        long startTime;
+        int repeatMode;
+        long repeatPeriod;
+        byte[] state;
+    }
+
+    static final class PacingRecord
+    {
+        long time;
+        String category;
+        String contract;
+        String fingerprint;
+    }
+
+}
@@ -0,0 +1,59 @@
+package mbot;
+
+//
+// How the scheduler looks after a type of job (see
+// Scheduler.setJobPolicy): how long a run may take before the watchdog
+// cancels it, and how often and how soon a failed or timed out run is
+// retried. Retries back off exponentially, up to a cap.
+//
+public class JobPolicy
+{
+
+    public static final long NO_TIMEOUT = 0;
+
+    long timeoutMS;
+    int maxRetries;
+    long initialBackoffMS;
+    long maxBackoffMS;
+    double backoffMultiplier;
+
+    public JobPolicy( long timeoutMS,
+                      int maxRetries,
+                      long initialBackoffMS,
+                      long maxBackoffMS,
+                      double backoffMultiplier )
+    {
+        if( timeoutMS < 0 || maxRetries < 0 || initialBackoffMS < 0 ||
+            maxBackoffMS < initialBackoffMS || backoffMultiplier < 1.0 )
+        {
+            throw new IllegalArgumentException("Invalid job policy");
+        }
+
+        this.timeoutMS = timeoutMS;
+        this.maxRetries = maxRetries;
+        this.initialBackoffMS = initialBackoffMS;
+        this.maxBackoffMS = maxBackoffMS;
+        this.backoffMultiplier = backoffMultiplier;
+    }
+
+    public long getTimeoutMS()
+    {
+        return timeoutMS;
+    }
+
+    public int getMaxRetries()
+    {
+        return maxRetries;
+    }
+
+    //
+    // How long to wait before a retry. The first retry is attempt 1.
+    //
+    public long backoffFor( int attempt )
+    {
+        double backoff = initialBackoffMS * Math.pow( backoffMultiplier, Math.max( 0, attempt - 1 ) );
+
+        return (long) Math.min( backoff, (double) maxBackoffMS );
+    }
+
+}
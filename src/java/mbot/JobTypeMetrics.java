@@ -0,0 +1,87 @@
+package mbot;
+
+// Java imports
+import java.util.concurrent.atomic.LongAdder;
+
+//
+// Metrics for one kind of job (job class plus issuing controller)
+//
+public class JobTypeMetrics
+{
+
+    String jobType;
+    String controllerName;
+
+    //
+    // How long after its requested start time a job actually began, MS
+    //
+    LatencyHistogram startLateness;
+
+    //
+    // How long executeJob() took, in microseconds
+    //
+    LatencyHistogram runTime;
+
+    LongAdder completed;
+    LongAdder failed;
+    LongAdder canceled;
+
+    JobTypeMetrics( String jobType, String controllerName )
+    {
+        this.jobType = jobType;
+        this.controllerName = controllerName;
+
+        startLateness = new LatencyHistogram();
+        runTime = new LatencyHistogram();
+
+        completed = new LongAdder();
+        failed = new LongAdder();
+        canceled = new LongAdder();
+    }
+
+    public String getJobType()
+    {
+        return jobType;
+    }
+
+    public String getControllerName()
+    {
+        return controllerName;
+    }
+
+    public LatencyHistogram getStartLatenessMS()
+    {
+        return startLateness;
+    }
+
+    public LatencyHistogram getRunTimeUS()
+    {
+        return runTime;
+    }
+
+    public long getCompleted()
+    {
+        return completed.sum();
+    }
+
+    public long getFailed()
+    {
+        return failed.sum();
+    }
+
+    public long getCanceled()
+    {
+        return canceled.sum();
+    }
+
+    public String toString()
+    {
+        return jobType + "/" + controllerName +
+            ": completed=" + getCompleted() +
+            " failed=" + getFailed() +
+            " canceled=" + getCanceled() +
+            " latenessMS[" + startLateness + "]" +
+            " runTimeUS[" + runTime + "]";
+    }
+
+}
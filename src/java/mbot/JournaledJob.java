@@ -0,0 +1,24 @@
+package mbot;
+
+// Java imports
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+//
+// A job that can be written to the scheduler's JobJournal and
+// recreated after a restart. The journal type names the
+// JournaledJobFactory that reads the state back in.
+//
+public interface JournaledJob
+{
+
+    public String getJournalType();
+
+    //
+    // Write whatever is needed to recreate the job. Things like the
+    // subsystems and controller it uses come from the factory instead.
+    //
+    public void writeJournalState( DataOutputStream out )
+        throws IOException;
+
+}
@@ -0,0 +1,19 @@
+package mbot;
+
+// Java imports
+import java.io.DataInputStream;
+import java.io.IOException;
+
+//
+// Recreates a journaled job from the state it wrote with
+// JournaledJob.writeJournalState(). Registered with the JobJournal
+// under the job's journal type, usually by the controller that
+// issues those jobs.
+//
+public interface JournaledJobFactory
+{
+
+    public Job restoreJob( DataInputStream in )
+        throws IOException, JobException;
+
+}
@@ -0,0 +1,154 @@
+package mbot;
+
+// Java imports
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//
+// A fixed-size, log-linear histogram of non-negative longs, in the
+// style of HdrHistogram. Each power of two is split into 16 linear
+// sub-buckets, so any recorded value is reported to within about 6%,
+// over the whole range of a long, in under 1000 buckets.
+//
+// Recording is lock-free and safe from any number of threads. Reads
+// are not atomic snapshots, which is fine for monitoring.
+//
+public class LatencyHistogram
+{
+
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    AtomicLongArray counts;
+    AtomicLong count;
+    AtomicLong sum;
+    AtomicLong max;
+
+    public LatencyHistogram()
+    {
+        counts = new AtomicLongArray( BUCKETS );
+        count = new AtomicLong( 0 );
+        sum = new AtomicLong( 0 );
+        max = new AtomicLong( 0 );
+    }
+
+    //
+    // Bucket for a value. Values below SUB_BUCKETS get a bucket each;
+    // above that, the bucket is picked by the position of the highest
+    // set bit plus the next SUB_BUCKET_BITS bits below it.
+    //
+    static int bucketFor( long value )
+    {
+        if( value < SUB_BUCKETS )
+        {
+            return (int) Math.max( 0, value );
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros( value );
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    //
+    // Smallest value that lands in a bucket
+    //
+    static long lowestValueIn( int bucket )
+    {
+        if( bucket < SUB_BUCKETS )
+        {
+            return bucket;
+        }
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        int sub = bucket % SUB_BUCKETS;
+
+        return ((long) (SUB_BUCKETS + sub)) << shift;
+    }
+
+    public void record( long value )
+    {
+        if( value < 0 )
+        {
+            value = 0;
+        }
+
+        counts.incrementAndGet( bucketFor( value ) );
+        count.incrementAndGet();
+        sum.addAndGet( value );
+
+        long current = max.get();
+
+        while( value > current && max.compareAndSet( current, value ) == false )
+        {
+            current = max.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public long getMean()
+    {
+        long n = count.get();
+
+        return (n == 0) ? 0 : sum.get() / n;
+    }
+
+    //
+    // The value at a percentile (0-100), reported as the top of the
+    // bucket it falls in, and never more than the largest value seen
+    //
+    public long getValueAtPercentile( double percentile )
+    {
+        long n = count.get();
+
+        if( n == 0 )
+        {
+            return 0;
+        }
+
+        long target = (long) Math.ceil( (percentile / 100.0) * n );
+
+        if( target < 1 )
+        {
+            target = 1;
+        }
+
+        long seen = 0;
+
+        for( int i = 0; i < BUCKETS; i++ )
+        {
+            seen += counts.get( i );
+
+            if( seen >= target )
+            {
+                long top = (i + 1 < BUCKETS) ? lowestValueIn( i + 1 ) - 1 : Long.MAX_VALUE;
+
+                return Math.min( top, max.get() );
+            }
+        }
+
+        return max.get();
+    }
+
+    public String toString()
+    {
+        return "n=" + getCount() +
+            " mean=" + getMean() +
+            " p50=" + getValueAtPercentile( 50 ) +
+            " p99=" + getValueAtPercentile( 99 ) +
+            " p99.9=" + getValueAtPercentile( 99.9 ) +
+            " max=" + getMax();
+    }
+
+}
@@ -0,0 +1,31 @@
+package mbot;
+
+//
+// Rotates market data lines among the subscriptions sharing them.
+// Scheduled as a repeating job (see TwsSubsystem.startLineRotation).
+//
+public class LineRotationJob extends Job
+{
+
+    private MarketDataLines lines;
+
+    public LineRotationJob( MarketDataLines lines )
+    {
+        this.lines = lines;
+
+        //
+        // A late rotation leaves symbols stale for longer
+        //
+        this.lane = JOB_LANE_REALTIME;
+    }
+
+    //
+    // Implement job::executeJob()
+    //
+    public void executeJob()
+        throws JobException
+    {
+        lines.rotate();
+    }
+
+}
@@ -0,0 +1,718 @@
+package mbot;
+
+// Java imports
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+//
+// Budgets the account's IB market data lines.
+//
+// IB caps how many market data subscriptions an account can have open at
+// once (100 by default) and rejects anything over the cap. Every market
+// data request from the controllers goes through here (see TwsSubsystem).
+// While there are no more subscriptions than lines, they are all live,
+// just as if they had gone straight to TWS. Once there are more, the
+// highest priority subscriptions keep a line of their own (they are
+// pinned), and the rest take turns on the rotation lines held back for
+// them: a subscription that has had a line for the dwell time gives it
+// up to the one that has waited longest.
+//
+// So with M rotating subscriptions sharing R lines, each is live for the
+// dwell time in roughly every M/R dwells, which bounds how stale its data
+// gets (see getStalenessBoundMS()). Pinning is by priority, then by who
+// asked first.
+//
+// Lines change hands in rotate(), which a LineRotationJob calls every
+// ROTATION_TICK_MS. At most MAX_SWAPS_PER_TICK lines change hands per
+// call, which keeps the cancels and requests well under IB's 50 messages
+// a second.
+//
+// A line is per symbol, not per controller: however many controllers
+// ask for a symbol, it is one subscription and takes one line, and its
+// ticks are handed to each of them (see TickerRoutes). A subscription
+// ranks at the highest priority any of its controllers asked for, and is
+// canceled with TWS only when the last of them cancels.
+//
+public class MarketDataLines
+{
+
+    public static final int DEFAULT_MAX_LINES = 100;
+    public static final int DEFAULT_ROTATION_LINES = 20;
+    public static final long DEFAULT_DWELL_MS = 10 * 1000;
+
+    public static final long ROTATION_TICK_MS = 1000;
+    public static final int MAX_SWAPS_PER_TICK = 20;
+
+    //
+    // Higher goes first
+    //
+    public static final int PRIORITY_DEFAULT = 0;
+
+    TwsSubsystem twsSubsystem;
+
+    int maxLines = DEFAULT_MAX_LINES;
+    int rotationLines = DEFAULT_ROTATION_LINES;
+    long dwellMS = DEFAULT_DWELL_MS;
+
+    //
+    // Rotation runs as a scheduler job, so it keeps the scheduler's
+    // time (see setClock())
+    //
+    volatile SchedulerClock clock = new SystemClock();
+
+    //
+    // Everything below is guarded by this.
+    //
+
+    //
+    // Symbol -> subscription
+    //
+    private HashMap<String, Subscription> subscriptions;
+
+    //
+    // All subscriptions, highest priority first. The first
+    // pinnedCount() are pinned.
+    //
+    private TreeSet<Subscription> ranked;
+
+    //
+    // Rotating subscriptions without a line, longest waiting first, and
+    // those with one, longest live first
+    //
+    private LinkedList<Subscription> waiting;
+    private LinkedList<Subscription> liveRotating;
+
+    private int liveCount = 0;
+
+    private int listenerCount = 0;
+
+    private long nextSeq = 0;
+
+    //
+    // Metrics
+    //
+    private long swaps = 0;
+    private long maxStalenessMS = 0;
+
+    public MarketDataLines( TwsSubsystem twsSubsystem )
+    {
+        this.twsSubsystem = twsSubsystem;
+
+        subscriptions = new HashMap<String, Subscription>();
+
+        ranked = new TreeSet<Subscription>( new Comparator<Subscription>()
+            {
+                public int compare( Subscription a, Subscription b )
+                {
+                    if( a.priority != b.priority )
+                    {
+                        return (a.priority > b.priority) ? -1 : +1;
+                    }
+
+                    return (a.seq < b.seq) ? -1 : ((a.seq > b.seq) ? +1 : 0);
+                }
+            } );
+
+        waiting = new LinkedList<Subscription>();
+        liveRotating = new LinkedList<Subscription>();
+    }
+
+    //
+    // The account's line limit, how many of those to keep for rotating
+    // once oversubscribed, and how long each rotating subscription
+    // keeps a line
+    //
+    public synchronized void setLimits( int maxLines, int rotationLines, long dwellMS )
+    {
+        if( maxLines < 1 || rotationLines < 1 || rotationLines > maxLines || dwellMS < ROTATION_TICK_MS )
+        {
+            throw new IllegalArgumentException("Bad market data line limits " +
+                                               maxLines + "/" + rotationLines + "/" + dwellMS + "ms");
+        }
+
+        this.maxLines = maxLines;
+        this.rotationLines = rotationLines;
+        this.dwellMS = dwellMS;
+
+        rebalance( clock.currentTime() );
+    }
+
+    //
+    // Take time from the scheduler that runs the rotation, so a
+    // VirtualClock replays dwell times and staleness too
+    //
+    public void setClock( SchedulerClock clock )
+    {
+        this.clock = clock;
+    }
+
+    //
+    // Subscribe. The subscription is live when this returns if it is
+    // pinned; otherwise it may have to wait its turn. Throws if it
+    // should have gone live and TWS wouldn't take the request.
+    //
+    // If another controller already has the symbol, this one just joins
+    // its subscription, and gets ticks from the next one on if it is live.
+    //
+    public synchronized void add( Controller controller, String symbol, int priority )
+        throws TwsSubsystemException
+    {
+        Subscription sub = subscriptions.get( symbol );
+
+        if( sub != null )
+        {
+            join( sub, controller, priority );
+            return;
+        }
+
+        long now = clock.currentTime();
+
+        sub = new Subscription( symbol, priority, nextSeq++ );
+        sub.offSince = now;
+        sub.listeners.put( controller, priority );
+
+        subscriptions.put( symbol, sub );
+        ranked.add( sub );
+        waiting.addLast( sub );
+
+        listenerCount++;
+
+        rebalance( now );
+
+        if( sub.pinned && sub.live == false )
+        {
+            forget( sub );
+
+            throw new TwsSubsystemException( sub.lastError );
+        }
+    }
+
+    //
+    // Unsubscribe. The line (if it had one) is only given up, and
+    // handed on, when this was the last controller on the symbol.
+    //
+    public synchronized void remove( Controller controller, String symbol )
+        throws TwsSubsystemException
+    {
+        Subscription sub = find( controller, symbol );
+
+        if( sub == null )
+        {
+            throw new TwsSubsystemException("No request for " + symbol + " from " + controller.getName());
+        }
+
+        long now = clock.currentTime();
+
+        if( sub.listeners.size() > 1 )
+        {
+            Integer priority = sub.listeners.remove( controller );
+
+            if( sub.live && setListeners( sub ) == false )
+            {
+                sub.listeners.put( controller, priority );
+
+                throw new TwsSubsystemException( sub.lastError );
+            }
+
+            listenerCount--;
+
+            rerank( sub, now );
+            return;
+        }
+
+        forget( sub );
+
+        if( sub.live )
+        {
+            if( close( sub, now ) == false )
+            {
+                throw new TwsSubsystemException( sub.lastError );
+            }
+        }
+
+        rebalance( now );
+    }
+
+    public synchronized void setPriority( Controller controller, String symbol, int priority )
+    {
+        Subscription sub = find( controller, symbol );
+
+        if( sub == null )
+        {
+            return;
+        }
+
+        sub.listeners.put( controller, priority );
+
+        rerank( sub, clock.currentTime() );
+    }
+
+    //
+    // Hand lines that have been held for the dwell time on to the
+    // subscriptions that have waited longest
+    //
+    public synchronized void rotate()
+    {
+        long now = clock.currentTime();
+
+        int swapped = 0;
+
+        while( swapped < MAX_SWAPS_PER_TICK && waiting.isEmpty() == false && liveRotating.isEmpty() == false )
+        {
+            Subscription oldest = liveRotating.getFirst();
+
+            if( now - oldest.liveSince < dwellMS )
+            {
+                break;
+            }
+
+            liveRotating.removeFirst();
+
+            close( oldest, now );
+            waiting.addLast( oldest );
+
+            swapped++;
+            swaps++;
+
+            fillFreeLines( now, 1 );
+        }
+
+        //
+        // Lines freed up some other way, e.g. a request that failed
+        //
+        fillFreeLines( now, MAX_SWAPS_PER_TICK );
+    }
+
+    //
+    // Metrics
+    //
+
+    public synchronized int getMaxLines()
+    {
+        return maxLines;
+    }
+
+    public synchronized int getRotationLines()
+    {
+        return rotationLines;
+    }
+
+    public synchronized long getDwellMS()
+    {
+        return dwellMS;
+    }
+
+    //
+    // Symbols subscribed to, and the controllers on them. The
+    // difference is the lines saved by sharing.
+    //
+    public synchronized int getSubscriptionCount()
+    {
+        return ranked.size();
+    }
+
+    public synchronized int getListenerCount()
+    {
+        return listenerCount;
+    }
+
+    public synchronized int getLiveCount()
+    {
+        return liveCount;
+    }
+
+    public synchronized int getPinnedCount()
+    {
+        return pinnedCount();
+    }
+
+    public synchronized int getRotatingCount()
+    {
+        return ranked.size() - pinnedCount();
+    }
+
+    //
+    // How many times a line has changed hands in rotation
+    //
+    public synchronized long getSwaps()
+    {
+        return swaps;
+    }
+
+    public synchronized boolean isLive( Controller controller, String symbol )
+    {
+        Subscription sub = find( controller, symbol );
+
+        return sub != null && sub.live;
+    }
+
+    //
+    // About the longest a rotating subscription goes without a line,
+    // given how many are sharing how many lines. Zero when nothing
+    // needs to rotate.
+    //
+    public synchronized long getStalenessBoundMS()
+    {
+        int rotating = ranked.size() - pinnedCount();
+        int lines = maxLines - pinnedCount();
+
+        if( rotating <= lines || lines <= 0 )
+        {
+            return 0;
+        }
+
+        long turns = (rotating + lines - 1) / lines;
+
+        return (turns - 1) * dwellMS + ROTATION_TICK_MS;
+    }
+
+    //
+    // The longest any subscription has actually gone without a line,
+    // up to now
+    //
+    public synchronized long getMaxStalenessMS()
+    {
+        long now = clock.currentTime();
+        long max = maxStalenessMS;
+
+        for( Subscription sub : waiting )
+        {
+            max = Math.max( max, now - sub.offSince );
+        }
+
+        return max;
+    }
+
+    public synchronized String toString()
+    {
+        return "Market data lines: " + liveCount + "/" + maxLines + " live" +
+            ", " + pinnedCount() + " pinned" +
+            ", " + (ranked.size() - pinnedCount()) + " rotating" +
+            ", " + swaps + " swaps" +
+            ", " + (listenerCount - ranked.size()) + " shared" +
+            ", staleness bound " + getStalenessBoundMS() + "ms";
+    }
+
+    //
+    // Internals. All called holding the lock.
+    //
+
+    //
+    // The subscription to a symbol, if the controller is on it
+    //
+    private Subscription find( Controller controller, String symbol )
+    {
+        Subscription sub = subscriptions.get( symbol );
+
+        return (sub == null || sub.listeners.containsKey( controller ) == false) ? null : sub;
+    }
+
+    //
+    // Add a controller to a subscription someone else already has,
+    // or change its priority if it is on it already
+    //
+    private void join( Subscription sub, Controller controller, int priority )
+        throws TwsSubsystemException
+    {
+        if( sub.listeners.containsKey( controller ) )
+        {
+            setPriority( controller, sub.symbol, priority );
+            return;
+        }
+
+        long now = clock.currentTime();
+
+        sub.listeners.put( controller, priority );
+
+        if( sub.live && setListeners( sub ) == false )
+        {
+            sub.listeners.remove( controller );
+
+            throw new TwsSubsystemException( sub.lastError );
+        }
+
+        listenerCount++;
+
+        rerank( sub, now );
+
+        if( sub.pinned && sub.live == false )
+        {
+            remove( controller, sub.symbol );
+
+            throw new TwsSubsystemException( sub.lastError );
+        }
+    }
+
+    //
+    // A subscription ranks at its highest listener's priority
+    //
+    private void rerank( Subscription sub, long now )
+    {
+        int priority = Integer.MIN_VALUE;
+
+        for( int listenerPriority : sub.listeners.values() )
+        {
+            priority = Math.max( priority, listenerPriority );
+        }
+
+        if( priority == sub.priority )
+        {
+            return;
+        }
+
+        ranked.remove( sub );
+        sub.priority = priority;
+        ranked.add( sub );
+
+        rebalance( now );
+    }
+
+    //
+    // Drop a subscription from the books, leaving its line alone
+    //
+    private void forget( Subscription sub )
+    {
+        subscriptions.remove( sub.symbol );
+
+        listenerCount -= sub.listeners.size();
+
+        ranked.remove( sub );
+        waiting.remove( sub );
+        liveRotating.remove( sub );
+    }
+
+    //
+    // Everything gets a line if there are enough; otherwise
+    // all but the rotation lines go to the highest priorities
+    //
+    private int pinnedCount()
+    {
+        int total = ranked.size();
+
+        return (total <= maxLines) ? total : maxLines - rotationLines;
+    }
+
+    //
+    // Bring the lines in line with the current subscriptions,
+    // priorities and limits
+    //
+    private void rebalance( long now )
+    {
+        int pinnedCount = pinnedCount();
+
+        //
+        // Work out who is pinned now
+        //
+        int rank = 0;
+
+        for( Subscription sub : ranked )
+        {
+            boolean pin = (rank++ < pinnedCount);
+
+            if( pin == sub.pinned )
+            {
+                continue;
+            }
+
+            sub.pinned = pin;
+
+            if( pin )
+            {
+                waiting.remove( sub );
+                liveRotating.remove( sub );
+            }
+            else if( sub.live )
+            {
+                sub.liveSince = now;
+                liveRotating.addLast( sub );
+            }
+            else
+            {
+                waiting.addLast( sub );
+            }
+        }
+
+        //
+        // Pinned subscriptions without a line take one from
+        // the rotation if need be
+        //
+        for( Subscription sub : ranked )
+        {
+            if( sub.pinned == false )
+            {
+                break;
+            }
+
+            if( sub.live )
+            {
+                continue;
+            }
+
+            if( liveCount >= maxLines )
+            {
+                if( liveRotating.isEmpty() )
+                {
+                    break;
+                }
+
+                Subscription victim = liveRotating.removeFirst();
+
+                close( victim, now );
+                waiting.addLast( victim );
+            }
+
+            open( sub, now );
+        }
+
+        //
+        // The limit came down: shed rotating lines, oldest first
+        //
+        while( liveCount > maxLines && liveRotating.isEmpty() == false )
+        {
+            Subscription victim = liveRotating.removeFirst();
+
+            close( victim, now );
+            waiting.addLast( victim );
+        }
+
+        fillFreeLines( now, Integer.MAX_VALUE );
+    }
+
+    //
+    // Give free lines to the subscriptions that have waited longest
+    //
+    private void fillFreeLines( long now, int max )
+    {
+        int tries = Math.min( max, waiting.size() );
+
+        while( tries-- > 0 && liveCount < maxLines )
+        {
+            Subscription sub = waiting.removeFirst();
+
+            if( open( sub, now ) )
+            {
+                liveRotating.addLast( sub );
+            }
+            else
+            {
+                waiting.addLast( sub );
+            }
+        }
+    }
+
+    private boolean open( Subscription sub, long now )
+    {
+        try
+        {
+            twsSubsystem.openMktDataLine( sub.symbol, sub.getListeners() );
+        }
+        catch( Exception e )
+        {
+            sub.lastError = "Exception requesting mkt stk data: " + e.getMessage();
+
+            System.out.println( sub.lastError );
+
+            return false;
+        }
+
+        maxStalenessMS = Math.max( maxStalenessMS, now - sub.offSince );
+
+        sub.live = true;
+        sub.liveSince = now;
+
+        liveCount++;
+
+        return true;
+    }
+
+    private boolean close( Subscription sub, long now )
+    {
+        sub.live = false;
+        sub.offSince = now;
+
+        liveCount--;
+
+        try
+        {
+            twsSubsystem.closeMktDataLine( sub.symbol );
+        }
+        catch( Exception e )
+        {
+            sub.lastError = "Exception canceling mkt stk data: " + e.getMessage();
+
+            System.out.println( sub.lastError );
+
+            return false;
+        }
+
+        return true;
+    }
+
+    //
+    // Tell a live line who its ticks go to now
+    //
+    private boolean setListeners( Subscription sub )
+    {
+        try
+        {
+            twsSubsystem.setMktDataListeners( sub.symbol, sub.getListeners() );
+        }
+        catch( Exception e )
+        {
+            sub.lastError = "Exception changing mkt stk data listeners: " + e.getMessage();
+
+            System.out.println( sub.lastError );
+
+            return false;
+        }
+
+        return true;
+    }
+
+    //
+    // One symbol's subscription, and the controllers on it
+    //
+    static final class Subscription
+    {
+
+        final String symbol;
+        final long seq;
+
+        //
+        // Controller -> the priority it asked for, in the order
+        // they joined
+        //
+        final LinkedHashMap<Controller, Integer> listeners = new LinkedHashMap<Controller, Integer>();
+
+        int priority;
+
+        boolean pinned = false;
+        boolean live = false;
+
+        //
+        // When it last got a line, and last lost one
+        // (or was added)
+        //
+        long liveSince = 0;
+        long offSince = 0;
+
+        String lastError;
+
+        Subscription( String symbol, int priority, long seq )
+        {
+            this.symbol = symbol;
+            this.priority = priority;
+            this.seq = seq;
+        }
+
+        Controller[] getListeners()
+        {
+            return listeners.keySet().toArray( new Controller[ listeners.size() ] );
+        }
+
+    }
+
+}
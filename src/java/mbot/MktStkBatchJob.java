@@ -0,0 +1,196 @@
+package mbot;
+
+// Java imports
+import java.util.LinkedList;
+import java.util.List;
+
+//
+// Sends a batch of market data subscription changes, in order, and
+// records how each one went so the controller can report on the batch
+// when it completes. The batch is taken from the controller's pending
+// changes when the job runs, not when it is scheduled, so changes that
+// come in while it waits its turn still make it in (or cancel out).
+//
+public class MktStkBatchJob extends Job
+{
+
+    //
+    // Change types
+    //
+    public static final int CHANGE_START_FEED = MktStkJob.JOB_START_FEED;
+    public static final int CHANGE_STOP_FEED = MktStkJob.JOB_STOP_FEED;
+
+    //
+    // Batches are numbered per controller, for reporting
+    //
+    private long batchNumber;
+
+    private TwsSubsystem twsSubsystem;
+
+    private MktStkController feedController;
+
+    //
+    // What to send, filled in by MktStkController.takeFeedBatch()
+    //
+    LinkedList<FeedChange> changes;
+
+    //
+    // Start/stop pairs that canceled out before this batch was taken
+    //
+    int canceledOut = 0;
+
+    //
+    // What happened. Filled in as the batch runs.
+    //
+    private LinkedList<String> started;
+    private LinkedList<String> stopped;
+    private LinkedList<String> failed;
+
+    //
+    // Anything not sent because the job was canceled partway
+    //
+    private LinkedList<FeedChange> unsent;
+
+    //
+    // Contstructor
+    //
+    public MktStkBatchJob( long batchNumber,
+                           TwsSubsystem twsSubsystem,
+                           MktStkController controller )
+    {
+
+        this.batchNumber = batchNumber;
+        this.twsSubsystem = twsSubsystem;
+        this.controller = controller;
+        this.feedController = controller;
+
+        changes = new LinkedList<FeedChange>();
+
+        started = new LinkedList<String>();
+        stopped = new LinkedList<String>();
+        failed = new LinkedList<String>();
+        unsent = new LinkedList<FeedChange>();
+
+        //
+        // Subscription changes shouldn't wait behind anything
+        //
+        this.lane = JOB_LANE_REALTIME;
+
+    }
+
+    //
+    // Implement job::executeJob()
+    //
+    public void executeJob()
+        throws JobException
+    {
+
+        feedController.takeFeedBatch( this );
+
+        while( changes.isEmpty() == false )
+        {
+
+            //
+            // Stop between messages if canceled, and hand back
+            // whatever is left
+            //
+            if( Thread.currentThread().isInterrupted() )
+            {
+                unsent.addAll( changes );
+                changes.clear();
+
+                throw new JobException("Feed batch " + batchNumber + " canceled");
+            }
+
+            FeedChange change = changes.removeFirst();
+
+            try
+            {
+                if( change.type == CHANGE_START_FEED )
+                {
+                    twsSubsystem.requestMktStkData( controller, change.symbol );
+                    started.add( change.symbol );
+                }
+                else
+                {
+                    twsSubsystem.cancelMktStkData( controller, change.symbol );
+                    stopped.add( change.symbol );
+                }
+            }
+            catch( TwsSubsystemException e )
+            {
+                System.out.println("Exception changing mkt stk feed for " + change.symbol + ": " + e.getMessage() );
+
+                failed.add( change.symbol );
+            }
+
+        }
+
+    }
+
+    //
+    // Batches go out in order
+    //
+    public Object getShardKey()
+    {
+        return controller;
+    }
+
+    public long getBatchNumber()
+    {
+        return batchNumber;
+    }
+
+    public List<String> getStarted()
+    {
+        return started;
+    }
+
+    public List<String> getStopped()
+    {
+        return stopped;
+    }
+
+    public List<String> getFailed()
+    {
+        return failed;
+    }
+
+    public List<FeedChange> getUnsent()
+    {
+        return unsent;
+    }
+
+    public int getCanceledOut()
+    {
+        return canceledOut;
+    }
+
+    public String toString()
+    {
+        return "Feed batch " + batchNumber +
+            ": started " + started.size() +
+            ", stopped " + stopped.size() +
+            ", failed " + failed.size() +
+            ", unsent " + unsent.size() +
+            ", canceled out " + canceledOut;
+    }
+
+    //
+    // One subscription change
+    //
+    public static final class FeedChange
+    {
+
+        public final String symbol;
+        public final int type;
+
+        public FeedChange( String symbol, int type )
+        {
+            this.symbol = symbol;
+            this.type = type;
+        }
+
+    }
+
+}
@@ -13,16 +13,59 @@ import samples.base.StkContract;
 import java.lang.Math;
 import java.util.LinkedList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 //
 // This is a controller responsible for handling the real-time
 // stock market datafeed (MktStk). 
 //
 
-public class MktStkController extends Controller
+public class MktStkController extends Controller implements Refreshable
 {
 
+    //
+    // How often to pick up changes to Control/MktStk/Active
+    //
+    public static final long REFRESH_PERIOD_MS = 30 * 1000;
+
+    //
+    // Feed changes are sent in batches rather than a job per symbol.
+    // TWS disconnects clients that send more than 50 messages a second,
+    // so at most FEED_BATCH_SIZE changes go out per FEED_BATCH_INTERVAL_MS,
+    // which leaves some headroom for everything else on the connection.
+    //
+    public static final int TWS_MESSAGES_PER_SECOND = 50;
+    public static final int FEED_BATCH_SIZE = 40;
+    public static final long FEED_BATCH_INTERVAL_MS = 1000;
+
+    //
+    // Feed changes not sent yet, in the order they were asked for.
+    // A start and a stop for the same symbol cancel each other out.
+    //
+    LinkedHashMap<String, Integer> pendingFeedChanges;
+
+    //
+    // Whether a batch job is waiting or running. Only one at a time,
+    // so batches go out in order.
+    //
+    boolean batchScheduled = false;
+
+    //
+    // Earliest time the next batch may start
+    //
+    long nextBatchTime = 0;
+
+    long nextBatchNumber = 1;
+
+    //
+    // Pairs that canceled out since the last batch was taken
+    //
+    int canceledOutChanges = 0;
+
     //
     // List of symbols we are receive feeds on
     //
@@ -43,10 +86,12 @@ public class MktStkController extends Controller
         controllerName = "MktStk";
         cassandraKeyspace = "MktStk";
 
-        pendingJobs = new LinkedList<Job>();
+        pendingJobs = new HashSet<Job>();
 
         activeSymbols = new LinkedList<String>();
 
+        pendingFeedChanges = new LinkedHashMap<String, Integer>();
+
     }
 
     //
@@ -230,24 +275,12 @@ public class MktStkController extends Controller
         //contract,
         //false );
     
-        Job job = new MktStkJob( MktStkJob.JOB_START_FEED,
-                                 twsSubsystem,
-                                 this,
-                                 symbol );
         //
         // Track the active symbols
         //
         activeSymbols.add( symbol );
 
-        //
-        // Add the job to the queue so we can get it later
-        //
-        pendingJobs.add( job );
-
-        //
-        // Schedule the job 
-        //
-        scheduler.scheduleNow( job );
+        queueFeedChange( symbol, MktStkBatchJob.CHANGE_START_FEED );
 
     }
 
@@ -262,21 +295,91 @@ public class MktStkController extends Controller
 
         System.out.println( "Canceling feed for " + symbol );
 
-        Job job = new MktStkJob( MktStkJob.JOB_STOP_FEED,
-                                 twsSubsystem,
-                                 this,
-                                 symbol );
+        queueFeedChange( symbol, MktStkBatchJob.CHANGE_STOP_FEED );
 
-        //
-        // Add the job to the queue so we can get it later
-        //
-        pendingJobs.add( job );
+    }
 
-        //
-        // Schedule the job 
-        //
-        scheduler.scheduleNow( job );
+    //
+    // Add a change to the pending batch, and make sure a batch job
+    // is on the way to send it
+    //
+    private synchronized void queueFeedChange( String symbol, int type )
+        throws SchedulerException
+    {
+        addFeedChange( symbol, type );
+
+        scheduleFeedBatch();
+    }
+
+    private synchronized void addFeedChange( String symbol, int type )
+    {
+        Integer pending = pendingFeedChanges.get( symbol );
+
+        if( pending != null && pending != type )
+        {
+            //
+            // Started then stopped (or the other way round) before
+            // either went out, so neither needs to
+            //
+            pendingFeedChanges.remove( symbol );
+            canceledOutChanges++;
+
+            return;
+        }
 
+        pendingFeedChanges.put( symbol, type );
+    }
+
+    //
+    // Schedule a batch job if there are changes and none is scheduled.
+    // It runs no sooner than a batch interval after the last one.
+    //
+    private synchronized void scheduleFeedBatch()
+        throws SchedulerException
+    {
+        if( batchScheduled == true || pendingFeedChanges.isEmpty() )
+        {
+            return;
+        }
+
+        MktStkBatchJob job = new MktStkBatchJob( nextBatchNumber++, twsSubsystem, this );
+
+        long startTime = Math.max( scheduler.currentTime(), nextBatchTime );
+
+        batchScheduled = true;
+
+        try
+        {
+            trackJob( scheduler.scheduleAtTime( job, startTime ) );
+        }
+        catch( SchedulerException e )
+        {
+            batchScheduled = false;
+            throw e;
+        }
+    }
+
+    //
+    // Called by a batch job when it starts, to take the oldest
+    // changes, up to a batch worth
+    //
+    synchronized void takeFeedBatch( MktStkBatchJob job )
+    {
+        Iterator<Map.Entry<String, Integer>> iter = pendingFeedChanges.entrySet().iterator();
+
+        while( iter.hasNext() && job.changes.size() < FEED_BATCH_SIZE )
+        {
+            Map.Entry<String, Integer> entry = iter.next();
+
+            job.changes.add( new MktStkBatchJob.FeedChange( entry.getKey(), entry.getValue() ) );
+
+            iter.remove();
+        }
+
+        job.canceledOut = canceledOutChanges;
+        canceledOutChanges = 0;
+
+        nextBatchTime = scheduler.currentTime() + FEED_BATCH_INTERVAL_MS;
     }
 
     //
@@ -286,6 +389,40 @@ public class MktStkController extends Controller
     {
         pendingJobs.remove( job );
 
+        if( job instanceof MktStkBatchJob )
+        {
+            MktStkBatchJob batch = (MktStkBatchJob) job;
+
+            batchScheduled = false;
+
+            System.out.println( batch );
+
+            //
+            // Anything a canceled batch didn't get to goes back in line,
+            // unless it has been canceled out in the meantime
+            //
+            for( MktStkBatchJob.FeedChange change : batch.getUnsent() )
+            {
+                addFeedChange( change.symbol, change.type );
+            }
+
+            //
+            // Keep draining, unless the batch was canceled (e.g. we are
+            // shutting down); then the next change picks things up
+            //
+            if( job.jobStatus == Job.JOB_STATUS_COMPLETE )
+            {
+                try
+                {
+                    scheduleFeedBatch();
+                }
+                catch( SchedulerException e )
+                {
+                    System.out.println("Failed to schedule feed batch: " + e.getMessage());
+                }
+            }
+        }
+
     }
 
 
@@ -24,11 +24,6 @@ public class MktStkJob extends Job
     //
     private TwsSubsystem twsSubsystem;
 
-    //
-    // The controller that issued this job
-    //
-    private Controller controller;
-
     //
     // The client Id to use for this job
     //
@@ -102,6 +97,11 @@ public class MktStkJob extends Job
         this.controller = controller;
         this.symbol = symbol;
 
+        //
+        // Subscription changes shouldn't wait behind anything
+        //
+        this.lane = JOB_LANE_REALTIME;
+
     }
 
     //
@@ -124,6 +124,14 @@ public class MktStkJob extends Job
 
     }
 
+    //
+    // A stop mustn't overtake the start for the same symbol
+    //
+    public Object getShardKey()
+    {
+        return symbol;
+    }
+
     public void cancelJob()
     {
         //
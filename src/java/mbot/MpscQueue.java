@@ -0,0 +1,95 @@
+package mbot;
+
+// Java imports
+import java.util.concurrent.atomic.AtomicReference;
+
+//
+// An unbounded, lock-free, multi-producer single-consumer queue.
+//
+// Producers swap themselves onto the head with one atomic exchange and
+// then link the previous node to the new one, so offer() never blocks
+// and never retries. The single consumer walks from the tail. There is
+// a short window between the exchange and the link where the consumer
+// can't see the new node yet; poll() just reports empty in that case,
+// so producers must wake the consumer *after* offer() returns.
+//
+// Only one thread may call poll() and isEmpty().
+//
+public class MpscQueue<T>
+{
+
+    static final class Node<T>
+    {
+        volatile Node<T> next;
+        T value;
+
+        Node( T value )
+        {
+            this.value = value;
+        }
+    }
+
+    //
+    // Producers append here
+    //
+    private final AtomicReference<Node<T>> head;
+
+    //
+    // The consumer reads from here. This is always a consumed
+    // (or the initial dummy) node; the next item is tail.next.
+    //
+    private Node<T> tail;
+
+    public MpscQueue()
+    {
+        Node<T> dummy = new Node<T>( null );
+
+        head = new AtomicReference<Node<T>>( dummy );
+        tail = dummy;
+    }
+
+    //
+    // Add an item. Safe to call from any thread.
+    //
+    public void offer( T value )
+    {
+        Node<T> node = new Node<T>( value );
+
+        Node<T> prev = head.getAndSet( node );
+
+        prev.next = node;
+    }
+
+    //
+    // Take the oldest item, or null if there is nothing visible yet.
+    // Consumer thread only.
+    //
+    public T poll()
+    {
+        Node<T> next = tail.next;
+
+        if( next == null )
+        {
+            return null;
+        }
+
+        T value = next.value;
+
+        //
+        // The node becomes the new dummy, don't hang on to its value
+        //
+        next.value = null;
+        tail = next;
+
+        return value;
+    }
+
+    //
+    // Consumer thread only
+    //
+    public boolean isEmpty()
+    {
+        return tail.next == null;
+    }
+
+}
@@ -0,0 +1,278 @@
+package mbot;
+
+//
+// Decodes IB RTVolume tick strings in place, without allocating:
+//
+//  lastPrice;lastSize;lastTimeMS;totalVolume;VWAP;isSingleTrade
+//
+// The fields are parsed straight from the characters into this
+// object, which is reused for every tick, so one parser belongs to one
+// thread (a TWS reader thread, in TwsConnection).
+//
+// IB leaves fields empty when they don't apply, e.g. the price and
+// size on a volume-only update (";;1300000000000;5000;1.2;false").
+// Empty prices come back as NO_PRICE and empty counts as NO_VALUE.
+//
+public final class RTVolumeParser
+{
+
+    public static final double NO_PRICE = Double.NaN;
+    public static final long NO_VALUE = -1;
+
+    static final int FIELD_COUNT = 6;
+
+    //
+    // Mantissas longer than this may not fit a long exactly
+    //
+    static final int MAX_DIGITS = 18;
+
+    static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+        1e21, 1e22
+    };
+
+    //
+    // The last tick parsed
+    //
+    public double lastPrice;
+    public long lastSize;
+    public long lastTimeMS;
+    public long totalVolume;
+    public double vwap;
+    public boolean isSingleTrade;
+
+    //
+    // Parse a tick into the fields above. Returns false, leaving the
+    // fields in an undefined state, if it isn't a well formed RTVolume.
+    //
+    public boolean parse( CharSequence value )
+    {
+        if( value == null )
+        {
+            return false;
+        }
+
+        int length = value.length();
+        int start = 0;
+
+        for( int field = 0; field < FIELD_COUNT; field++ )
+        {
+            int end = start;
+
+            while( end < length && value.charAt( end ) != ';' )
+            {
+                end++;
+            }
+
+            //
+            // Only the last field may run to the end of the string,
+            // and nothing may follow it
+            //
+            if( (end == length) != (field == FIELD_COUNT - 1) )
+            {
+                return false;
+            }
+
+            //
+            // An empty field is fine; a field that is there but
+            // doesn't parse means this isn't an RTVolume at all
+            //
+            boolean empty = (start == end);
+
+            switch( field )
+            {
+            case 0:
+                lastPrice = parsePrice( value, start, end );
+                if( Double.isNaN( lastPrice ) && empty == false )
+                {
+                    return false;
+                }
+                break;
+            case 1:
+                lastSize = parseCount( value, start, end );
+                if( lastSize == NO_VALUE && empty == false )
+                {
+                    return false;
+                }
+                break;
+            case 2:
+                lastTimeMS = parseCount( value, start, end );
+                if( lastTimeMS == NO_VALUE && empty == false )
+                {
+                    return false;
+                }
+                break;
+            case 3:
+                totalVolume = parseCount( value, start, end );
+                if( totalVolume == NO_VALUE && empty == false )
+                {
+                    return false;
+                }
+                break;
+            case 4:
+                vwap = parsePrice( value, start, end );
+                if( Double.isNaN( vwap ) && empty == false )
+                {
+                    return false;
+                }
+                break;
+            default:
+                isSingleTrade = parseFlag( value, start, end );
+            }
+
+            start = end + 1;
+        }
+
+        return true;
+    }
+
+    //
+    // A non-negative integer, or NO_VALUE if the field is empty or bad
+    //
+    static long parseCount( CharSequence value, int start, int end )
+    {
+        if( start == end || end - start > MAX_DIGITS )
+        {
+            return NO_VALUE;
+        }
+
+        long result = 0;
+
+        for( int i = start; i < end; i++ )
+        {
+            char c = value.charAt( i );
+
+            if( c < '0' || c > '9' )
+            {
+                return NO_VALUE;
+            }
+
+            result = result * 10 + (c - '0');
+        }
+
+        return result;
+    }
+
+    //
+    // A decimal, or NO_PRICE if the field is empty or bad. Plain
+    // decimals of up to MAX_DIGITS digits are parsed exactly here;
+    // anything longer or in exponent form goes to Double.parseDouble,
+    // which allocates but IB doesn't send such prices.
+    //
+    static double parsePrice( CharSequence value, int start, int end )
+    {
+        if( start == end )
+        {
+            return NO_PRICE;
+        }
+
+        int i = start;
+        boolean negative = false;
+
+        if( value.charAt( i ) == '-' )
+        {
+            negative = true;
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+
+        for( ; i < end; i++ )
+        {
+            char c = value.charAt( i );
+
+            if( c >= '0' && c <= '9' )
+            {
+                //
+                // Leading zeros don't use up precision
+                //
+                if( mantissa != 0 || c != '0' )
+                {
+                    digits++;
+                }
+
+                if( digits > MAX_DIGITS )
+                {
+                    return parseSlowly( value, start, end );
+                }
+
+                mantissa = mantissa * 10 + (c - '0');
+
+                if( point )
+                {
+                    scale++;
+                }
+            }
+            else if( c == '.' && point == false )
+            {
+                point = true;
+            }
+            else if( c == 'e' || c == 'E' )
+            {
+                return parseSlowly( value, start, end );
+            }
+            else
+            {
+                return NO_PRICE;
+            }
+        }
+
+        if( i == start + (negative ? 1 : 0) || scale >= POWERS_OF_TEN.length )
+        {
+            return parseSlowly( value, start, end );
+        }
+
+        //
+        // Exact when the mantissa fits in a double's 53 bits, since
+        // the power of ten is exact too and the division rounds once
+        //
+        if( mantissa >= (1L << 53) )
+        {
+            return parseSlowly( value, start, end );
+        }
+
+        double result = mantissa / POWERS_OF_TEN[ scale ];
+
+        return negative ? -result : result;
+    }
+
+    private static double parseSlowly( CharSequence value, int start, int end )
+    {
+        try
+        {
+            return Double.parseDouble( value.subSequence( start, end ).toString() );
+        }
+        catch( NumberFormatException e )
+        {
+            return NO_PRICE;
+        }
+    }
+
+    //
+    // "true" or "1", any case. Anything else, including empty, is false.
+    //
+    static boolean parseFlag( CharSequence value, int start, int end )
+    {
+        int length = end - start;
+
+        if( length == 1 )
+        {
+            return value.charAt( start ) == '1';
+        }
+
+        if( length != 4 )
+        {
+            return false;
+        }
+
+        return Character.toLowerCase( value.charAt( start ) ) == 't' &&
+            Character.toLowerCase( value.charAt( start + 1 ) ) == 'r' &&
+            Character.toLowerCase( value.charAt( start + 2 ) ) == 'u' &&
+            Character.toLowerCase( value.charAt( start + 3 ) ) == 'e';
+    }
+
+}
@@ -0,0 +1,81 @@
+package mbot;
+
+//
+// A single pacing rule. Rules are grouped by category in a RateLimiter,
+// and each rule is scoped on one of the keys a job reports: everything
+// in the category, the job's contract, or the job's request fingerprint.
+//
+// Rules are only called by the RateLimiter, under its lock.
+//
+public abstract class RateLimitRule
+{
+
+    //
+    // What the rule is keyed on
+    //
+    public static final int SCOPE_GLOBAL = 0;
+    public static final int SCOPE_CONTRACT = 1;
+    public static final int SCOPE_FINGERPRINT = 2;
+
+    //
+    // Key used for SCOPE_GLOBAL
+    //
+    static final String GLOBAL_KEY = "";
+
+    protected int scope;
+
+    protected RateLimitRule( int scope )
+    {
+        this.scope = scope;
+    }
+
+    //
+    // The key this rule tracks the job under, or null if
+    // the job doesn't report that key (the rule then doesn't apply)
+    //
+    String keyFor( Job job )
+    {
+        switch( scope )
+        {
+        case SCOPE_CONTRACT:
+            return job.getRateLimitContract();
+        case SCOPE_FINGERPRINT:
+            return job.getRateLimitFingerprint();
+        default:
+            return GLOBAL_KEY;
+        }
+    }
+
+    //
+    // Same, from keys saved off earlier (e.g. by the job journal)
+    //
+    String keyFor( String contract, String fingerprint )
+    {
+        switch( scope )
+        {
+        case SCOPE_CONTRACT:
+            return contract;
+        case SCOPE_FINGERPRINT:
+            return fingerprint;
+        default:
+            return GLOBAL_KEY;
+        }
+    }
+
+    //
+    // The earliest time, at or after now, that one more request
+    // under this key would be allowed
+    //
+    abstract long nextAllowedTime( String key, long now );
+
+    //
+    // Note that a request went out under this key at the given time
+    //
+    abstract void record( String key, long time );
+
+    //
+    // Forget keys that can no longer hold anything back
+    //
+    abstract void prune( long now );
+
+}
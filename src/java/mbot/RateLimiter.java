@@ -0,0 +1,144 @@
+package mbot;
+
+// Java imports
+import java.util.HashMap;
+import java.util.LinkedList;
+
+//
+// Central pacing for rate-limited requests (e.g. IB historical data).
+//
+// Rules are registered under a category name. A job reports which
+// category it falls under, along with its contract and fingerprint
+// keys, and the scheduler asks the limiter before releasing it. If any
+// rule in the category would be broken the job is held back until the
+// earliest time all of them allow it; otherwise the request is recorded
+// against every rule and the job goes ahead.
+//
+public class RateLimiter
+{
+
+    //
+    // Prune stale keys every so many acquires
+    //
+    static final int PRUNE_INTERVAL = 1024;
+
+    HashMap<String, LinkedList<RateLimitRule>> rules;
+
+    int acquiresSincePrune = 0;
+
+    public RateLimiter()
+    {
+        rules = new HashMap<String, LinkedList<RateLimitRule>>();
+    }
+
+    //
+    // Register a rule under a category
+    //
+    public synchronized void addRule( String category, RateLimitRule rule )
+    {
+        LinkedList<RateLimitRule> list = rules.get( category );
+
+        if( list == null )
+        {
+            list = new LinkedList<RateLimitRule>();
+            rules.put( category, list );
+        }
+
+        list.add( rule );
+    }
+
+    public synchronized boolean hasRules( String category )
+    {
+        return rules.containsKey( category );
+    }
+
+    //
+    // Returns now if the job may go ahead, in which case the request
+    // has been recorded. Otherwise returns the earliest time to try
+    // again, and nothing is recorded.
+    //
+    public synchronized long acquire( Job job, long now )
+    {
+        String category = job.getRateLimitCategory();
+
+        if( category == null )
+        {
+            return now;
+        }
+
+        LinkedList<RateLimitRule> list = rules.get( category );
+
+        if( list == null )
+        {
+            return now;
+        }
+
+        if( ++acquiresSincePrune >= PRUNE_INTERVAL )
+        {
+            acquiresSincePrune = 0;
+
+            for( LinkedList<RateLimitRule> categoryRules : rules.values() )
+            {
+                for( RateLimitRule rule : categoryRules )
+                {
+                    rule.prune( now );
+                }
+            }
+        }
+
+        long allowedTime = now;
+
+        for( RateLimitRule rule : list )
+        {
+            String key = rule.keyFor( job );
+
+            if( key != null )
+            {
+                allowedTime = Math.max( allowedTime, rule.nextAllowedTime( key, now ) );
+            }
+        }
+
+        if( allowedTime > now )
+        {
+            return allowedTime;
+        }
+
+        for( RateLimitRule rule : list )
+        {
+            String key = rule.keyFor( job );
+
+            if( key != null )
+            {
+                rule.record( key, now );
+            }
+        }
+
+        return now;
+    }
+
+    //
+    // Record a request that went out earlier, without checking any
+    // limits. Used to rebuild the windows from the job journal after
+    // a restart; requests should be restored oldest first.
+    //
+    public synchronized void restore( String category, String contract, String fingerprint, long time )
+    {
+        LinkedList<RateLimitRule> list = rules.get( category );
+
+        if( list == null )
+        {
+            return;
+        }
+
+        for( RateLimitRule rule : list )
+        {
+            String key = rule.keyFor( contract, fingerprint );
+
+            if( key != null )
+            {
+                rule.record( key, time );
+            }
+        }
+    }
+
+}
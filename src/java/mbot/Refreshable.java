@@ -0,0 +1,17 @@
+package mbot;
+
+//
+// A controller whose work can be re-read from Control while it runs,
+// e.g. to pick up symbols added or removed since it started. Only
+// these can be put on a periodic refresh (see Scheduler.scheduleRefresh).
+//
+public interface Refreshable
+{
+
+    //
+    // Re-read this controller's work from Control
+    //
+    public void refreshFromControl()
+        throws Exception;
+
+}
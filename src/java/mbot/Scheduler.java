@@ -1,29 +1,128 @@
 package mbot;
 
 // Java imports
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.ObjectName;
 
 
 //
 // The scheduler allows for jobs to be scheduled over time.
 // They are store in a sorted queue and run in order as 
+// their start time comes up.
 //
+// Jobs are run on a bounded pool of worker threads rather than
+// a thread per job, so thread count stays flat no matter how
+// many jobs are queued at once.
+//
+// All of the queues are owned by the evaluator thread. Other threads
+// never lock anything to talk to it: schedule calls and completions
+// are pushed onto a lock-free intake queue, and the evaluator drains
+// that queue each time around its loop. The evaluator only parks when
+// the intake is empty, and producers only unpark it when it has said
+// it is about to park.
+//
+// Each controller gets a fair share of its lanes, set by its weight,
+// and can have a cap on how many of its jobs are queued; past the cap
+// new jobs are rejected or deferred (see ControllerQueue), so a
+// flood of submissions can't grow the queues without bound.
+//
+// The scheduler can be split into several evaluator shards (see
+// setShardCount), each with its own evaluator thread and queues, when
+// one evaluator can't keep up. The scheduler the controllers talk to
+// is the first shard and routes each job to its shard by key.
+//
+// Time comes from a pluggable SchedulerClock. With a VirtualClock the
+// evaluator doesn't park for the next due job; once nothing is running
+// it moves the clock straight to that job's start time.
 //
 public class Scheduler implements Runnable
 {
 
+    //
+    // Default sizing for the worker pool
+    //
+    public static final int DEFAULT_POOL_SIZE = 8;
+    public static final int DEFAULT_WORK_QUEUE_SIZE = 1024;
+
+    //
+    // Execution modes. Pooled runs jobs on a fixed set of platform
+    // threads. Virtual runs each job on its own virtual thread, which
+    // suits jobs that mostly block on sockets; there the pool size
+    // becomes a cap on concurrently running jobs instead, by default
+    // DEFAULT_MAX_VIRTUAL_JOBS. Virtual threads need Java 21.
+    //
+    public static final int EXECUTION_POOLED = 0;
+    public static final int EXECUTION_VIRTUAL = 1;
+
+    public static final int DEFAULT_MAX_VIRTUAL_JOBS = 10000;
+
+    //
+    // How long an idle worker thread hangs around, in MS
+    //
+    static final long WORKER_KEEP_ALIVE_MS = 60 * 1000;
+
+    //
+    // A lane with due jobs that has been passed over this many times
+    // in a row for higher lanes gets served next regardless
+    //
+    public static final int DEFAULT_STARVATION_LIMIT = 16;
+
+    //
+    // Parking can overshoot its deadline by tens of microseconds or
+    // more. Within this many NS of the next due job the evaluator spins
+    // instead, so the job starts right on time. Off by default.
+    //
+    public static final long DEFAULT_SPIN_THRESHOLD_NS = 0;
+
+    //
+    // Most failed jobs kept on the dead-letter list
+    //
+    public static final int MAX_DEAD_LETTERS = 1000;
+
+    //
+    // Most due jobs a busy shard offers up for stealing at a time
+    //
+    public static final int STEAL_BATCH = 8;
+
     //
     // The backing thread for the scheduler
     //
-    Thread thread;
+    volatile Thread thread;
+
+    //
+    // Requests from other threads to the evaluator
+    //
+    MpscQueue<Request> intake = null;
+
+    //
+    // Set by the evaluator just before it parks, so producers
+    // only pay for an unpark() when it is actually asleep
+    //
+    volatile boolean evaluatorParked = false;
 
     //
     // This is where jobs wait until they are scheduled to run
     //
-    TreeSet<Job> waitingQueue = null;
+    WaitingQueue waitingQueue = null;
 
     //
     // This is where running jobs are stored
@@ -36,260 +135,2245 @@ public class Scheduler implements Runnable
     TreeSet<Job> completedQueue = null;
 
     //
-    // Constructor
+    // Jobs that are due but haven't been handed to the pool yet,
+    // one queue per priority lane (see Job.JOB_LANE_*)
     //
-    public Scheduler()
-    {
-        waitingQueue = new TreeSet<Job>();
-        runningQueue = new TreeSet<Job>();
-        completedQueue = new TreeSet<Job>();
-    }
+    SchedulerLane[] lanes = null;
+
+    int starvationLimit = DEFAULT_STARVATION_LIMIT;
+
+    volatile long spinThresholdNanos = DEFAULT_SPIN_THRESHOLD_NS;
 
     //
-    // Shutdown the subsystem
+    // The worker pool that actually runs the jobs. Jobs are only
+    // handed over when a worker is free, so that the lanes rather
+    // than the pool's own FIFO queue decide what runs next.
     //
-    public void shutdown()
-    {
-        endEvaluatorThread();
-    }
+    ExecutorService executor;
+
+    int executionMode;
 
     //
-    // Start the evaluator thread
+    // Most jobs handed to the executor at once. In pooled mode
+    // this is the number of worker threads.
     //
-    public void startEvaluatorThread()
-    {
-        thread = new Thread(this);
+    int poolSize;
 
-        thread.start();
-    }
+    //
+    // Optional per-controller caps on concurrently running jobs,
+    // and how many each controller currently has running. The
+    // limits may be set from any thread. The counts are shared by
+    // all the shards, which take a slot before starting a job, so
+    // the cap holds however many shards there are.
+    //
+    ConcurrentHashMap<Controller, Integer> controllerLimits = null;
+    ConcurrentHashMap<Controller, AtomicInteger> controllerRunning = null;
 
     //
-    // Call this when our class is being closed
+    // Per-controller weights and queue caps, for the controllers
+    // that have them. Each shard has its own ControllerQueue, but
+    // they share their counts (see setControllerQuota).
     //
-    private void endEvaluatorThread()
-    {
-        thread.interrupt();
-    }
+    ConcurrentHashMap<Controller, ControllerQueue> controllerQueues = null;
 
     //
-    // Wake up the evaluator thread to see if there
-    // is anything to run right now
+    // Pacing rules consulted before any job is released
     //
-    private void notifyEvaluatorThread()
-    {
-        notify();
-    }
+    RateLimiter rateLimiter = null;
 
     //
-    // Scheduled immediately
+    // Queue depths, lateness and run time histograms
     //
-    public synchronized void scheduleNow( Job job )
-        throws SchedulerException
-    {
+    SchedulerMetrics metrics = null;
 
-        //
-        // Set the start time (to zero)
-        //
-        job.startTime = Job.JOB_START_IMMEDIATELY;
+    //
+    // Set once the metrics are registered with JMX
+    //
+    ObjectName mbeanName = null;
 
-        //
-        // Add this job with its start time to the queue
-        //
-        boolean result = waitingQueue.add( job );
+    //
+    // Optional crash recovery journal
+    //
+    volatile JobJournal journal = null;
 
-        if( result == false )
-        {
-            throw new SchedulerException("Failed to add job to wait queue");
-        }
+    //
+    // Time source
+    //
+    SchedulerClock clock;
 
-        //
-        // Notify the evaluator that something new is waiting
-        //
-        notifyEvaluatorThread();
-        
+    //
+    // Timeout and retry policies, by job class
+    //
+    ConcurrentHashMap<Class<?>, JobPolicy> policies = null;
+
+    //
+    // Earliest timeout among the running jobs, or Long.MAX_VALUE.
+    // Evaluator thread only.
+    //
+    long nextTimeoutTime = Long.MAX_VALUE;
+
+    //
+    // One-shot jobs that failed for good, oldest first
+    //
+    LinkedList<Job> deadLetters = null;
+
+    //
+    // All the evaluator shards, this one included; shards[0] is the
+    // one the controllers were given. Shards share the executor,
+    // pacing, policies, controller limits, metrics and journal, and
+    // have everything else to themselves.
+    //
+    Scheduler[] shards = null;
+    int shardIndex = 0;
+
+    //
+    // Due jobs this shard can't get to, offered up for an idle shard
+    // to steal. Always jobs with no shard key.
+    //
+    ConcurrentLinkedQueue<Job> stealable = null;
+
+    //
+    // Set while this shard has free workers and nothing to give them
+    //
+    volatile boolean hungry = false;
+
+    //
+    // This shard's queue depths when last sampled
+    //
+    volatile int sampledWaiting = 0;
+    volatile int sampledRunning = 0;
+    volatile int sampledDue = 0;
+
+    //
+    // Constructor
+    //
+    public Scheduler()
+    {
+        this( DEFAULT_POOL_SIZE, DEFAULT_WORK_QUEUE_SIZE );
+    }
+
+    public Scheduler( int poolSize, int workQueueSize )
+    {
+        this( poolSize, workQueueSize, new TimingWheelWaitingQueue() );
+    }
+
+    public Scheduler( int poolSize, int workQueueSize, WaitingQueue waitingQueue )
+    {
+        init( poolSize, waitingQueue );
+
+        executionMode = EXECUTION_POOLED;
+        executor = createWorkerPool( poolSize, workQueueSize );
     }
 
     //
-    // Schedule for a specific time
+    // Fails if virtual threads are asked for and this JVM
+    // doesn't have them
     //
-    public synchronized void scheduleAtTime( Job job, long startTime )
+    public Scheduler( int executionMode, int poolSize, int workQueueSize, WaitingQueue waitingQueue )
         throws SchedulerException
     {
+        init( poolSize, waitingQueue );
 
-        //
-        // Set the start time of the job
-        //
-        job.startTime = startTime;
+        this.executionMode = executionMode;
 
-        //
-        // Add this job with its start time to the queue
-        //
-        boolean result = waitingQueue.add( job );
+        if( executionMode == EXECUTION_VIRTUAL )
+        {
+            executor = createVirtualThreadExecutor();
 
-        if( result == false )
+            if( executor == null )
+            {
+                throw new SchedulerException("Virtual threads need Java 21 or later, this is " +
+                                             System.getProperty( "java.version" ));
+            }
+        }
+        else if( executionMode == EXECUTION_POOLED )
         {
-            throw new SchedulerException("Failed to add job to wait queue");
+            executor = createWorkerPool( poolSize, workQueueSize );
+        }
+        else
+        {
+            throw new SchedulerException("Unknown execution mode " + executionMode);
         }
-
-        //
-        // Notify the evaluator that something new is waiting
-        //
-        notifyEvaluatorThread();
     }
 
     //
-    // Run after a certain delta from now
+    // Everything but the executor
     //
-    public synchronized void scheduleAtTimeDelta( Job job, long startTimeDelta )
-        throws SchedulerException
+    private void init( int poolSize, WaitingQueue waitingQueue )
     {
+        this.waitingQueue = waitingQueue;
+        clock = new SystemClock();
+        runningQueue = new TreeSet<Job>();
+        completedQueue = new TreeSet<Job>();
+        intake = new MpscQueue<Request>();
 
-        //
-        // Get the current time
-        //
-        long now = currentTime();
+        policies = new ConcurrentHashMap<Class<?>, JobPolicy>();
+        deadLetters = new LinkedList<Job>();
 
-        //
-        // Add the delta to the now time
-        //
-        job.startTime = now + startTimeDelta;
+        controllerLimits = new ConcurrentHashMap<Controller, Integer>();
+        controllerRunning = new ConcurrentHashMap<Controller, AtomicInteger>();
+        controllerQueues = new ConcurrentHashMap<Controller, ControllerQueue>();
 
-        //
-        // Add this job with its start time to the queue
-        //
-        boolean result = waitingQueue.add( job );
+        rateLimiter = new RateLimiter();
 
-        if( result == false )
-        {
-            throw new SchedulerException("Failed to add job to wait queue");
-        }
+        metrics = new SchedulerMetrics();
+
+        lanes = createLanes();
+
+        shards = new Scheduler[] { this };
+        stealable = new ConcurrentLinkedQueue<Job>();
+
+        this.poolSize = poolSize;
+    }
+
+    private static ExecutorService createWorkerPool( int poolSize, int workQueueSize )
+    {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor( poolSize,
+                                                          poolSize,
+                                                          WORKER_KEEP_ALIVE_MS,
+                                                          TimeUnit.MILLISECONDS,
+                                                          new ArrayBlockingQueue<Runnable>( workQueueSize ),
+                                                          new WorkerThreadFactory() );
 
         //
-        // Notify the evaluator that something new is waiting
+        // Let the pool shrink to nothing when there's no work
         //
-        notifyEvaluatorThread();
+        pool.allowCoreThreadTimeOut( true );
 
+        return pool;
     }
 
     //
-    // run the job
+    // An extra evaluator shard for the primary scheduler, sharing its
+    // executor and everything else that isn't per evaluator
     //
-    private synchronized void startJob( Job job )
+    private Scheduler( Scheduler primary, int shardIndex )
     {
+        waitingQueue = new TimingWheelWaitingQueue();
+        clock = primary.clock;
+        runningQueue = new TreeSet<Job>();
+        completedQueue = new TreeSet<Job>();
+        intake = new MpscQueue<Request>();
 
-        job.scheduler = this;
+        policies = primary.policies;
+        deadLetters = primary.deadLetters;
 
-        //
-        // Track the running job on the queue
-        //
-        runningQueue.add( job );
+        controllerLimits = primary.controllerLimits;
+        controllerRunning = primary.controllerRunning;
+        controllerQueues = new ConcurrentHashMap<Controller, ControllerQueue>();
 
-        //
-        // The job itself will take care of spinning a thread up
-        //
-        job.start();
+        rateLimiter = primary.rateLimiter;
+        metrics = primary.metrics;
+        journal = primary.journal;
+
+        lanes = createLanes();
+        starvationLimit = primary.starvationLimit;
+        spinThresholdNanos = primary.spinThresholdNanos;
 
+        stealable = new ConcurrentLinkedQueue<Job>();
+        this.shardIndex = shardIndex;
+
+        executor = primary.executor;
+        executionMode = primary.executionMode;
+        poolSize = primary.poolSize;
     }
 
-    private synchronized void cancelRunningJob( Job job )
+    private static SchedulerLane[] createLanes()
     {
-        job.cancel();
+        SchedulerLane[] lanes = new SchedulerLane[ Job.JOB_LANE_COUNT ];
+
+        lanes[ Job.JOB_LANE_REALTIME ] = new SchedulerLane( "realtime" );
+        lanes[ Job.JOB_LANE_DEFAULT ] = new SchedulerLane( "default" );
+        lanes[ Job.JOB_LANE_BACKFILL ] = new SchedulerLane( "backfill" );
+
+        return lanes;
     }
 
     //
-    // The job calls this to signify it is done.
+    // Split the scheduler into count evaluator shards, each with its
+    // own evaluator thread, timer queue and lanes, sharing the worker
+    // pool (each gets an equal part of it). Jobs go to a shard by
+    // Job.getShardKey(), so jobs with the same key keep their order;
+    // jobs without a key are spread out, and a shard with idle workers
+    // steals them from busy ones. Controller limits and queue caps
+    // are counted across all the shards; weights apply within each.
+    //
+    // Call before the evaluator thread starts or anything is scheduled.
+    // Shards need the system clock: only one evaluator can drive a
+    // virtual clock.
     //
-    public synchronized void completionCallback( Job job )
+    public void setShardCount( int count )
+        throws SchedulerException
     {
-        //
-        // Currently we don't care what the status is (e.g. canceled)
-        //
-        runningQueue.remove( job );
+        if( count < 1 )
+        {
+            throw new SchedulerException("Shard count must be positive");
+        }
+
+        if( thread != null || shards.length > 1 )
+        {
+            throw new SchedulerException("Shards must be set up once, before the scheduler starts");
+        }
+
+        if( count > 1 && (clock instanceof SystemClock) == false )
+        {
+            throw new SchedulerException("A sharded scheduler needs the system clock");
+        }
+
+        if( count == 1 )
+        {
+            return;
+        }
+
+        poolSize = Math.max( 1, poolSize / count );
+
+        Scheduler[] group = new Scheduler[ count ];
+
+        group[ 0 ] = this;
+
+        for( int i = 1; i < count; i++ )
+        {
+            group[ i ] = new Scheduler( this, i );
+        }
+
+        for( int i = 0; i < count; i++ )
+        {
+            group[ i ].shards = group;
+        }
 
         //
-        // The completedQueue isn't used for now
+        // Carry over any quotas already set
         //
-        //completedQueue.add( job );
+        for( ControllerQueue queue : controllerQueues.values() )
+        {
+            setControllerQuota( queue.controller, queue.weight, queue.maxQueued, queue.overflowMode );
+        }
     }
 
-    public synchronized void run()
+    public int getShardCount()
     {
+        return shards.length;
+    }
 
-        try
+    //
+    // The shard a job should be scheduled on
+    //
+    private Scheduler shardFor( Job job )
+    {
+        if( shards.length == 1 )
         {
-            //
-            // Main event loop
-            //
-            while( true )
-            {
+            return this;
+        }
 
-                long timeout = 0;
+        Object key = job.getShardKey();
 
-                //
-                // There are jobs waiting, figure out if any
-                // can be run immediately
-                //
-                if( waitingQueue.size() > 0 )
-                {
+        if( key != null )
+        {
+            int hash = key.hashCode();
 
-                    //
-                    // Find out when we need to wakeup next
-                    //
-                    Job job = waitingQueue.first();
+            hash ^= (hash >>> 16);
 
-                    long wakeupTime = job.startTime;
-                    long now = currentTime();
+            return shards[ (hash & Integer.MAX_VALUE) % shards.length ];
+        }
 
-                    if( wakeupTime > now )
-                    {
-                        //
-                        // It is not time for this job yet, wait
-                        //
-                        timeout = wakeupTime - now;
-                    }
-                    else
-                    {
-                        //
-                        // It is time to run this job
-                        //
-                        waitingQueue.remove( job );
-                        
-                        startJob( job );
+        //
+        // A job that is already on a shard stays there, so moving
+        // it doesn't leave a copy behind
+        //
+        Scheduler shard = job.shard;
 
-                        continue;
+        if( shard != null )
+        {
+            return shard;
+        }
 
-                    }
+        return shards[ (int) (job.jobId % shards.length) ];
+    }
 
-                }
+    //
+    // The shard holding a job, for cancels and the like
+    //
+    private Scheduler shardOf( Job job )
+    {
+        Scheduler shard = job.shard;
 
-                //
-                // We failed to get a job that can be run immediately, 
-                // so we must wait() on the queue.
-                //
-                //
-                // If timeout is zero, wait indefinitely
-                //
-                wait( timeout );
+        return (shard == null) ? this : shard;
+    }
 
-            }
+    //
+    // A thread-per-task executor on virtual threads, or null if this
+    // JVM doesn't have them. Looked up reflectively so the tree still
+    // builds and runs on JDKs before 21.
+    //
+    private static ExecutorService createVirtualThreadExecutor()
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
 
+            return (ExecutorService) factory.invoke( null );
         }
-        catch ( InterruptedException e )
+        catch( Exception e )
         {
-            //
-            // This ends the thread
-            //
-            return;
+            return null;
+        }
+    }
+
+    //
+    // Use a different time source. Set this before the evaluator
+    // thread starts or anything is scheduled.
+    //
+    public void setClock( SchedulerClock clock )
+        throws SchedulerException
+    {
+        if( shards.length > 1 )
+        {
+            throw new SchedulerException("A sharded scheduler needs the system clock");
         }
 
+        this.clock = clock;
+    }
+
+    public SchedulerClock getClock()
+    {
+        return clock;
     }
 
     //
-    // Return the current time in MS
+    // One of EXECUTION_*
     //
-    public long currentTime()
+    public int getExecutionMode()
     {
-        return System.currentTimeMillis();
+        return executionMode;
+    }
+
+    //
+    // Turn an execution mode name ("pooled" or "virtual") into
+    // its EXECUTION_* constant
+    //
+    public static int parseExecutionMode( String name )
+    {
+        if( "pooled".equals( name ) )
+        {
+            return EXECUTION_POOLED;
+        }
+        else if( "virtual".equals( name ) )
+        {
+            return EXECUTION_VIRTUAL;
+        }
+
+        throw new IllegalArgumentException("Unknown execution mode " + name);
+    }
+
+    //
+    // Shutdown the subsystem
+    //
+    public void shutdown()
+    {
+        endEvaluatorThread();
+
+        //
+        // Interrupts anything still running, which cancels those jobs
+        //
+        executor.shutdownNow();
+
+        unregisterMBean();
+
+        if( journal != null )
+        {
+            journal.close();
+        }
+    }
+
+    //
+    // Journal scheduled, started and completed jobs so they can be
+    // recovered after a restart. Controllers register their
+    // JournaledJobFactory with the journal, then replayJournal() reads
+    // back what was there and starts a fresh journal. Nothing is
+    // journaled until then.
+    //
+    public void setJournal( JobJournal journal )
+    {
+        for( Scheduler shard : shards )
+        {
+            shard.journal = journal;
+        }
+    }
+
+    public JobJournal getJournal()
+    {
+        return journal;
+    }
+
+    //
+    // Restore the pacing windows and reschedule the jobs left in the
+    // journal from the last run. Returns how many jobs were restored.
+    //
+    public int replayJournal()
+        throws SchedulerException
+    {
+        JobJournal journal = this.journal;
+
+        if( journal == null )
+        {
+            throw new SchedulerException("No journal set");
+        }
+
+        long now = currentTime();
+
+        JobJournal.Replay replay = journal.read( now );
+
+        journal.reset();
+
+        //
+        // Pacing first, so restored jobs are held back by it. The
+        // requests are journaled again so a second crash keeps them.
+        //
+        for( JobJournal.PacingRecord pacing : replay.pacing )
+        {
+            rateLimiter.restore( pacing.category, pacing.contract, pacing.fingerprint, pacing.time );
+
+            journal.started( -1, pacing.time, pacing.category, pacing.contract, pacing.fingerprint );
+        }
+
+        int restored = 0;
+
+        for( JobJournal.ScheduledRecord record : replay.jobs )
+        {
+            Job job = journal.restoreJob( record );
+
+            if( job == null )
+            {
+                continue;
+            }
+
+            JobHandle handle;
+
+            try
+            {
+                handle = enqueue( job, record.startTime, record.repeatMode, record.repeatPeriod );
+            }
+            catch( AdmissionRejectedException e )
+            {
+                System.out.println("Dropping journaled job: " + e.getMessage());
+
+                journal.completed( job.jobId, now );
+                continue;
+            }
+
+            if( job.controller != null )
+            {
+                job.controller.trackJob( handle );
+            }
+
+            restored++;
+        }
+
+        System.out.println("Restored " + restored + " jobs and " + replay.pacing.size() + " paced requests from the job journal");
+
+        return restored;
+    }
+
+    //
+    // Counters and histograms, for pulling directly
+    //
+    public SchedulerMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    //
+    // Publish the metrics on the platform MBean server, so they can be
+    // watched from jconsole and the like, as mbot:type=Scheduler,name=<name>
+    //
+    public void registerMBean( String name )
+        throws SchedulerException
+    {
+        try
+        {
+            ObjectName objectName = new ObjectName( "mbot:type=Scheduler,name=" + ObjectName.quote( name ) );
+
+            ManagementFactory.getPlatformMBeanServer().registerMBean( metrics, objectName );
+
+            mbeanName = objectName;
+        }
+        catch( Exception e )
+        {
+            throw new SchedulerException("Failed to register scheduler metrics: " + e.getMessage());
+        }
+    }
+
+    private void unregisterMBean()
+    {
+        if( mbeanName == null )
+        {
+            return;
+        }
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( mbeanName );
+        }
+        catch( Exception e )
+        {
+            // Already gone, nothing to do
+        }
+
+        mbeanName = null;
+    }
+
+    //
+    // Cap how many jobs a single controller may have running at once.
+    // A limit of zero or less removes the cap.
+    //
+    public void setControllerLimit( Controller controller, int limit )
+    {
+        if( limit <= 0 )
+        {
+            controllerLimits.remove( controller );
+        }
+        else
+        {
+            controllerLimits.put( controller, limit );
+        }
+
+        //
+        // Raising a limit may free up jobs held on the lanes
+        //
+        for( Scheduler shard : shards )
+        {
+            shard.submit( new Request( Request.WAKEUP, null, 0 ) );
+        }
+    }
+
+    //
+    // Set a controller's share of the lanes and cap on queued jobs.
+    // Jobs from a controller with weight 2 are dispatched twice as
+    // often as those from one with weight 1 while both have jobs due.
+    // Once maxQueued of its jobs are waiting to start, new ones are
+    // rejected with an AdmissionRejectedException or, with
+    // ControllerQueue.OVERFLOW_DEFER, held back until there's room.
+    // A maxQueued of ControllerQueue.NO_LIMIT means no cap.
+    //
+    public void setControllerQuota( Controller controller, int weight, int maxQueued, int overflowMode )
+    {
+        if( controller == null || weight < 1 || maxQueued < 0 ||
+            (overflowMode != ControllerQueue.OVERFLOW_REJECT && overflowMode != ControllerQueue.OVERFLOW_DEFER) )
+        {
+            throw new IllegalArgumentException("Bad controller quota");
+        }
+
+        //
+        // Every shard gets its own queue, for its deferred jobs, all
+        // counting against the first one's cap
+        //
+        ControllerQueue first = null;
+
+        for( Scheduler shard : shards )
+        {
+            ConcurrentHashMap<Controller, ControllerQueue> queues = shard.controllerQueues;
+
+            ControllerQueue queue = queues.get( controller );
+
+            if( queue == null )
+            {
+                queues.putIfAbsent( controller,
+                                    (first == null) ? new ControllerQueue( controller ) : new ControllerQueue( first ) );
+                queue = queues.get( controller );
+            }
+
+            if( first == null )
+            {
+                first = queue;
+            }
+
+            queue.weight = weight;
+            queue.maxQueued = maxQueued;
+            queue.overflowMode = overflowMode;
+
+            //
+            // Raising a cap may let deferred jobs in
+            //
+            shard.submit( new Request( Request.WAKEUP, null, 0 ) );
+        }
+    }
+
+    public ControllerQueue getControllerQueue( Controller controller )
+    {
+        return (controller == null) ? null : controllerQueues.get( controller );
+    }
+
+    public List<ControllerQueue> getControllerQueues()
+    {
+        return new ArrayList<ControllerQueue>( controllerQueues.values() );
+    }
+
+    //
+    // Set the timeout and retry policy for a type of job, including
+    // its subclasses unless they have a policy of their own. A null
+    // policy removes it.
+    //
+    public void setJobPolicy( Class<? extends Job> jobClass, JobPolicy policy )
+    {
+        if( policy == null )
+        {
+            policies.remove( jobClass );
+        }
+        else
+        {
+            policies.put( jobClass, policy );
+        }
+    }
+
+    //
+    // The policy that applies to a job, or null
+    //
+    JobPolicy policyFor( Job job )
+    {
+        for( Class<?> c = job.getClass(); c != null && c != Job.class; c = c.getSuperclass() )
+        {
+            JobPolicy policy = policies.get( c );
+
+            if( policy != null )
+            {
+                return policy;
+            }
+        }
+
+        return null;
+    }
+
+    //
+    // Whether a run that just finished will be retried. Called by
+    // the job on its worker thread before it reports completion.
+    //
+    boolean willRetry( Job job )
+    {
+        if( job.jobStatus != Job.JOB_STATUS_FAILED || job.repeatMode != Job.JOB_REPEAT_NONE )
+        {
+            return false;
+        }
+
+        JobPolicy policy = policyFor( job );
+
+        return policy != null && job.attempts < policy.maxRetries;
+    }
+
+    //
+    // One-shot jobs that failed and ran out of retries, oldest first.
+    // Only the last MAX_DEAD_LETTERS are kept.
+    //
+    public List<Job> getDeadLetters()
+    {
+        synchronized( deadLetters )
+        {
+            return new ArrayList<Job>( deadLetters );
+        }
+    }
+
+    public void clearDeadLetters()
+    {
+        synchronized( deadLetters )
+        {
+            deadLetters.clear();
+        }
+    }
+
+    //
+    // Controllers register their pacing rules here
+    //
+    public RateLimiter getRateLimiter()
+    {
+        return rateLimiter;
+    }
+
+    //
+    // How many times a lane with due jobs may be passed over
+    // before it is served ahead of higher lanes
+    //
+    public void setStarvationLimit( int starvationLimit )
+    {
+        for( Scheduler shard : shards )
+        {
+            shard.starvationLimit = Math.max( 1, starvationLimit );
+        }
+    }
+
+    //
+    // Spin rather than park when the next due job is at most this many
+    // NS away. Costs a busy core while it lasts; 50-200us is plenty to
+    // cover parking overshoot. Zero turns spinning off.
+    //
+    public void setSpinThreshold( long spinThresholdNanos )
+    {
+        for( Scheduler shard : shards )
+        {
+            shard.spinThresholdNanos = Math.max( 0, spinThresholdNanos );
+        }
+    }
+
+    //
+    // Per-lane metrics, indexed by Job.JOB_LANE_*. With more than
+    // one shard, a snapshot of the lane summed over all of them.
+    //
+    public SchedulerLane getLane( int lane )
+    {
+        if( shards.length == 1 )
+        {
+            return lanes[ lane ];
+        }
+
+        SchedulerLane total = new SchedulerLane( lanes[ lane ].getName() );
+
+        for( Scheduler shard : shards )
+        {
+            total.addMetrics( shard.lanes[ lane ] );
+        }
+
+        return total;
+    }
+
+    //
+    // Start the evaluator thread
+    //
+    public void startEvaluatorThread()
+    {
+        for( Scheduler shard : shards )
+        {
+            shard.thread = new Thread( shard );
+
+            shard.thread.start();
+        }
+    }
+
+    //
+    // Call this when our class is being closed
+    //
+    private void endEvaluatorThread()
+    {
+        for( Scheduler shard : shards )
+        {
+            shard.thread.interrupt();
+        }
+    }
+
+    //
+    // Wake up the evaluator thread to see if there
+    // is anything to run right now
+    //
+    private void notifyEvaluatorThread()
+    {
+        Thread evaluator = thread;
+
+        if( evaluatorParked && evaluator != null )
+        {
+            LockSupport.unpark( evaluator );
+        }
+    }
+
+    //
+    // Hand a request to the evaluator. Never blocks.
+    //
+    private void submit( Request request )
+    {
+        intake.offer( request );
+
+        notifyEvaluatorThread();
+    }
+
+    //
+    // Scheduled immediately
+    //
+    public JobHandle scheduleNow( Job job )
+        throws SchedulerException
+    {
+
+        return enqueue( job, Job.JOB_START_IMMEDIATELY, Job.JOB_REPEAT_NONE, 0 );
+
+    }
+
+    //
+    // Schedule for a specific time
+    //
+    public JobHandle scheduleAtTime( Job job, long startTime )
+        throws SchedulerException
+    {
+
+        return enqueue( job, startTime, Job.JOB_REPEAT_NONE, 0 );
+    }
+
+    //
+    // Run after a certain delta from now
+    //
+    public JobHandle scheduleAtTimeDelta( Job job, long startTimeDelta )
+        throws SchedulerException
+    {
+
+        //
+        // Get the current time
+        //
+        long now = currentTime();
+
+        //
+        // Add the delta to the now time
+        //
+        return enqueue( job, now + startTimeDelta, Job.JOB_REPEAT_NONE, 0 );
+
+    }
+
+    //
+    // Run every period MS, starting after initialDelay. Runs stay on
+    // the grid set by the first start time, however long each one
+    // takes; see Job.missedRunPolicy for what happens when a run is
+    // still going when the next one is due.
+    //
+    public JobHandle scheduleAtFixedRate( Job job, long initialDelay, long period )
+        throws SchedulerException
+    {
+
+        if( period <= 0 )
+        {
+            throw new SchedulerException("Period must be positive");
+        }
+
+        return enqueue( job, currentTime() + initialDelay, Job.JOB_REPEAT_FIXED_RATE, period );
+
+    }
+
+    //
+    // Re-read a controller's work from Control every period MS, as a
+    // repeating job. Cancel the handle to stop.
+    //
+    public <C extends Controller & Refreshable> JobHandle scheduleRefresh( C controller, long period )
+        throws SchedulerException
+    {
+        return scheduleAtFixedRate( new ControlRefreshJob( controller ), period, period );
+    }
+
+    //
+    // Run after initialDelay, then again delay MS after each run finishes
+    //
+    public JobHandle scheduleWithFixedDelay( Job job, long initialDelay, long delay )
+        throws SchedulerException
+    {
+
+        if( delay <= 0 )
+        {
+            throw new SchedulerException("Delay must be positive");
+        }
+
+        return enqueue( job, currentTime() + initialDelay, Job.JOB_REPEAT_FIXED_DELAY, delay );
+
+    }
+
+    //
+    // Take a job off the schedule if it hasn't started yet, and stop a
+    // repeating job from being rescheduled. A run already in progress
+    // is left alone; use Job.cancel() to stop it.
+    //
+    public void unschedule( Job job )
+        throws SchedulerException
+    {
+
+        if( job == null )
+        {
+            throw new SchedulerException("Job must not be null");
+        }
+
+        job.repeatMode = Job.JOB_REPEAT_NONE;
+
+        shardOf( job ).submit( new Request( Request.UNSCHEDULE, job, 0 ) );
+
+    }
+
+    //
+    // Cancel a job, waiting or running. See JobHandle.cancel().
+    //
+    public void cancel( Job job )
+    {
+
+        if( job == null )
+        {
+            return;
+        }
+
+        job.repeatMode = Job.JOB_REPEAT_NONE;
+
+        shardOf( job ).submit( new Request( Request.CANCEL, job, 0 ) );
+
+    }
+
+    //
+    // Common path for all the schedule calls
+    //
+    private JobHandle enqueue( Job job, long startTime, int repeatMode, long period )
+        throws SchedulerException
+    {
+
+        if( job == null )
+        {
+            throw new SchedulerException("Job must not be null");
+        }
+
+        Scheduler shard = shardFor( job );
+
+        if( shard != this )
+        {
+            return shard.enqueue( job, startTime, repeatMode, period );
+        }
+
+        //
+        // Before anything about the job is touched, so a rejected
+        // job is left as it was
+        //
+        admit( job );
+
+        //
+        // Published to the evaluator by the intake queue
+        //
+        job.repeatMode = repeatMode;
+        job.repeatPeriod = period;
+        job.attempts = 0;
+
+        //
+        // Lateness is measured from the requested start time, or from
+        // now for jobs asked to run immediately (or in the past)
+        //
+        job.scheduledTime = Math.max( startTime, currentTime() );
+
+        //
+        // Written before the request is submitted, so it always
+        // comes ahead of the job's STARTED record
+        //
+        JobJournal journal = this.journal;
+
+        if( journal != null && job instanceof JournaledJob )
+        {
+            journal.scheduled( job, startTime, currentTime() );
+        }
+
+        CompletableFuture<Job> completion = new CompletableFuture<Job>();
+        job.completion = completion;
+
+        job.shard = this;
+
+        //
+        // The evaluator sets the start time and adds the job to
+        // the waiting queue when it picks up the request
+        //
+        submit( new Request( Request.SCHEDULE, job, startTime ) );
+
+        metrics.scheduled.increment();
+
+        return new JobHandle( this, job, completion );
+
+    }
+
+    //
+    // Take a slot in the job's controller queue, or a deferred slot,
+    // or turn the job away. A job that already holds a slot (i.e. is
+    // being moved) keeps it.
+    //
+    private void admit( Job job )
+        throws AdmissionRejectedException
+    {
+        ControllerQueue queue = getControllerQueue( job.controller );
+
+        if( queue == null || job.admittedTo != null )
+        {
+            return;
+        }
+
+        if( queue.tryAdmit() )
+        {
+            job.deferred = false;
+        }
+        else if( queue.tryDefer() )
+        {
+            job.deferred = true;
+            metrics.deferred.increment();
+        }
+        else
+        {
+            queue.rejected.increment();
+            metrics.rejected.increment();
+
+            throw new AdmissionRejectedException("Queue full for " + job.controller.getName() +
+                                                 " (" + queue.getQueued() + " queued, " +
+                                                 queue.getDeferred() + " deferred)");
+        }
+
+        job.admittedTo = queue;
+    }
+
+    //
+    // Evaluator side of a schedule request. Deferred jobs are held
+    // on their controller queue until there is room.
+    //
+    private void scheduleJob( Job job, long startTime )
+    {
+        ControllerQueue queue = job.admittedTo;
+
+        if( job.deferred == true && queue != null )
+        {
+            job.startTime = startTime;
+            job.jobStatus = Job.JOB_STATUS_WAITING;
+
+            if( queue.deferredJobs.contains( job ) == false )
+            {
+                queue.deferredJobs.add( job );
+            }
+
+            releaseDeferred( queue );
+            return;
+        }
+
+        addToWaitingQueue( job, startTime );
+    }
+
+    //
+    // Move deferred jobs onto the schedule while their queue has room
+    //
+    private void releaseDeferred( ControllerQueue queue )
+    {
+        while( queue.deferredJobs.isEmpty() == false && queue.tryPromote() )
+        {
+            Job job = queue.deferredJobs.removeFirst();
+
+            job.deferred = false;
+
+            addToWaitingQueue( job, job.startTime );
+        }
+    }
+
+    //
+    // A job gives up its queue slot when it starts or comes off
+    // the schedule, which may let a deferred job in
+    //
+    private void releaseSlot( Job job )
+    {
+        ControllerQueue queue = job.admittedTo;
+
+        if( queue == null )
+        {
+            return;
+        }
+
+        job.admittedTo = null;
+
+        queue.released();
+
+        releaseDeferred( queue );
+
+        //
+        // The slot may be the one a job deferred on another shard
+        // is waiting for
+        //
+        if( shards.length > 1 && queue.deferred.get() > queue.deferredJobs.size() )
+        {
+            wakeOtherShards();
+        }
+    }
+
+    //
+    // Evaluator side of a schedule request
+    //
+    private void addToWaitingQueue( Job job, long startTime )
+    {
+
+        //
+        // Scheduling a job that is already waiting moves it. It has to
+        // come out of the queue before its start time changes, or the
+        // queue won't be able to find it.
+        //
+        waitingQueue.remove( job );
+
+        //
+        // Set the start time of the job
+        //
+        job.startTime = startTime;
+        job.jobStatus = Job.JOB_STATUS_WAITING;
+
+        //
+        // Add this job with its start time to the queue
+        //
+        waitingQueue.add( job );
+
+    }
+
+    //
+    // Pull a job that hasn't started yet out of the waiting queue,
+    // or off its lane if it has already come due
+    //
+    private boolean removeWaitingJob( Job job )
+    {
+
+        if( job.deferred == true )
+        {
+            ControllerQueue queue = job.admittedTo;
+
+            if( queue == null || queue.deferredJobs.remove( job ) == false )
+            {
+                return false;
+            }
+
+            queue.deferred.decrementAndGet();
+
+            job.deferred = false;
+            job.admittedTo = null;
+
+            return true;
+        }
+
+        if( job.inTransit == true && stealable.remove( job ) )
+        {
+            job.inTransit = false;
+            return true;
+        }
+
+        if( waitingQueue.remove( job ) || laneFor( job ).remove( job ) )
+        {
+            releaseSlot( job );
+            return true;
+        }
+
+        return false;
+
+    }
+
+    //
+    // Put a repeating job back on the waiting queue for its next run
+    //
+    private void rescheduleRepeatingJob( Job job )
+    {
+
+        long now = currentTime();
+        long next;
+
+        if( job.repeatMode == Job.JOB_REPEAT_FIXED_DELAY )
+        {
+            next = now + job.repeatPeriod;
+        }
+        else
+        {
+            //
+            // Fixed rate runs are measured from when the last run was
+            // due, not from when it actually started or finished, so
+            // late starts and slow runs don't add up to drift
+            //
+            next = job.scheduledTime + job.repeatPeriod;
+
+            if( next <= now && job.missedRunPolicy == Job.JOB_MISSED_RUNS_SKIP )
+            {
+                long missed = (now - next) / job.repeatPeriod + 1;
+
+                job.missedRuns += missed;
+
+                next += missed * job.repeatPeriod;
+            }
+        }
+
+        job.scheduledTime = next;
+
+        addToWaitingQueue( job, next );
+
+    }
+
+    //
+    // Process everything other threads have asked for
+    //
+    private void drainIntake()
+    {
+
+        Request request;
+
+        while( (request = intake.poll()) != null )
+        {
+            switch( request.type )
+            {
+            case Request.SCHEDULE:
+                scheduleJob( request.job, request.startTime );
+                break;
+            case Request.UNSCHEDULE:
+                if( forwardToOwner( request ) )
+                {
+                    break;
+                }
+
+                if( removeWaitingJob( request.job ) )
+                {
+                    journalCompleted( request.job );
+                    request.job.complete();
+                }
+                else if( request.job.inTransit == true )
+                {
+                    catchUpWith( request );
+                }
+                break;
+            case Request.CANCEL:
+                if( forwardToOwner( request ) == false )
+                {
+                    cancelJob( request );
+                }
+                break;
+            case Request.COMPLETE:
+                finishJob( request.job );
+                break;
+            case Request.WAKEUP:
+                //
+                // Settings may have changed; let in any deferred
+                // jobs that now fit
+                //
+                for( ControllerQueue queue : controllerQueues.values() )
+                {
+                    releaseDeferred( queue );
+                }
+                break;
+            default:
+                // nothing to do but go around the loop
+            }
+        }
+
+    }
+
+    //
+    // Pass a cancel or unschedule on to the shard that now holds
+    // the job, if another shard stole it
+    //
+    private boolean forwardToOwner( Request request )
+    {
+        Scheduler owner = request.job.shard;
+
+        if( owner != null && owner != this )
+        {
+            owner.submit( request );
+            return true;
+        }
+
+        return false;
+    }
+
+    //
+    // The job was taken by another shard a moment ago, which hasn't
+    // claimed it yet. Go around again; it will have by then.
+    //
+    private void catchUpWith( Request request )
+    {
+        Thread.yield();
+
+        submit( request );
+    }
+
+    //
+    // Whether the job's controller already has as many jobs
+    // running as it is allowed
+    //
+    boolean atControllerLimit( Controller controller )
+    {
+        if( controller == null )
+        {
+            return false;
+        }
+
+        Integer limit = controllerLimits.get( controller );
+
+        if( limit == null )
+        {
+            return false;
+        }
+
+        AtomicInteger running = controllerRunning.get( controller );
+
+        return running != null && running.get() >= limit;
+    }
+
+    //
+    // Take one of the controller's running slots, if it is under
+    // its limit. The count is shared with the other shards, so this
+    // is what keeps them from going over the limit between them.
+    //
+    private boolean reserveRunning( Controller controller )
+    {
+        if( controller == null )
+        {
+            return true;
+        }
+
+        AtomicInteger running = controllerRunning.get( controller );
+
+        if( running == null )
+        {
+            controllerRunning.putIfAbsent( controller, new AtomicInteger( 0 ) );
+            running = controllerRunning.get( controller );
+        }
+
+        while( true )
+        {
+            Integer limit = controllerLimits.get( controller );
+            int current = running.get();
+
+            if( limit != null && current >= limit )
+            {
+                return false;
+            }
+
+            if( running.compareAndSet( current, current + 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+    private void releaseRunning( Controller controller )
+    {
+        if( controller == null )
+        {
+            return;
+        }
+
+        controllerRunning.get( controller ).decrementAndGet();
+
+        //
+        // Another shard may be holding jobs back for this slot
+        //
+        if( shards.length > 1 && controllerLimits.containsKey( controller ) )
+        {
+            wakeOtherShards();
+        }
+    }
+
+    private void wakeOtherShards()
+    {
+        for( Scheduler shard : shards )
+        {
+            if( shard != this )
+            {
+                shard.submit( new Request( Request.WAKEUP, null, 0 ) );
+            }
+        }
+    }
+
+    //
+    // A controller's share of the lanes, relative to the others
+    //
+    int weightFor( Controller controller )
+    {
+        ControllerQueue queue = getControllerQueue( controller );
+
+        return (queue == null) ? ControllerQueue.DEFAULT_WEIGHT : queue.weight;
+    }
+
+    //
+    // Decide what to do with a job that has come due. Returns false
+    // if there is no capacity for it right now and it should go back
+    // on its lane.
+    //
+    private boolean dispatchJob( Job job )
+    {
+
+        //
+        // Check capacity before pacing, so we never record a paced
+        // request against the limits and then fail to send it. The
+        // evaluator is the only thread submitting to the pool, so a
+        // free slot in the work queue can't disappear underneath us.
+        //
+        if( hasQueueSpace() == false || reserveRunning( job.controller ) == false )
+        {
+            return false;
+        }
+
+        //
+        // If running now would break a pacing rule, the job goes back
+        // to the waiting queue for the earliest time it is allowed
+        //
+        long now = currentTime();
+        long allowedTime = rateLimiter.acquire( job, now );
+
+        if( allowedTime > now )
+        {
+            releaseRunning( job.controller );
+
+            addToWaitingQueue( job, allowedTime );
+
+            return true;
+        }
+
+        if( startJob( job ) == false )
+        {
+            releaseRunning( job.controller );
+
+            return false;
+        }
+
+        return true;
+
+    }
+
+    //
+    // run the job, with a running slot already taken for it. Returns
+    // false if the job couldn't be started right now and should be
+    // retried later.
+    //
+    private boolean startJob( Job job )
+    {
+
+        job.scheduler = this;
+        job.timedOut = false;
+
+        //
+        // The job hands itself to the pool. If the work queue
+        // is full the pool rejects it and we try again later.
+        //
+        try
+        {
+            job.start( executor );
+        }
+        catch( RejectedExecutionException e )
+        {
+            return false;
+        }
+
+        journalStarted( job );
+
+        releaseSlot( job );
+
+        //
+        // Arm the watchdog
+        //
+        JobPolicy policy = policyFor( job );
+
+        if( policy != null && policy.timeoutMS > 0 )
+        {
+            job.timeoutTime = currentTime() + policy.timeoutMS;
+            nextTimeoutTime = Math.min( nextTimeoutTime, job.timeoutTime );
+        }
+        else
+        {
+            job.timeoutTime = 0;
+        }
+
+        //
+        // Track the running job on the queue
+        //
+        runningQueue.add( job );
+
+        return true;
+
+    }
+
+    //
+    // Whether the executor can take another job without rejecting it.
+    // Virtual thread executors never queue.
+    //
+    private boolean hasQueueSpace()
+    {
+        if( executor instanceof ThreadPoolExecutor )
+        {
+            return ((ThreadPoolExecutor) executor).getQueue().remainingCapacity() > 0;
+        }
+
+        return true;
+    }
+
+    //
+    // Whether a worker is free. Jobs count from when they are handed
+    // to the pool until the evaluator processes their completion.
+    //
+    private boolean hasWorkerCapacity()
+    {
+        return runningQueue.size() < poolSize;
+    }
+
+    //
+    // The lane a job belongs on. Unknown lanes get the default.
+    //
+    private SchedulerLane laneFor( Job job )
+    {
+        int lane = job.lane;
+
+        if( lane < 0 || lane >= lanes.length )
+        {
+            lane = Job.JOB_LANE_DEFAULT;
+        }
+
+        return lanes[ lane ];
+    }
+
+    //
+    // Put a job that has come due on its lane
+    //
+    private void addToLane( Job job, long now )
+    {
+        job.dueTime = now;
+
+        laneFor( job ).add( job );
+    }
+
+    //
+    // Take the next job on a lane whose controller has room for it,
+    // in the lane's fair order
+    //
+    private Job takeStartableJob( SchedulerLane lane )
+    {
+        return lane.take( this );
+    }
+
+    //
+    // Pick the next job to run. Higher lanes go first, except that a
+    // lane passed over starvationLimit times in a row gets a turn.
+    //
+    private Job takeNextJob( long now )
+    {
+
+        int chosen = -1;
+        Job job = null;
+
+        for( int i = lanes.length - 1; i > 0 && job == null; i-- )
+        {
+            if( lanes[ i ].passedOver >= starvationLimit )
+            {
+                job = takeStartableJob( lanes[ i ] );
+
+                if( job != null )
+                {
+                    chosen = i;
+                    lanes[ i ].starvationPromotions = lanes[ i ].starvationPromotions + 1;
+                }
+            }
+        }
+
+        for( int i = 0; i < lanes.length && job == null; i++ )
+        {
+            job = takeStartableJob( lanes[ i ] );
+            chosen = i;
+        }
+
+        if( job == null )
+        {
+            return null;
+        }
+
+        //
+        // Everything below the chosen lane that is still
+        // waiting just got passed over once more
+        //
+        lanes[ chosen ].passedOver = 0;
+
+        for( int i = chosen + 1; i < lanes.length; i++ )
+        {
+            if( lanes[ i ].size() > 0 )
+            {
+                lanes[ i ].passedOver++;
+            }
+        }
+
+        lanes[ chosen ].recordDispatch( now - job.dueTime );
+
+        return job;
+
+    }
+
+    //
+    // Hand due jobs to the pool, lane by lane, while workers are free
+    //
+    private void dispatchDueJobs()
+    {
+
+        while( hasWorkerCapacity() )
+        {
+            long now = currentTime();
+
+            //
+            // Jobs we offered up that nobody took were at the front
+            // of their lanes, so they go first. With nothing of our
+            // own to run, see if another shard has work to spare.
+            //
+            Job job = takeOffered( this );
+            boolean claimed = (job != null);
+
+            if( job == null )
+            {
+                job = takeNextJob( now );
+            }
+
+            if( job == null )
+            {
+                job = stealJob();
+                claimed = (job != null);
+            }
+
+            if( job == null )
+            {
+                hungry = true;
+                return;
+            }
+
+            if( dispatchJob( job ) == false )
+            {
+                //
+                // The pool refused it after all. Put it back at the
+                // front of its lane and wait for a completion.
+                //
+                if( claimed )
+                {
+                    laneFor( job ).add( job );
+                }
+                else
+                {
+                    laneFor( job ).putBack( job, this );
+                }
+                return;
+            }
+        }
+
+        hungry = false;
+
+        offerSurplus();
+
+    }
+
+    //
+    // Claim a job offered up by a shard (possibly this one)
+    //
+    private Job takeOffered( Scheduler from )
+    {
+        Job job = from.stealable.poll();
+
+        if( job == null )
+        {
+            return null;
+        }
+
+        //
+        // Owner first, so a cancel chasing the job knows where it went
+        //
+        job.shard = this;
+        job.inTransit = false;
+
+        if( from != this )
+        {
+            metrics.stolen.increment();
+        }
+
+        return job;
+    }
+
+    //
+    // Take a job offered up by another shard, if any has one
+    //
+    private Job stealJob()
+    {
+        for( int i = 1; i < shards.length; i++ )
+        {
+            Job job = takeOffered( shards[ (shardIndex + i) % shards.length ] );
+
+            if( job != null )
+            {
+                return job;
+            }
+        }
+
+        return null;
+    }
+
+    //
+    // Out of workers with jobs still due: if another shard is idle,
+    // offer it some of the due jobs that don't need to stay here
+    //
+    private void offerSurplus()
+    {
+        if( shards.length == 1 || stealable.size() >= STEAL_BATCH )
+        {
+            return;
+        }
+
+        boolean anyHungry = false;
+
+        for( Scheduler shard : shards )
+        {
+            if( shard != this && shard.hungry )
+            {
+                anyHungry = true;
+            }
+        }
+
+        if( anyHungry == false )
+        {
+            return;
+        }
+
+        int offered = 0;
+
+        for( int i = 0; i < lanes.length && stealable.size() < STEAL_BATCH; i++ )
+        {
+            Job job;
+
+            while( stealable.size() < STEAL_BATCH && (job = lanes[ i ].takeStealable( this )) != null )
+            {
+                job.inTransit = true;
+                stealable.offer( job );
+                offered++;
+            }
+        }
+
+        if( offered == 0 )
+        {
+            return;
+        }
+
+        for( Scheduler shard : shards )
+        {
+            if( shard != this && shard.hungry )
+            {
+                shard.submit( new Request( Request.WAKEUP, null, 0 ) );
+            }
+        }
+    }
+
+    private void cancelRunningJob( Job job )
+    {
+        job.cancel();
+    }
+
+    //
+    // Evaluator side of a cancel. A job that hasn't started just
+    // comes off the schedule; a running one is interrupted and
+    // settles its future when it finishes.
+    //
+    private void cancelJob( Request request )
+    {
+        Job job = request.job;
+
+        if( removeWaitingJob( job ) )
+        {
+            job.jobStatus = Job.JOB_STATUS_CANCELED;
+            journalCompleted( job );
+            job.complete();
+        }
+        else if( job.inTransit == true )
+        {
+            catchUpWith( request );
+        }
+        else
+        {
+            cancelRunningJob( job );
+        }
+    }
+
+    //
+    // The job calls this to signify it is done.
+    //
+    public void completionCallback( Job job )
+    {
+        //
+        // Recorded here on the worker thread, to keep the evaluator lean
+        //
+        metrics.recordRun( job );
+
+        submit( new Request( Request.COMPLETE, job, 0 ) );
+    }
+
+    //
+    // Reschedule a failed run after its backoff
+    //
+    private void retryJob( Job job )
+    {
+        JobPolicy policy = policyFor( job );
+
+        job.attempts++;
+
+        long delay = (policy != null) ? policy.backoffFor( job.attempts ) : 0;
+        long next = currentTime() + delay;
+
+        System.out.println("Retrying " + job.getClass().getSimpleName() +
+                           " in " + delay + " ms (retry " + job.attempts +
+                           ((policy != null) ? " of " + policy.maxRetries : "") + ")");
+
+        metrics.retries.increment();
+
+        job.scheduledTime = next;
+
+        addToWaitingQueue( job, next );
+    }
+
+    private void addDeadLetter( Job job )
+    {
+        metrics.deadLettered.increment();
+
+        synchronized( deadLetters )
+        {
+            deadLetters.add( job );
+
+            if( deadLetters.size() > MAX_DEAD_LETTERS )
+            {
+                deadLetters.removeFirst();
+            }
+        }
+    }
+
+    //
+    // Cancel running jobs that have gone past their timeout.
+    // Evaluator thread only.
+    //
+    private void checkTimeouts( long now )
+    {
+        if( now < nextTimeoutTime )
+        {
+            return;
+        }
+
+        long next = Long.MAX_VALUE;
+
+        for( Job job : runningQueue )
+        {
+            if( job.timeoutTime == 0 || job.timedOut == true )
+            {
+                continue;
+            }
+
+            if( job.timeoutTime <= now )
+            {
+                //
+                // The job sees the flag and reports a failure rather
+                // than a cancel. A job that ignores interrupts keeps
+                // running, and keeps its worker, until it returns.
+                //
+                job.timedOut = true;
+                metrics.timeouts.increment();
+
+                cancelRunningJob( job );
+            }
+            else
+            {
+                next = Math.min( next, job.timeoutTime );
+            }
+        }
+
+        nextTimeoutTime = next;
+    }
+
+    //
+    // Evaluator side of a completion
+    //
+    private void finishJob( Job job )
+    {
+        runningQueue.remove( job );
+
+        releaseRunning( job.controller );
+
+        //
+        // A worker and possibly a controller slot just freed up.
+        // The evaluator hands out due jobs again on its next pass.
+        //
+
+        //
+        // Failed runs go back on the waiting queue after a backoff,
+        // if their policy allows another try
+        //
+        if( job.retryPending == true )
+        {
+            job.retryPending = false;
+
+            retryJob( job );
+
+            return;
+        }
+
+        if( job.jobStatus == Job.JOB_STATUS_FAILED && job.repeatMode == Job.JOB_REPEAT_NONE )
+        {
+            addDeadLetter( job );
+        }
+
+        //
+        // Repeating jobs go straight back on the waiting queue,
+        // unless they were canceled
+        //
+        if( job.repeatMode != Job.JOB_REPEAT_NONE )
+        {
+            if( job.jobStatus != Job.JOB_STATUS_CANCELED )
+            {
+                rescheduleRepeatingJob( job );
+            }
+            else
+            {
+                journalCompleted( job );
+                job.complete();
+            }
+        }
+        else
+        {
+            journalCompleted( job );
+        }
+
+        //
+        // The completedQueue isn't used for now
+        //
+        //completedQueue.add( job );
+    }
+
+    public void run()
+    {
+
+        //
+        // Main event loop
+        //
+        while( true )
+        {
+
+            //
+            // This ends the thread
+            //
+            if( Thread.interrupted() )
+            {
+                return;
+            }
+
+            //
+            // When the next job is due, on the clock's NS timeline.
+            // Zero means there is nothing to wait for.
+            //
+            long deadlineNanos = 0;
+
+            //
+            // Pick up new jobs and completions
+            //
+            drainIntake();
+
+            //
+            // Move everything that has come due onto its lane
+            //
+            Job job;
+            long now = currentTime();
+
+            while( (job = waitingQueue.pollDue( now )) != null )
+            {
+                addToLane( job, now );
+            }
+
+            //
+            // Then run as much as the workers can take, most urgent first
+            //
+            dispatchDueJobs();
+
+            //
+            // Let the watchdog loose on anything overdue
+            //
+            checkTimeouts( currentTime() );
+
+            //
+            // Find out when we need to wakeup next: the next due job,
+            // or the next running job to time out
+            //
+            long wakeupTime = waitingQueue.nextWakeupTime();
+
+            if( nextTimeoutTime != Long.MAX_VALUE &&
+                (wakeupTime == WaitingQueue.NO_WAKEUP || nextTimeoutTime < wakeupTime) )
+            {
+                wakeupTime = nextTimeoutTime;
+            }
+
+            if( wakeupTime != WaitingQueue.NO_WAKEUP )
+            {
+                deadlineNanos = wakeupTime * SchedulerClock.NANOS_PER_MS;
+
+                long remaining = deadlineNanos - clock.currentTimeNanos();
+
+                if( remaining <= 0 )
+                {
+                    //
+                    // Something came due while we were busy
+                    //
+                    continue;
+                }
+
+                //
+                // A virtual clock can skip ahead to the next due job,
+                // as long as nothing running or queued could still
+                // schedule something in between
+                //
+                if( runningQueue.isEmpty() && intake.isEmpty() && clock.advanceTo( wakeupTime ) )
+                {
+                    continue;
+                }
+
+                //
+                // Nearly time: spin through the last stretch rather
+                // than risk parking past the deadline
+                //
+                if( remaining <= spinThresholdNanos )
+                {
+                    spinUntil( deadlineNanos );
+                    continue;
+                }
+            }
+
+            sampleQueueDepths();
+
+            //
+            // Tell producers we are going to sleep, then check the
+            // intake one last time so we can't miss a request that
+            // was offered just before the flag went up.
+            //
+            // Wake early enough to spin through the end of the wait.
+            // With no deadline, wait indefinitely.
+            //
+            evaluatorParked = true;
+
+            if( intake.isEmpty() )
+            {
+                if( deadlineNanos == 0 )
+                {
+                    LockSupport.park( this );
+                }
+                else
+                {
+                    long timeout = deadlineNanos - spinThresholdNanos - clock.currentTimeNanos();
+
+                    if( timeout > 0 )
+                    {
+                        LockSupport.parkNanos( this, timeout );
+                    }
+                }
+            }
+
+            evaluatorParked = false;
+
+        }
+
+    }
+
+    //
+    // Busy-wait until the deadline, or until another thread wants
+    // something. Yields rather than spinning flat out so the workers
+    // still get the CPU on a busy machine.
+    //
+    private void spinUntil( long deadlineNanos )
+    {
+        while( clock.currentTimeNanos() < deadlineNanos &&
+               intake.isEmpty() &&
+               Thread.currentThread().isInterrupted() == false )
+        {
+            Thread.yield();
+        }
+    }
+
+    //
+    // Note a job start in the journal: journaled jobs so a run cut off
+    // by a crash is redone, paced jobs so their pacing is restored
+    //
+    private void journalStarted( Job job )
+    {
+        JobJournal journal = this.journal;
+
+        if( journal == null )
+        {
+            return;
+        }
+
+        String category = job.getRateLimitCategory();
+
+        if( category != null || job instanceof JournaledJob )
+        {
+            journal.started( job.jobId,
+                             currentTime(),
+                             category,
+                             job.getRateLimitContract(),
+                             job.getRateLimitFingerprint() );
+        }
+    }
+
+    private void journalCompleted( Job job )
+    {
+        JobJournal journal = this.journal;
+
+        if( journal != null && job instanceof JournaledJob )
+        {
+            journal.completed( job.jobId, currentTime() );
+        }
+    }
+
+    //
+    // Update the queue depth gauges. Evaluator thread only.
+    //
+    private void sampleQueueDepths()
+    {
+        int due = 0;
+
+        for( int i = 0; i < lanes.length; i++ )
+        {
+            due += lanes[ i ].size();
+        }
+
+        sampledWaiting = waitingQueue.size();
+        sampledRunning = runningQueue.size();
+        sampledDue = due;
+
+        //
+        // The gauges cover all the shards
+        //
+        int waiting = 0;
+        int running = 0;
+
+        due = 0;
+
+        for( Scheduler shard : shards )
+        {
+            waiting += shard.sampledWaiting;
+            running += shard.sampledRunning;
+            due += shard.sampledDue;
+        }
+
+        metrics.sampleDepths( waiting, running, due );
+    }
+
+    //
+    // Return the current time in MS
+    //
+    public long currentTime()
+    {
+        return clock.currentTime();
+    }
+
+    //
+    // Names the pool threads so they are easy to spot in a thread dump
+    //
+    private static class WorkerThreadFactory implements ThreadFactory
+    {
+
+        private int nextId = 0;
+
+        public synchronized Thread newThread( Runnable r )
+        {
+            Thread t = new Thread( r, "mbot-worker-" + nextId++ );
+            t.setDaemon( true );
+            return t;
+        }
+
+    }
+
+    //
+    // A message from another thread to the evaluator
+    //
+    static final class Request
+    {
+
+        static final int SCHEDULE = 0;
+        static final int COMPLETE = 1;
+        static final int WAKEUP = 2;
+        static final int UNSCHEDULE = 3;
+        static final int CANCEL = 4;
+
+        final int type;
+        final Job job;
+        final long startTime;
+
+        Request( int type, Job job, long startTime )
+        {
+            this.type = type;
+            this.job = job;
+            this.startTime = startTime;
+        }
+
     }
 
 }
\ No newline at end of file
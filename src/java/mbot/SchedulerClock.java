@@ -0,0 +1,32 @@
+package mbot;
+
+//
+// Where the scheduler gets its time from. Normally that's the system
+// clock, but a VirtualClock lets a whole day's schedule be replayed in
+// seconds (see Scheduler.setClock).
+//
+// Times are on the wall clock timeline, so they can be compared with
+// job start times, but a clock must never go backwards.
+//
+public interface SchedulerClock
+{
+
+    public static final long NANOS_PER_MS = 1000 * 1000;
+
+    //
+    // The current time in MS
+    //
+    public long currentTime();
+
+    //
+    // The same time in NS, for precise waits
+    //
+    public long currentTimeNanos();
+
+    //
+    // Jump forward to the given time if this clock can do that, rather
+    // than waiting for it. Returns false if the caller has to wait.
+    //
+    public boolean advanceTo( long time );
+
+}
@@ -0,0 +1,374 @@
+package mbot;
+
+// Java imports
+import java.util.HashMap;
+
+//
+// A due-queue for one priority lane in the scheduler. Jobs land here
+// when their start time comes up and leave when they are handed to
+// the worker pool. The queue itself is only touched by the evaluator
+// thread; the metrics are single-writer volatiles so they can be read
+// from anywhere.
+//
+// Within the lane each controller has its own FIFO, and the FIFOs are
+// served in weighted fair order (stride scheduling): every dispatch
+// advances a controller's pass by 1/weight, and the non-empty FIFO with
+// the lowest pass goes next. A controller that floods the lane only
+// gets its share, and one that has been idle can't bank up credit.
+//
+// The FIFOs are linked through the jobs themselves (Job.laneNext and
+// lanePrev), so a due job can be canceled out of the middle of its
+// FIFO in O(1), however deep the lane is.
+//
+public class SchedulerLane
+{
+
+    String name;
+
+    //
+    // Key for jobs without a controller
+    //
+    static final Object NO_CONTROLLER = new Object();
+
+    //
+    // Due jobs, per controller, each in the order they came due
+    //
+    HashMap<Object, Flow> flows;
+
+    volatile int size = 0;
+
+    //
+    // The pass of the last flow served. Flows that go idle and
+    // come back start from here.
+    //
+    double virtualTime = 0;
+
+    //
+    // How many times in a row a higher lane was served while this one
+    // had jobs waiting. Used for starvation protection.
+    //
+    int passedOver = 0;
+
+    //
+    // Metrics
+    //
+    volatile long dispatched = 0;
+    volatile long totalWaitMS = 0;
+    volatile long maxWaitMS = 0;
+    volatile long starvationPromotions = 0;
+
+    SchedulerLane( String name )
+    {
+        this.name = name;
+        flows = new HashMap<Object, Flow>();
+    }
+
+    private Flow flowFor( Controller controller )
+    {
+        Object key = (controller == null) ? NO_CONTROLLER : controller;
+
+        Flow flow = flows.get( key );
+
+        if( flow == null )
+        {
+            flow = new Flow( controller );
+            flows.put( key, flow );
+        }
+
+        return flow;
+    }
+
+    //
+    // Add a job that has just come due
+    //
+    void add( Job job )
+    {
+        Flow flow = flowFor( job.controller );
+
+        if( flow.isEmpty() )
+        {
+            flow.pass = Math.max( flow.pass, virtualTime );
+        }
+
+        flow.addLast( job );
+        size = size + 1;
+    }
+
+    //
+    // Put back a job take() handed out that couldn't be started,
+    // along with the share it was charged for it
+    //
+    void putBack( Job job, Scheduler scheduler )
+    {
+        Flow flow = flowFor( job.controller );
+
+        flow.addFirst( job );
+        flow.pass -= 1.0 / scheduler.weightFor( flow.controller );
+        size = size + 1;
+    }
+
+    //
+    // Remove a job from wherever it is in its FIFO. Returns false
+    // if the job isn't due in this lane.
+    //
+    boolean remove( Job job )
+    {
+        Flow flow = job.laneFlow;
+
+        if( flow == null || flow != flows.get( (job.controller == null) ? NO_CONTROLLER : job.controller ) )
+        {
+            return false;
+        }
+
+        flow.unlink( job );
+        size = size - 1;
+
+        return true;
+    }
+
+    //
+    // Take the next job in fair order, skipping controllers that
+    // already have as many jobs running as they are allowed
+    //
+    Job take( Scheduler scheduler )
+    {
+        Flow best = null;
+
+        for( Flow flow : flows.values() )
+        {
+            if( flow.isEmpty() || scheduler.atControllerLimit( flow.controller ) )
+            {
+                continue;
+            }
+
+            if( best == null || flow.pass < best.pass )
+            {
+                best = flow;
+            }
+        }
+
+        if( best == null )
+        {
+            return null;
+        }
+
+        Job job = best.head;
+
+        best.unlink( job );
+        size = size - 1;
+
+        virtualTime = best.pass;
+        best.pass += 1.0 / scheduler.weightFor( best.controller );
+
+        return job;
+    }
+
+    //
+    // Take a job another evaluator shard may run: the first one without
+    // a shard key (so with no ordering to keep) or a queue slot, from
+    // the flow next in fair order that has one
+    //
+    Job takeStealable( Scheduler scheduler )
+    {
+        Flow best = null;
+        Job stealable = null;
+
+        for( Flow flow : flows.values() )
+        {
+            if( best != null && flow.pass >= best.pass )
+            {
+                continue;
+            }
+
+            for( Job job = flow.head; job != null; job = job.laneNext )
+            {
+                if( job.getShardKey() == null && job.admittedTo == null )
+                {
+                    best = flow;
+                    stealable = job;
+                    break;
+                }
+            }
+        }
+
+        if( best == null )
+        {
+            return null;
+        }
+
+        best.unlink( stealable );
+        size = size - 1;
+
+        virtualTime = best.pass;
+        best.pass += 1.0 / scheduler.weightFor( best.controller );
+
+        return stealable;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    //
+    // Note a job leaving the lane after waiting waitMS for a worker
+    //
+    void recordDispatch( long waitMS )
+    {
+        dispatched = dispatched + 1;
+        totalWaitMS = totalWaitMS + waitMS;
+
+        if( waitMS > maxWaitMS )
+        {
+            maxWaitMS = waitMS;
+        }
+    }
+
+    //
+    // Add another lane's metrics to these, for a total over
+    // the shards (see Scheduler.getLane)
+    //
+    void addMetrics( SchedulerLane other )
+    {
+        size = size + other.size;
+        dispatched = dispatched + other.dispatched;
+        totalWaitMS = totalWaitMS + other.totalWaitMS;
+        maxWaitMS = Math.max( maxWaitMS, other.maxWaitMS );
+        starvationPromotions = starvationPromotions + other.starvationPromotions;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    //
+    // Jobs due and waiting for a worker. Approximate
+    // when read from outside the evaluator.
+    //
+    public int getDepth()
+    {
+        return size;
+    }
+
+    public long getDispatched()
+    {
+        return dispatched;
+    }
+
+    //
+    // Time from a job coming due to it being handed to a worker
+    //
+    public long getMeanWaitMS()
+    {
+        long count = dispatched;
+
+        return (count == 0) ? 0 : totalWaitMS / count;
+    }
+
+    public long getMaxWaitMS()
+    {
+        return maxWaitMS;
+    }
+
+    //
+    // Times this lane was served ahead of a higher one because
+    // it had been passed over too often
+    //
+    public long getStarvationPromotions()
+    {
+        return starvationPromotions;
+    }
+
+    public String toString()
+    {
+        return name + ": depth=" + getDepth() +
+            " dispatched=" + dispatched +
+            " meanWaitMS=" + getMeanWaitMS() +
+            " maxWaitMS=" + maxWaitMS +
+            " promotions=" + starvationPromotions;
+    }
+
+    //
+    // One controller's due jobs, a FIFO linked through the jobs
+    //
+    static final class Flow
+    {
+        Controller controller;
+        Job head = null;
+        Job tail = null;
+        double pass = 0;
+
+        Flow( Controller controller )
+        {
+            this.controller = controller;
+        }
+
+        boolean isEmpty()
+        {
+            return head == null;
+        }
+
+        void addLast( Job job )
+        {
+            job.laneFlow = this;
+            job.lanePrev = tail;
+            job.laneNext = null;
+
+            if( tail == null )
+            {
+                head = job;
+            }
+            else
+            {
+                tail.laneNext = job;
+            }
+
+            tail = job;
+        }
+
+        void addFirst( Job job )
+        {
+            job.laneFlow = this;
+            job.lanePrev = null;
+            job.laneNext = head;
+
+            if( head == null )
+            {
+                tail = job;
+            }
+            else
+            {
+                head.lanePrev = job;
+            }
+
+            head = job;
+        }
+
+        void unlink( Job job )
+        {
+            if( job.lanePrev == null )
+            {
+                head = job.laneNext;
+            }
+            else
+            {
+                job.lanePrev.laneNext = job.laneNext;
+            }
+
+            if( job.laneNext == null )
+            {
+                tail = job.lanePrev;
+            }
+            else
+            {
+                job.laneNext.lanePrev = job.lanePrev;
+            }
+
+            job.laneFlow = null;
+            job.laneNext = null;
+            job.lanePrev = null;
+        }
+    }
+
+}
@@ -0,0 +1,267 @@
+package mbot;
+
+// Java imports
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//
+// Low-overhead counters and histograms for the scheduler.
+//
+// Queue depths are sampled by the evaluator each time around its loop.
+// Start lateness and run time are recorded by the worker thread as each
+// run completes, both overall and per job type and controller. All of it
+// can be pulled directly, or read over JMX once registered (see
+// Scheduler.registerMBean).
+//
+public class SchedulerMetrics implements SchedulerMetricsMBean
+{
+
+    //
+    // Stands in for a null controller in the per-type maps
+    //
+    static final Object NO_CONTROLLER = new Object();
+
+    //
+    // Queue depth gauges, written only by the evaluator
+    //
+    volatile int waitingDepth = 0;
+    volatile int maxWaitingDepth = 0;
+    volatile int runningDepth = 0;
+    volatile int maxRunningDepth = 0;
+    volatile int dueDepth = 0;
+
+    LongAdder scheduled;
+    LongAdder started;
+    LongAdder completed;
+    LongAdder failed;
+    LongAdder canceled;
+
+    //
+    // Watchdog timeouts, retries, and jobs given up on
+    //
+    LongAdder timeouts;
+    LongAdder retries;
+    LongAdder deadLettered;
+
+    //
+    // Admission control (see ControllerQueue)
+    //
+    LongAdder rejected;
+    LongAdder deferred;
+
+    //
+    // Due jobs run by another evaluator shard than their own
+    //
+    LongAdder stolen;
+
+    LatencyHistogram startLateness;
+    LatencyHistogram runTime;
+
+    //
+    // Job class -> controller -> metrics
+    //
+    ConcurrentHashMap<Class<?>, ConcurrentHashMap<Object, JobTypeMetrics>> jobTypes;
+
+    public SchedulerMetrics()
+    {
+        scheduled = new LongAdder();
+        started = new LongAdder();
+        completed = new LongAdder();
+        failed = new LongAdder();
+        canceled = new LongAdder();
+        timeouts = new LongAdder();
+        retries = new LongAdder();
+        deadLettered = new LongAdder();
+        rejected = new LongAdder();
+        deferred = new LongAdder();
+        stolen = new LongAdder();
+
+        startLateness = new LatencyHistogram();
+        runTime = new LatencyHistogram();
+
+        jobTypes = new ConcurrentHashMap<Class<?>, ConcurrentHashMap<Object, JobTypeMetrics>>();
+    }
+
+    //
+    // Evaluator side
+    //
+
+    void sampleDepths( int waiting, int running, int due )
+    {
+        waitingDepth = waiting;
+        runningDepth = running;
+        dueDepth = due;
+
+        if( waiting > maxWaitingDepth )
+        {
+            maxWaitingDepth = waiting;
+        }
+
+        if( running > maxRunningDepth )
+        {
+            maxRunningDepth = running;
+        }
+    }
+
+    //
+    // Worker side
+    //
+
+    JobTypeMetrics metricsFor( Job job )
+    {
+        ConcurrentHashMap<Object, JobTypeMetrics> byController = jobTypes.get( job.getClass() );
+
+        if( byController == null )
+        {
+            jobTypes.putIfAbsent( job.getClass(), new ConcurrentHashMap<Object, JobTypeMetrics>() );
+            byController = jobTypes.get( job.getClass() );
+        }
+
+        Object key = (job.controller == null) ? NO_CONTROLLER : job.controller;
+
+        JobTypeMetrics metrics = byController.get( key );
+
+        if( metrics == null )
+        {
+            String controllerName = (job.controller == null) ? "-" : job.controller.getName();
+
+            byController.putIfAbsent( key, new JobTypeMetrics( job.getClass().getSimpleName(), controllerName ) );
+            metrics = byController.get( key );
+        }
+
+        return metrics;
+    }
+
+    //
+    // Called as a run finishes, on the thread that ran it
+    //
+    void recordRun( Job job )
+    {
+        JobTypeMetrics metrics = metricsFor( job );
+
+        started.increment();
+
+        long lateness = job.runStartTime - job.scheduledTime;
+        long runUS = job.runNanos / 1000;
+
+        startLateness.record( lateness );
+        runTime.record( runUS );
+        metrics.startLateness.record( lateness );
+        metrics.runTime.record( runUS );
+
+        if( job.jobStatus == Job.JOB_STATUS_CANCELED )
+        {
+            canceled.increment();
+            metrics.canceled.increment();
+        }
+        else if( job.jobStatus == Job.JOB_STATUS_FAILED )
+        {
+            failed.increment();
+            metrics.failed.increment();
+        }
+        else
+        {
+            completed.increment();
+            metrics.completed.increment();
+        }
+    }
+
+    //
+    // Pull API
+    //
+
+    public LatencyHistogram getStartLatenessMS()
+    {
+        return startLateness;
+    }
+
+    public LatencyHistogram getRunTimeUS()
+    {
+        return runTime;
+    }
+
+    public Collection<JobTypeMetrics> getJobTypeMetrics()
+    {
+        ArrayList<JobTypeMetrics> all = new ArrayList<JobTypeMetrics>();
+
+        for( ConcurrentHashMap<Object, JobTypeMetrics> byController : jobTypes.values() )
+        {
+            all.addAll( byController.values() );
+        }
+
+        return all;
+    }
+
+    public String report()
+    {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append( "waiting=" + waitingDepth + " (max " + maxWaitingDepth + ")" );
+        sb.append( " due=" + dueDepth );
+        sb.append( " running=" + runningDepth + " (max " + maxRunningDepth + ")\n" );
+        sb.append( "scheduled=" + getJobsScheduled() + " started=" + getJobsStarted() );
+        sb.append( " completed=" + getJobsCompleted() + " failed=" + getJobsFailed() );
+        sb.append( " canceled=" + getJobsCanceled() + "\n" );
+        sb.append( "timeouts=" + getJobsTimedOut() + " retries=" + getJobsRetried() );
+        sb.append( " deadLettered=" + getJobsDeadLettered() + "\n" );
+        sb.append( "rejected=" + getJobsRejected() + " deferred=" + getJobsDeferred() );
+        sb.append( " stolen=" + getJobsStolen() + "\n" );
+        sb.append( "latenessMS[" + startLateness + "]\n" );
+        sb.append( "runTimeUS[" + runTime + "]\n" );
+
+        for( JobTypeMetrics metrics : getJobTypeMetrics() )
+        {
+            sb.append( "  " + metrics + "\n" );
+        }
+
+        return sb.toString();
+    }
+
+    //
+    // Implement SchedulerMetricsMBean
+    //
+
+    public int getWaitingQueueDepth() { return waitingDepth; }
+    public int getMaxWaitingQueueDepth() { return maxWaitingDepth; }
+    public int getRunningQueueDepth() { return runningDepth; }
+    public int getMaxRunningQueueDepth() { return maxRunningDepth; }
+    public int getDueQueueDepth() { return dueDepth; }
+
+    public long getJobsScheduled() { return scheduled.sum(); }
+    public long getJobsStarted() { return started.sum(); }
+    public long getJobsCompleted() { return completed.sum(); }
+    public long getJobsFailed() { return failed.sum(); }
+    public long getJobsCanceled() { return canceled.sum(); }
+    public long getJobsTimedOut() { return timeouts.sum(); }
+    public long getJobsRetried() { return retries.sum(); }
+    public long getJobsDeadLettered() { return deadLettered.sum(); }
+    public long getJobsRejected() { return rejected.sum(); }
+    public long getJobsDeferred() { return deferred.sum(); }
+    public long getJobsStolen() { return stolen.sum(); }
+
+    public long getStartLatenessP50MS() { return startLateness.getValueAtPercentile( 50 ); }
+    public long getStartLatenessP99MS() { return startLateness.getValueAtPercentile( 99 ); }
+    public long getStartLatenessMaxMS() { return startLateness.getMax(); }
+
+    public long getRunTimeP50US() { return runTime.getValueAtPercentile( 50 ); }
+    public long getRunTimeP99US() { return runTime.getValueAtPercentile( 99 ); }
+    public long getRunTimeMaxUS() { return runTime.getMax(); }
+
+    public String[] getJobTypeSummaries()
+    {
+        Collection<JobTypeMetrics> all = getJobTypeMetrics();
+        String[] summaries = new String[ all.size() ];
+
+        int i = 0;
+
+        for( JobTypeMetrics metrics : all )
+        {
+            summaries[ i++ ] = metrics.toString();
+        }
+
+        return summaries;
+    }
+
+}
@@ -0,0 +1,40 @@
+package mbot;
+
+//
+// JMX view of the scheduler's metrics (see SchedulerMetrics)
+//
+public interface SchedulerMetricsMBean
+{
+
+    public int getWaitingQueueDepth();
+    public int getMaxWaitingQueueDepth();
+    public int getRunningQueueDepth();
+    public int getMaxRunningQueueDepth();
+    public int getDueQueueDepth();
+
+    public long getJobsScheduled();
+    public long getJobsStarted();
+    public long getJobsCompleted();
+    public long getJobsFailed();
+    public long getJobsCanceled();
+    public long getJobsTimedOut();
+    public long getJobsRetried();
+    public long getJobsDeadLettered();
+    public long getJobsRejected();
+    public long getJobsDeferred();
+    public long getJobsStolen();
+
+    public long getStartLatenessP50MS();
+    public long getStartLatenessP99MS();
+    public long getStartLatenessMaxMS();
+
+    public long getRunTimeP50US();
+    public long getRunTimeP99US();
+    public long getRunTimeMaxUS();
+
+    //
+    // One line per job type and controller
+    //
+    public String[] getJobTypeSummaries();
+
+}
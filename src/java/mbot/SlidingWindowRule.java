@@ -0,0 +1,102 @@
+package mbot;
+
+// Java imports
+import java.util.HashMap;
+import java.util.Iterator;
+
+//
+// Allows at most maxRequests per key in any windowMS long window.
+// Each key keeps a ring of its last maxRequests request times, so
+// checking and recording are O(1).
+//
+public class SlidingWindowRule extends RateLimitRule
+{
+
+    int maxRequests;
+    long windowMS;
+
+    //
+    // Per-key ring of request times
+    //
+    HashMap<String, Window> windows;
+
+    public SlidingWindowRule( int scope, int maxRequests, long windowMS )
+    {
+        super( scope );
+
+        if( maxRequests < 1 || windowMS < 1 )
+        {
+            throw new IllegalArgumentException("Invalid sliding window");
+        }
+
+        this.maxRequests = maxRequests;
+        this.windowMS = windowMS;
+
+        windows = new HashMap<String, Window>();
+    }
+
+    long nextAllowedTime( String key, long now )
+    {
+        Window window = windows.get( key );
+
+        if( window == null || window.count < maxRequests )
+        {
+            return now;
+        }
+
+        //
+        // Full -- the oldest request has to age out first
+        //
+        return Math.max( now, window.times[ window.next ] + windowMS );
+    }
+
+    void record( String key, long time )
+    {
+        Window window = windows.get( key );
+
+        if( window == null )
+        {
+            window = new Window( maxRequests );
+            windows.put( key, window );
+        }
+
+        window.times[ window.next ] = time;
+        window.next = (window.next + 1) % maxRequests;
+        window.newest = Math.max( window.newest, time );
+
+        if( window.count < maxRequests )
+        {
+            window.count++;
+        }
+    }
+
+    void prune( long now )
+    {
+        Iterator<Window> iter = windows.values().iterator();
+
+        while( iter.hasNext() )
+        {
+            if( iter.next().newest + windowMS <= now )
+            {
+                iter.remove();
+            }
+        }
+    }
+
+    static final class Window
+    {
+        //
+        // Ring of request times. Once full, 'next' is also the oldest.
+        //
+        long[] times;
+        int next = 0;
+        int count = 0;
+        long newest = Long.MIN_VALUE;
+
+        Window( int size )
+        {
+            times = new long[ size ];
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package mbot;
+
+// Java imports
+import java.util.HashMap;
+
+//
+// Gives every symbol a small int id, the same for the life of the
+// process, so the tick path can pass symbols around as ints (see
+// TickCallback). Ids are handed out from zero in order.
+//
+// Looking up the symbol for an id is lock-free: the symbols live in
+// an array that is swapped for a longer copy when one is added.
+//
+public final class SymbolIds
+{
+
+    public static final int NO_SYMBOL = -1;
+
+    private static volatile String[] symbols = new String[ 0 ];
+
+    //
+    // Guarded by the class lock
+    //
+    private static final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+    private SymbolIds()
+    {
+    }
+
+    //
+    // The id for a symbol, assigning one if it is new
+    //
+    public static synchronized int idFor( String symbol )
+    {
+        Integer id = ids.get( symbol );
+
+        if( id != null )
+        {
+            return id;
+        }
+
+        String[] current = symbols;
+        String[] grown = new String[ current.length + 1 ];
+
+        System.arraycopy( current, 0, grown, 0, current.length );
+        grown[ current.length ] = symbol;
+
+        ids.put( symbol, current.length );
+        symbols = grown;
+
+        return current.length;
+    }
+
+    //
+    // The symbol for an id, or null if there is no such id
+    //
+    public static String symbolFor( int id )
+    {
+        String[] current = symbols;
+
+        return (id >= 0 && id < current.length) ? current[ id ] : null;
+    }
+
+    public static int size()
+    {
+        return symbols.length;
+    }
+
+}
@@ -0,0 +1,39 @@
+package mbot;
+
+//
+// Real time. Can't be hurried.
+//
+// The clock reads the wall clock once, when it is created, and after
+// that counts forward with System.nanoTime(). So it never jumps when NTP
+// steps the system clock, and it has sub-millisecond resolution. The
+// price is that it can slowly drift from the wall clock, by about as
+// much as NTP would have corrected.
+//
+public class SystemClock implements SchedulerClock
+{
+
+    final long baseNanos;
+    final long baseNanoTime;
+
+    public SystemClock()
+    {
+        baseNanos = System.currentTimeMillis() * NANOS_PER_MS;
+        baseNanoTime = System.nanoTime();
+    }
+
+    public long currentTime()
+    {
+        return currentTimeNanos() / NANOS_PER_MS;
+    }
+
+    public long currentTimeNanos()
+    {
+        return baseNanos + (System.nanoTime() - baseNanoTime);
+    }
+
+    public boolean advanceTo( long time )
+    {
+        return false;
+    }
+
+}
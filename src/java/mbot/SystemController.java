@@ -18,6 +18,7 @@ import java.util.LinkedList;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Collections;
+import java.io.File;
 
 //
 // This controls the entire system. It doesn't 
@@ -63,6 +64,49 @@ public class SystemController
     //
     LinkedList<Controller> controllers;
 
+    //
+    // Set this system property to a file path to journal the
+    // scheduler's jobs there and recover them on restart
+    //
+    public static final String JOURNAL_PROPERTY = "mbot.journal";
+
+    //
+    // Set this system property to split the scheduler into that many
+    // evaluator shards
+    //
+    public static final String SHARDS_PROPERTY = "mbot.scheduler.shards";
+
+    //
+    // How the scheduler runs jobs: "pooled" (the default) or "virtual"
+    // (a virtual thread per job, Java 21 and later), and how many may
+    // run at once, by default the pool size or DEFAULT_MAX_VIRTUAL_JOBS
+    //
+    public static final String EXECUTION_PROPERTY = "mbot.scheduler.execution";
+    public static final String MAX_JOBS_PROPERTY = "mbot.scheduler.maxjobs";
+
+    //
+    // How many connections to TWS to spread symbols across
+    //
+    public static final String TWS_CONNECTIONS_PROPERTY = "mbot.tws.connections";
+
+    //
+    // Market data line budget (see MarketDataLines): the account's
+    // line limit, how many lines to rotate once over it, and how long
+    // each rotating symbol keeps a line
+    //
+    public static final String MKT_DATA_LINES_PROPERTY = "mbot.tws.lines";
+    public static final String ROTATION_LINES_PROPERTY = "mbot.tws.lines.rotation";
+    public static final String DWELL_MS_PROPERTY = "mbot.tws.lines.dwellms";
+
+    //
+    // Tick hand-off (see TickDispatcher): how many consumer threads
+    // drain ticks from the TWS reader (0 delivers them on the reader),
+    // how many ticks each can hold, and how the consumers wait
+    //
+    public static final String TICK_CONSUMERS_PROPERTY = "mbot.ticks.consumers";
+    public static final String TICK_CAPACITY_PROPERTY = "mbot.ticks.capacity";
+    public static final String TICK_WAIT_PROPERTY = "mbot.ticks.wait";
+
     public SystemController()
         throws SystemControllerException
     {
@@ -73,7 +117,24 @@ public class SystemController
             //
             // Spin up the scheduler.
             //
-            scheduler = new Scheduler();
+            int executionMode = Scheduler.parseExecutionMode( System.getProperty( EXECUTION_PROPERTY, "pooled" ) );
+            int defaultMaxJobs = (executionMode == Scheduler.EXECUTION_VIRTUAL) ?
+                Scheduler.DEFAULT_MAX_VIRTUAL_JOBS : Scheduler.DEFAULT_POOL_SIZE;
+
+            scheduler = new Scheduler( executionMode,
+                                       Integer.getInteger( MAX_JOBS_PROPERTY, defaultMaxJobs ),
+                                       Scheduler.DEFAULT_WORK_QUEUE_SIZE,
+                                       new TimingWheelWaitingQueue() );
+            scheduler.setShardCount( Integer.getInteger( SHARDS_PROPERTY, 1 ) );
+            scheduler.registerMBean( "main" );
+
+            String journalPath = System.getProperty( JOURNAL_PROPERTY );
+
+            if( journalPath != null )
+            {
+                scheduler.setJournal( new JobJournal( new File( journalPath ) ) );
+            }
+
             scheduler.startEvaluatorThread();
 
             //
@@ -85,7 +146,25 @@ public class SystemController
             //
             // Create the Tws subsystem
             //
-            twsSubsystem = new TwsSubsystem( "localhost", 7496 );
+            twsSubsystem = new TwsSubsystem( "localhost", 7496,
+                                             Integer.getInteger( TWS_CONNECTIONS_PROPERTY, 1 ) );
+
+            TickDispatcher ticks =
+                new TickDispatcher( Integer.getInteger( TICK_CONSUMERS_PROPERTY, 1 ),
+                                    Integer.getInteger( TICK_CAPACITY_PROPERTY, TickDispatcher.DEFAULT_CAPACITY ),
+                                    TickDispatcher.parseWaitStrategy( System.getProperty( TICK_WAIT_PROPERTY, "blocking" ) ) );
+
+            ticks.registerMBean( "main" );
+            ticks.start();
+
+            twsSubsystem.setTickDispatcher( ticks );
+
+            twsSubsystem.getMarketDataLines().setLimits(
+                Integer.getInteger( MKT_DATA_LINES_PROPERTY, MarketDataLines.DEFAULT_MAX_LINES ),
+                Integer.getInteger( ROTATION_LINES_PROPERTY, MarketDataLines.DEFAULT_ROTATION_LINES ),
+                Long.getLong( DWELL_MS_PROPERTY, MarketDataLines.DEFAULT_DWELL_MS ) );
+
+            twsSubsystem.startLineRotation( scheduler );
 
             System.out.println( "Connected to " + twsSubsystem.getServerInfo() );
 
@@ -99,6 +178,7 @@ public class SystemController
                                       twsSubsystem );
 
             msc.initFromControl();
+            scheduler.scheduleRefresh( msc, MktStkController.REFRESH_PERIOD_MS );
 
             System.out.println( "MktStkController initialized" );
             */
@@ -109,6 +189,15 @@ public class SystemController
         
             System.out.println( "HistoricalController initialized" );
 
+            //
+            // Now that the controllers can restore their jobs,
+            // pick up where the last run left off
+            //
+            if( scheduler.getJournal() != null )
+            {
+                scheduler.replayJournal();
+            }
+
             //Long now = Controller.getTimestampMS() - (6*60*60*1000);
             Long now = Controller.getTimestampMS(); ;            
 
@@ -116,6 +205,7 @@ public class SystemController
             hsc.addToControl( "ATVI", now-HistoricalStkController.TIME_1_YEAR_IN_MS );
             System.out.println( "Pulling work" );
             hsc.pullWorkFromControl();
+            scheduler.scheduleRefresh( hsc, HistoricalStkController.PULL_WORK_PERIOD_MS );
             System.out.println( "Done" );
 
             //
@@ -161,6 +251,7 @@ public class SystemController
             if( twsSubsystem != null )
             {
                 twsSubsystem.shutdown();
+                twsSubsystem.getTickDispatcher().shutdown();
             }
 
             if( cassandraSubsystem != null )
@@ -185,6 +276,12 @@ public class SystemController
 
         twsSubsystem.shutdown();
 
+        //
+        // After the TWS connection, so nothing more comes in
+        // while the consumers finish off what they have
+        //
+        twsSubsystem.getTickDispatcher().shutdown();
+
     }
 
     //
@@ -0,0 +1,43 @@
+package mbot;
+
+//
+// Market data ticks in primitive form: the symbol as its SymbolIds id,
+// the field as its IB TickType, and the values unboxed. TwsSubsystem
+// delivers every tick through this interface, so a controller that
+// implements it directly handles ticks without allocating anything.
+//
+// Controller implements it as an adapter onto the older boxed
+// callbacks (tickPriceCallback() and friends), so controllers that
+// only override those keep working unchanged.
+//
+// Called on a TickDispatcher consumer thread, never on more than one
+// at a time for a given controller. If the dispatcher has no consumers
+// they are called on the TWS reader threads instead -- one per TWS
+// connection, so possibly several at once -- and mustn't block.
+//
+public interface TickCallback
+{
+
+    public void onTickPrice( int symbolId, int field, double price, boolean canAutoExecute );
+
+    public void onTickSize( int symbolId, int field, long size );
+
+    public void onTickGeneric( int symbolId, int field, double value );
+
+    public void onTickString( int symbolId, int field, String value );
+
+    //
+    // A parsed RTVolume tick: last trade price, size and time (MS),
+    // total volume for the day, VWAP, and whether the trade was
+    // filled by a single market maker. Fields IB left empty are
+    // RTVolumeParser.NO_PRICE or NO_VALUE.
+    //
+    public void onRTVolume( int symbolId,
+                            double lastPrice,
+                            long lastSize,
+                            long lastTimeMS,
+                            long totalVolume,
+                            double vwap,
+                            boolean isSingleTrade );
+
+}
@@ -0,0 +1,429 @@
+package mbot;
+
+// Java imports
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+
+//
+// Hands ticks from the TWS reader thread over to the controllers.
+//
+// With no consumers, ticks are delivered inline on the reader thread,
+// as they always were. With consumers, each gets its own TickRing and
+// thread, and the reader only copies the tick into a ring slot, so a
+// controller that is slow to handle a tick (console output, a Cassandra
+// write) no longer holds up the TWS socket. If a controller falls so
+// far behind that its ring fills, its ticks are dropped and counted
+// rather than blocking the reader.
+//
+// Every controller is pinned to one ring, so a controller sees its
+// ticks in the order TWS sent them, on one thread at a time, just as
+// it did on the reader thread. Controllers are spread across the rings,
+// so it takes more than one controller to use more than one consumer.
+//
+// Producer methods are called from the TWS reader thread. With more
+// than one TWS connection (see TwsSubsystem) several reader threads
+// share the dispatcher; setSharedProducers() makes the rings safe for
+// that, at the cost of a lock per tick.
+//
+public class TickDispatcher implements TickDispatcherMBean
+{
+
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    final TickRing[] rings;
+
+    final int waitStrategy;
+
+    private ObjectName mbeanName;
+
+    //
+    // Constructors. The first delivers inline.
+    //
+    public TickDispatcher()
+    {
+        this( 0, DEFAULT_CAPACITY, TickRing.WAIT_BLOCKING );
+    }
+
+    public TickDispatcher( int consumers, int capacity, int waitStrategy )
+    {
+        if( consumers < 0 )
+        {
+            throw new IllegalArgumentException("Bad tick consumer count " + consumers);
+        }
+
+        this.waitStrategy = waitStrategy;
+
+        rings = new TickRing[ consumers ];
+
+        for( int i = 0; i < consumers; i++ )
+        {
+            rings[ i ] = new TickRing( "mbot-ticks-" + i, capacity, waitStrategy );
+        }
+    }
+
+    //
+    // Whether more than one reader thread publishes ticks. Must be
+    // set before any ticks are published.
+    //
+    public void setSharedProducers( boolean shared )
+    {
+        for( TickRing ring : rings )
+        {
+            ring.setSharedProducers( shared );
+        }
+    }
+
+    public void start()
+    {
+        for( TickRing ring : rings )
+        {
+            ring.start();
+        }
+    }
+
+    //
+    // Stop the consumers, after they have delivered what they have
+    //
+    public void shutdown()
+    {
+        for( TickRing ring : rings )
+        {
+            ring.shutdown();
+        }
+
+        unregisterMBean();
+    }
+
+    //
+    // Publish the metrics on the platform MBean server, as
+    // mbot:type=TickDispatcher,name=<name>
+    //
+    public void registerMBean( String name )
+        throws TwsSubsystemException
+    {
+        try
+        {
+            ObjectName objectName = new ObjectName( "mbot:type=TickDispatcher,name=" + ObjectName.quote( name ) );
+
+            ManagementFactory.getPlatformMBeanServer().registerMBean( this, objectName );
+
+            mbeanName = objectName;
+        }
+        catch( Exception e )
+        {
+            throw new TwsSubsystemException("Failed to register tick dispatcher metrics: " + e.getMessage());
+        }
+    }
+
+    private void unregisterMBean()
+    {
+        if( mbeanName == null )
+        {
+            return;
+        }
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean( mbeanName );
+        }
+        catch( Exception e )
+        {
+            // Already gone, nothing to do
+        }
+
+        mbeanName = null;
+    }
+
+    //
+    // Which ring a controller's ticks go through
+    //
+    private TickRing ringFor( TickCallback target )
+    {
+        return rings[ (System.identityHashCode( target ) & 0x7fffffff) % rings.length ];
+    }
+
+    //
+    // Producer side, one per TickCallback method. RTVolume strings
+    // are expected to have been parsed already (see TwsConnection).
+    //
+
+    public void tickPrice( TickCallback target, int symbolId, int field, double price, boolean canAutoExecute )
+    {
+        if( rings.length == 0 )
+        {
+            target.onTickPrice( symbolId, field, price, canAutoExecute );
+            return;
+        }
+
+        TickRing ring = ringFor( target );
+        TickRing.TickEvent event = ring.claim();
+
+        if( event == null )
+        {
+            return;
+        }
+
+        event.kind = TickRing.EVENT_PRICE;
+        event.target = target;
+        event.symbolId = symbolId;
+        event.field = field;
+        event.price = price;
+        event.flag = canAutoExecute;
+
+        ring.publish();
+    }
+
+    public void tickSize( TickCallback target, int symbolId, int field, long size )
+    {
+        if( rings.length == 0 )
+        {
+            target.onTickSize( symbolId, field, size );
+            return;
+        }
+
+        TickRing ring = ringFor( target );
+        TickRing.TickEvent event = ring.claim();
+
+        if( event == null )
+        {
+            return;
+        }
+
+        event.kind = TickRing.EVENT_SIZE;
+        event.target = target;
+        event.symbolId = symbolId;
+        event.field = field;
+        event.size = size;
+
+        ring.publish();
+    }
+
+    public void tickGeneric( TickCallback target, int symbolId, int field, double value )
+    {
+        if( rings.length == 0 )
+        {
+            target.onTickGeneric( symbolId, field, value );
+            return;
+        }
+
+        TickRing ring = ringFor( target );
+        TickRing.TickEvent event = ring.claim();
+
+        if( event == null )
+        {
+            return;
+        }
+
+        event.kind = TickRing.EVENT_GENERIC;
+        event.target = target;
+        event.symbolId = symbolId;
+        event.field = field;
+        event.price = value;
+
+        ring.publish();
+    }
+
+    public void tickString( TickCallback target, int symbolId, int field, String value )
+    {
+        if( rings.length == 0 )
+        {
+            target.onTickString( symbolId, field, value );
+            return;
+        }
+
+        TickRing ring = ringFor( target );
+        TickRing.TickEvent event = ring.claim();
+
+        if( event == null )
+        {
+            return;
+        }
+
+        event.kind = TickRing.EVENT_STRING;
+        event.target = target;
+        event.symbolId = symbolId;
+        event.field = field;
+        event.value = value;
+
+        ring.publish();
+    }
+
+    public void tickRTVolume( TickCallback target,
+                              int symbolId,
+                              double lastPrice,
+                              long lastSize,
+                              long lastTimeMS,
+                              long totalVolume,
+                              double vwap,
+                              boolean isSingleTrade )
+    {
+        if( rings.length == 0 )
+        {
+            target.onRTVolume( symbolId, lastPrice, lastSize, lastTimeMS, totalVolume, vwap, isSingleTrade );
+            return;
+        }
+
+        TickRing ring = ringFor( target );
+        TickRing.TickEvent event = ring.claim();
+
+        if( event == null )
+        {
+            return;
+        }
+
+        event.kind = TickRing.EVENT_RT_VOLUME;
+        event.target = target;
+        event.symbolId = symbolId;
+        event.price = lastPrice;
+        event.size = lastSize;
+        event.timeMS = lastTimeMS;
+        event.totalVolume = totalVolume;
+        event.vwap = vwap;
+        event.flag = isSingleTrade;
+
+        ring.publish();
+    }
+
+    //
+    // Implement TickDispatcherMBean
+    //
+
+    public int getConsumerCount()
+    {
+        return rings.length;
+    }
+
+    public int getRingCapacity()
+    {
+        return rings.length > 0 ? rings[ 0 ].getCapacity() : 0;
+    }
+
+    public String getWaitStrategy()
+    {
+        switch( waitStrategy )
+        {
+        case TickRing.WAIT_BUSY_SPIN:
+            return "busy-spin";
+        case TickRing.WAIT_YIELD:
+            return "yield";
+        case TickRing.WAIT_SLEEP:
+            return "sleep";
+        default:
+            return "blocking";
+        }
+    }
+
+    public long getQueueDepth()
+    {
+        long depth = 0;
+
+        for( TickRing ring : rings )
+        {
+            depth += ring.getDepth();
+        }
+
+        return depth;
+    }
+
+    //
+    // The deepest any one ring has been
+    //
+    public long getMaxQueueDepth()
+    {
+        long max = 0;
+
+        for( TickRing ring : rings )
+        {
+            max = Math.max( max, ring.getMaxDepth() );
+        }
+
+        return max;
+    }
+
+    public long getTicksPublished()
+    {
+        long published = 0;
+
+        for( TickRing ring : rings )
+        {
+            published += ring.getPublished();
+        }
+
+        return published;
+    }
+
+    public long getTicksDelivered()
+    {
+        long delivered = 0;
+
+        for( TickRing ring : rings )
+        {
+            delivered += ring.getDelivered();
+        }
+
+        return delivered;
+    }
+
+    public long getTicksDropped()
+    {
+        long dropped = 0;
+
+        for( TickRing ring : rings )
+        {
+            dropped += ring.getDropped();
+        }
+
+        return dropped;
+    }
+
+    public long getDeliveryErrors()
+    {
+        long errors = 0;
+
+        for( TickRing ring : rings )
+        {
+            errors += ring.getErrors();
+        }
+
+        return errors;
+    }
+
+    public String[] getRingSummaries()
+    {
+        String[] summaries = new String[ rings.length ];
+
+        for( int i = 0; i < rings.length; i++ )
+        {
+            summaries[ i ] = rings[ i ].toString();
+        }
+
+        return summaries;
+    }
+
+    //
+    // Turn a wait strategy name (as in getWaitStrategy()) back into
+    // its TickRing constant
+    //
+    public static int parseWaitStrategy( String name )
+    {
+        if( "busy-spin".equals( name ) )
+        {
+            return TickRing.WAIT_BUSY_SPIN;
+        }
+        else if( "yield".equals( name ) )
+        {
+            return TickRing.WAIT_YIELD;
+        }
+        else if( "sleep".equals( name ) )
+        {
+            return TickRing.WAIT_SLEEP;
+        }
+        else if( "blocking".equals( name ) )
+        {
+            return TickRing.WAIT_BLOCKING;
+        }
+
+        throw new IllegalArgumentException("Unknown tick wait strategy " + name);
+    }
+
+}
@@ -0,0 +1,27 @@
+package mbot;
+
+//
+// JMX view of the tick hand-off between the TWS reader thread
+// and the controllers (see TickDispatcher)
+//
+public interface TickDispatcherMBean
+{
+
+    public int getConsumerCount();
+    public int getRingCapacity();
+    public String getWaitStrategy();
+
+    public long getQueueDepth();
+    public long getMaxQueueDepth();
+
+    public long getTicksPublished();
+    public long getTicksDelivered();
+    public long getTicksDropped();
+    public long getDeliveryErrors();
+
+    //
+    // One line per consumer ring
+    //
+    public String[] getRingSummaries();
+
+}
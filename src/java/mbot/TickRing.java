@@ -0,0 +1,491 @@
+package mbot;
+
+// Java imports
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+//
+// A preallocated, single-producer single-consumer ring of tick events,
+// drained by its own consumer thread. The producer is the TWS reader
+// thread (see TickDispatcher); it fills in a slot and publishes it, and
+// never waits on the consumer -- if the ring is full the tick is dropped
+// and counted, since holding up the reader is what backs up the TWS
+// socket.
+//
+// Slots are mutable and reused, so publishing a tick allocates nothing.
+// The producer and consumer each own one sequence and only read the
+// other's, so there are no locks and no CAS on the hot path. When there
+// is more than one reader thread (setSharedProducers()), they take turns
+// at the producer side under a lock held from claim() to publish().
+//
+// How the consumer waits for ticks when the ring is empty is set by the
+// wait strategy:
+//
+//   WAIT_BUSY_SPIN  spin flat out. Lowest latency, burns a core.
+//   WAIT_YIELD      spin, yielding the CPU each time around
+//   WAIT_SLEEP      spin, then yield, then sleep in short naps
+//   WAIT_BLOCKING   spin briefly, then park until the producer wakes it.
+//                   Costs the producer a volatile read per tick, and an
+//                   unpark when the consumer is asleep.
+//
+public class TickRing implements Runnable
+{
+
+    //
+    // Wait strategies
+    //
+    public static final int WAIT_BUSY_SPIN = 0;
+    public static final int WAIT_YIELD = 1;
+    public static final int WAIT_SLEEP = 2;
+    public static final int WAIT_BLOCKING = 3;
+
+    //
+    // Idle loops spent spinning, then yielding, before
+    // WAIT_SLEEP and WAIT_BLOCKING start to sleep
+    //
+    static final int SPIN_TRIES = 100;
+    static final int YIELD_TRIES = 100;
+
+    //
+    // How long WAIT_SLEEP naps for, in NS
+    //
+    static final long SLEEP_NS = 100000;
+
+    //
+    // Event kinds
+    //
+    static final int EVENT_PRICE = 0;
+    static final int EVENT_SIZE = 1;
+    static final int EVENT_GENERIC = 2;
+    static final int EVENT_STRING = 3;
+    static final int EVENT_RT_VOLUME = 4;
+
+    final TickEvent[] slots;
+    final int mask;
+
+    final int waitStrategy;
+
+    //
+    // Next sequence the producer will write. Producer only.
+    //
+    private long tail = 0;
+
+    //
+    // The producer's last look at consumed, so it only reads the
+    // consumer's sequence when the ring looks full
+    //
+    private long cachedConsumed = 0;
+
+    //
+    // Sequences handed over between the threads: everything before
+    // published may be read, everything before consumed may be reused
+    //
+    private final AtomicLong published = new AtomicLong( 0 );
+    private final AtomicLong consumed = new AtomicLong( 0 );
+
+    //
+    // Set by the consumer just before it parks, under WAIT_BLOCKING
+    //
+    private volatile boolean parked = false;
+
+    //
+    // Held by a producer from claim() to publish() when the ring is
+    // shared between reader threads
+    //
+    private volatile boolean sharedProducers = false;
+    private final ReentrantLock producerLock = new ReentrantLock();
+
+    private volatile boolean running = false;
+
+    private volatile Thread thread;
+
+    private final String name;
+
+    //
+    // Metrics. dropped and maxDepth are written by the producer only.
+    //
+    private volatile long dropped = 0;
+    private volatile long maxDepth = 0;
+    private volatile long errors = 0;
+
+    //
+    // Constructor. capacity is rounded up to a power of two.
+    //
+    public TickRing( String name, int capacity, int waitStrategy )
+    {
+        if( capacity < 1 || capacity > (1 << 30) )
+        {
+            throw new IllegalArgumentException("Bad tick ring capacity " + capacity);
+        }
+
+        if( waitStrategy < WAIT_BUSY_SPIN || waitStrategy > WAIT_BLOCKING )
+        {
+            throw new IllegalArgumentException("Bad wait strategy " + waitStrategy);
+        }
+
+        int size = Integer.highestOneBit( capacity );
+
+        if( size < capacity )
+        {
+            size <<= 1;
+        }
+
+        this.name = name;
+        this.waitStrategy = waitStrategy;
+
+        slots = new TickEvent[ size ];
+        mask = size - 1;
+
+        for( int i = 0; i < size; i++ )
+        {
+            slots[ i ] = new TickEvent();
+        }
+    }
+
+    //
+    // Producer side. claim() hands back the next free slot, or null
+    // (counting a drop) if the ring is full; the caller fills it in
+    // and then calls publish().
+    //
+
+    //
+    // Call before any ticks are published
+    //
+    void setSharedProducers( boolean sharedProducers )
+    {
+        this.sharedProducers = sharedProducers;
+    }
+
+    TickEvent claim()
+    {
+        if( sharedProducers )
+        {
+            producerLock.lock();
+        }
+
+        if( tail - cachedConsumed >= slots.length )
+        {
+            cachedConsumed = consumed.get();
+
+            if( tail - cachedConsumed >= slots.length )
+            {
+                dropped++;
+
+                if( sharedProducers )
+                {
+                    producerLock.unlock();
+                }
+
+                return null;
+            }
+        }
+
+        return slots[ (int) tail & mask ];
+    }
+
+    void publish()
+    {
+        tail++;
+
+        long depth = tail - cachedConsumed;
+
+        if( depth > maxDepth )
+        {
+            maxDepth = depth;
+        }
+
+        if( waitStrategy == WAIT_BLOCKING )
+        {
+            //
+            // A full barrier, so the consumer can't miss the tick
+            // between checking for one and saying it has parked
+            //
+            published.set( tail );
+
+            if( parked == true )
+            {
+                LockSupport.unpark( thread );
+            }
+        }
+        else
+        {
+            published.lazySet( tail );
+        }
+
+        if( sharedProducers )
+        {
+            producerLock.unlock();
+        }
+    }
+
+    //
+    // Consumer thread
+    //
+
+    public synchronized void start()
+    {
+        if( thread != null )
+        {
+            return;
+        }
+
+        running = true;
+
+        thread = new Thread( this, name );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    //
+    // Stop the consumer once it has delivered what's already
+    // published, and wait for it
+    //
+    public void shutdown()
+    {
+        Thread consumer;
+
+        synchronized( this )
+        {
+            consumer = thread;
+            running = false;
+        }
+
+        if( consumer == null )
+        {
+            return;
+        }
+
+        LockSupport.unpark( consumer );
+
+        try
+        {
+            consumer.join();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run()
+    {
+        long next = consumed.get();
+        int idle = 0;
+
+        while( true )
+        {
+            long available = published.get();
+
+            if( next == available )
+            {
+                if( running == false )
+                {
+                    return;
+                }
+
+                idle = waitForTicks( idle, next );
+                continue;
+            }
+
+            idle = 0;
+
+            while( next < available )
+            {
+                TickEvent event = slots[ (int) next & mask ];
+
+                deliver( event );
+
+                next++;
+
+                //
+                // Hand the slot back straight away rather than at the
+                // end of the batch, so a long batch doesn't look full
+                //
+                consumed.lazySet( next );
+            }
+        }
+    }
+
+    private int waitForTicks( int idle, long next )
+    {
+        if( waitStrategy == WAIT_BUSY_SPIN )
+        {
+            return idle;
+        }
+
+        if( waitStrategy == WAIT_YIELD )
+        {
+            Thread.yield();
+            return idle;
+        }
+
+        if( idle < SPIN_TRIES )
+        {
+            return idle + 1;
+        }
+
+        if( idle < SPIN_TRIES + YIELD_TRIES )
+        {
+            Thread.yield();
+            return idle + 1;
+        }
+
+        if( waitStrategy == WAIT_SLEEP )
+        {
+            LockSupport.parkNanos( this, SLEEP_NS );
+            return idle;
+        }
+
+        //
+        // WAIT_BLOCKING. Say we are parking, then look once more, so
+        // a tick published in between either gets seen here or sees
+        // the flag and unparks us.
+        //
+        parked = true;
+
+        if( published.get() == next && running == true )
+        {
+            LockSupport.park( this );
+        }
+
+        parked = false;
+
+        return idle;
+    }
+
+    private void deliver( TickEvent event )
+    {
+        TickCallback target = event.target;
+
+        //
+        // Don't hold on to the controller or the string
+        // while the slot sits waiting to be reused
+        //
+        event.target = null;
+
+        try
+        {
+            switch( event.kind )
+            {
+            case EVENT_PRICE:
+                target.onTickPrice( event.symbolId, event.field, event.price, event.flag );
+                break;
+            case EVENT_SIZE:
+                target.onTickSize( event.symbolId, event.field, event.size );
+                break;
+            case EVENT_GENERIC:
+                target.onTickGeneric( event.symbolId, event.field, event.price );
+                break;
+            case EVENT_STRING:
+                String value = event.value;
+                event.value = null;
+
+                target.onTickString( event.symbolId, event.field, value );
+                break;
+            default:
+                target.onRTVolume( event.symbolId,
+                                   event.price,
+                                   event.size,
+                                   event.timeMS,
+                                   event.totalVolume,
+                                   event.vwap,
+                                   event.flag );
+            }
+        }
+        catch( RuntimeException e )
+        {
+            //
+            // One bad tick mustn't take the consumer down with it
+            //
+            errors++;
+
+            System.out.println( name + ": Exception delivering tick: " + e );
+        }
+    }
+
+    //
+    // Metrics
+    //
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getCapacity()
+    {
+        return slots.length;
+    }
+
+    public int getWaitStrategy()
+    {
+        return waitStrategy;
+    }
+
+    //
+    // Published but not yet delivered
+    //
+    public long getDepth()
+    {
+        return Math.max( 0, published.get() - consumed.get() );
+    }
+
+    public long getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    public long getPublished()
+    {
+        return published.get();
+    }
+
+    public long getDelivered()
+    {
+        return consumed.get();
+    }
+
+    public long getDropped()
+    {
+        return dropped;
+    }
+
+    public long getErrors()
+    {
+        return errors;
+    }
+
+    public String toString()
+    {
+        return name +
+            ": depth " + getDepth() +
+            ", max depth " + maxDepth +
+            ", published " + getPublished() +
+            ", delivered " + getDelivered() +
+            ", dropped " + dropped +
+            ", errors " + errors;
+    }
+
+    //
+    // One slot. Which fields mean something depends on the kind:
+    // price holds the price or generic value (or the RTVolume last
+    // price), size the size (or RTVolume last size), and flag
+    // canAutoExecute (or RTVolume isSingleTrade).
+    //
+    static final class TickEvent
+    {
+        int kind;
+        TickCallback target;
+        int symbolId;
+        int field;
+        double price;
+        long size;
+        long timeMS;
+        long totalVolume;
+        double vwap;
+        boolean flag;
+        String value;
+    }
+
+}
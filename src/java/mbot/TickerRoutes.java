@@ -0,0 +1,298 @@
+package mbot;
+
+// Java imports
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+//
+// Routes TWS ticker (request) ids to the controller and symbol they
+// were requested for.
+//
+// A route can have more than one listener: market data for a symbol is
+// requested once, under a null controller, and fanned out to every
+// controller that wants it (see MarketDataLines). Other requests have
+// their controller as their only listener.
+//
+// Every tick TWS sends is looked up here on the EReader thread, while
+// ids are only added and removed when a feed or request starts or
+// stops. So reads are lock-free: the routes live in an open-addressed
+// table indexed by tickerId & mask, which is swapped for an updated
+// copy on every change. A lookup is one volatile read and (nearly
+// always) one array index, with no boxing.
+//
+// The table is sized by how many routes are live, not by which ids
+// they have, so a long-lived low id and ever-rising new ones don't
+// make it grow. Ids are handed out in sequence, so live ids mostly
+// land in different slots.
+//
+public class TickerRoutes
+{
+
+    //
+    // One route. Immutable, so a reader that has one has all of it.
+    //
+    public static final class TickerRoute
+    {
+
+        public final int tickerId;
+        public final Controller controller;
+        public final String symbol;
+
+        //
+        // See SymbolIds
+        //
+        public final int symbolId;
+
+        //
+        // What was requested, or null if no one said
+        //
+        public final TwsRequest request;
+
+        //
+        // Who gets the data. Never changed; a route with different
+        // listeners is a new route under the same id.
+        //
+        public final Controller[] listeners;
+
+        TickerRoute( int tickerId,
+                     Controller controller,
+                     String symbol,
+                     TwsRequest request,
+                     Controller[] listeners )
+        {
+            this.tickerId = tickerId;
+            this.controller = controller;
+            this.symbol = symbol;
+            this.symbolId = SymbolIds.idFor( symbol );
+            this.request = request;
+            this.listeners = listeners;
+        }
+
+        public String toString()
+        {
+            StringBuilder names = new StringBuilder();
+
+            for( Controller listener : listeners )
+            {
+                if( names.length() > 0 )
+                {
+                    names.append( "," );
+                }
+
+                names.append( listener.getName() );
+            }
+
+            return tickerId + " -> " + ((names.length() == 0) ? "-" : names.toString()) + "/" + symbol;
+        }
+
+    }
+
+    //
+    // The table readers see: the route for an id is at tickerId & mask,
+    // or in the next slots along. It is never more than half full, so
+    // there is always an empty slot to end a search.
+    //
+    private static final int MIN_TABLE_SIZE = 16;
+
+    private volatile TickerRoute[] table = new TickerRoute[ MIN_TABLE_SIZE ];
+
+    //
+    // Controller -> symbol -> route, for the writers. Guarded by this.
+    //
+    private HashMap<Controller, HashMap<String, TickerRoute>> byController;
+
+    private int size = 0;
+
+    public TickerRoutes()
+    {
+        byController = new HashMap<Controller, HashMap<String, TickerRoute>>();
+    }
+
+    //
+    // The route for an id, or null. Lock-free; this is the tick path.
+    //
+    public TickerRoute get( int tickerId )
+    {
+        TickerRoute[] current = table;
+
+        int mask = current.length - 1;
+
+        for( int i = tickerId & mask; ; i = (i + 1) & mask )
+        {
+            TickerRoute route = current[ i ];
+
+            if( route == null || route.tickerId == tickerId )
+            {
+                return route;
+            }
+        }
+    }
+
+    //
+    // Route an id to a controller and symbol. Any id the pair already
+    // had is dropped, so late ticks for it go nowhere.
+    //
+    public TickerRoute add( int tickerId, Controller controller, String symbol )
+    {
+        return add( tickerId, controller, symbol, null );
+    }
+
+    public TickerRoute add( int tickerId, Controller controller, String symbol, TwsRequest request )
+    {
+        Controller[] listeners = (controller == null) ? new Controller[ 0 ] : new Controller[] { controller };
+
+        return add( tickerId, controller, symbol, request, listeners );
+    }
+
+    public synchronized TickerRoute add( int tickerId,
+                                         Controller controller,
+                                         String symbol,
+                                         TwsRequest request,
+                                         Controller[] listeners )
+    {
+        HashMap<String, TickerRoute> symbols = byController.get( controller );
+
+        if( symbols == null )
+        {
+            symbols = new HashMap<String, TickerRoute>();
+            byController.put( controller, symbols );
+        }
+
+        TickerRoute route = new TickerRoute( tickerId, controller, symbol, request, listeners );
+        TickerRoute old = symbols.put( symbol, route );
+
+        if( old != null )
+        {
+            size--;
+        }
+
+        size++;
+
+        publish( old, route );
+
+        return route;
+    }
+
+    //
+    // Stop routing a controller's symbol. Returns the route it had, or null.
+    //
+    public synchronized TickerRoute remove( Controller controller, String symbol )
+    {
+        HashMap<String, TickerRoute> symbols = byController.get( controller );
+
+        if( symbols == null )
+        {
+            return null;
+        }
+
+        TickerRoute old = symbols.remove( symbol );
+
+        if( symbols.isEmpty() )
+        {
+            byController.remove( controller );
+        }
+
+        if( old != null )
+        {
+            size--;
+
+            publish( old, null );
+        }
+
+        return old;
+    }
+
+    //
+    // The route for a controller's symbol, or null
+    //
+    public synchronized TickerRoute find( Controller controller, String symbol )
+    {
+        HashMap<String, TickerRoute> symbols = byController.get( controller );
+
+        return (symbols == null) ? null : symbols.get( symbol );
+    }
+
+    //
+    // All the live routes, in id order
+    //
+    public List<TickerRoute> getRoutes()
+    {
+        TickerRoute[] current = table;
+
+        List<TickerRoute> routes = new ArrayList<TickerRoute>();
+
+        for( TickerRoute route : current )
+        {
+            if( route != null )
+            {
+                routes.add( route );
+            }
+        }
+
+        Collections.sort( routes, new Comparator<TickerRoute>()
+            {
+                public int compare( TickerRoute a, TickerRoute b )
+                {
+                    return (a.tickerId < b.tickerId) ? -1 : ((a.tickerId > b.tickerId) ? +1 : 0);
+                }
+            } );
+
+        return routes;
+    }
+
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    //
+    // Build and swap in a new table with old taken out and added
+    // put in (either may be null). Called holding the lock, after
+    // size has been updated.
+    //
+    private void publish( TickerRoute old, TickerRoute added )
+    {
+        TickerRoute[] current = table;
+
+        int length = MIN_TABLE_SIZE;
+
+        while( length < size * 2 )
+        {
+            length <<= 1;
+        }
+
+        TickerRoute[] routes = new TickerRoute[ length ];
+
+        for( TickerRoute route : current )
+        {
+            if( route != null && route != old )
+            {
+                insert( routes, route );
+            }
+        }
+
+        if( added != null )
+        {
+            insert( routes, added );
+        }
+
+        table = routes;
+    }
+
+    private static void insert( TickerRoute[] routes, TickerRoute route )
+    {
+        int mask = routes.length - 1;
+        int i = route.tickerId & mask;
+
+        while( routes[ i ] != null )
+        {
+            i = (i + 1) & mask;
+        }
+
+        routes[ i ] = route;
+    }
+
+}
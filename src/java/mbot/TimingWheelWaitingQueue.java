@@ -0,0 +1,460 @@
+package mbot;
+
+// Java imports
+import java.util.TreeSet;
+
+//
+// A hierarchical timing wheel for the scheduler's waiting queue.
+//
+// Each level is a ring of 64 slots. A slot on level 0 covers one tick,
+// a slot on level 1 covers 64 ticks, and so on, so with the defaults
+// (1 MS ticks, 4 levels) the wheel covers about 4.6 hours ahead of the
+// current time. Jobs further out than that (e.g. far-future backfill)
+// sit in an ordered overflow set until the wheel catches up to them.
+//
+// Jobs are kept on intrusive doubly-linked lists hanging off the slots,
+// so add and remove are O(1). Each level also keeps a bitmap of its
+// occupied slots, which lets the wheel jump straight to the next slot
+// with something in it instead of stepping through empty ticks. As time
+// advances, the jobs in a higher level slot are cascaded down to lower
+// levels, and finally onto the due list when their tick comes up.
+//
+// Due jobs come back in the order their slots expired, which is start
+// time order down to the tick resolution.
+//
+public class TimingWheelWaitingQueue implements WaitingQueue
+{
+
+    //
+    // Defaults
+    //
+    public static final long DEFAULT_TICK_MS = 1;
+    public static final int DEFAULT_LEVELS = 4;
+
+    //
+    // Slots per level. 64 so a level's occupancy fits in one long.
+    //
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int SLOT_MASK = SLOTS - 1;
+
+    //
+    // Where a job currently lives, stored in Job.queueSlot.
+    // Non-negative values are level * SLOTS + slot.
+    //
+    static final int SLOT_NONE = -1;
+    static final int SLOT_DUE = -2;
+    static final int SLOT_OVERFLOW = -3;
+
+    //
+    // Wheel geometry
+    //
+    long tickMS;
+    int levels;
+
+    //
+    // The tick the wheel has advanced to. Everything in the wheel
+    // proper has a tick strictly after this one.
+    //
+    long currentTick = 0;
+
+    //
+    // The wheel doesn't know the time until the first pollDue(),
+    // so anything added before then goes to the overflow set
+    //
+    boolean started = false;
+
+    //
+    // Slot list heads, indexed by level * SLOTS + slot
+    //
+    Job[] slotHeads;
+
+    //
+    // One occupancy bitmap per level
+    //
+    long[] occupied;
+
+    //
+    // Jobs whose tick has come up, in expiry order
+    //
+    Job dueHead = null;
+    Job dueTail = null;
+
+    //
+    // Jobs beyond the reach of the top level
+    //
+    TreeSet<Job> overflow;
+
+    int size = 0;
+
+    //
+    // Constructor
+    //
+    public TimingWheelWaitingQueue()
+    {
+        this( DEFAULT_TICK_MS, DEFAULT_LEVELS );
+    }
+
+    public TimingWheelWaitingQueue( long tickMS, int levels )
+    {
+        if( tickMS < 1 || levels < 1 || SLOT_BITS * levels > 62 )
+        {
+            throw new IllegalArgumentException("Invalid timing wheel geometry");
+        }
+
+        this.tickMS = tickMS;
+        this.levels = levels;
+
+        slotHeads = new Job[ levels * SLOTS ];
+        occupied = new long[ levels ];
+        overflow = new TreeSet<Job>();
+    }
+
+    //
+    // Implement WaitingQueue
+    //
+
+    public void add( Job job )
+    {
+        //
+        // Round up, so a job never comes due before its start time
+        //
+        job.queueTick = -Math.floorDiv( -job.startTime, tickMS );
+
+        insert( job );
+
+        size++;
+    }
+
+    public boolean remove( Job job )
+    {
+        int slot = job.queueSlot;
+
+        if( slot == SLOT_NONE )
+        {
+            return false;
+        }
+
+        if( slot == SLOT_OVERFLOW )
+        {
+            overflow.remove( job );
+        }
+        else if( slot == SLOT_DUE )
+        {
+            unlinkDue( job );
+        }
+        else
+        {
+            unlinkSlot( job, slot );
+        }
+
+        job.queueSlot = SLOT_NONE;
+        job.queueNext = null;
+        job.queuePrev = null;
+
+        size--;
+
+        return true;
+    }
+
+    public Job pollDue( long now )
+    {
+        long nowTick = Math.floorDiv( now, tickMS );
+
+        if( started == false )
+        {
+            currentTick = nowTick;
+            started = true;
+        }
+
+        advance( nowTick );
+
+        Job job = dueHead;
+
+        if( job == null )
+        {
+            return null;
+        }
+
+        unlinkDue( job );
+
+        job.queueSlot = SLOT_NONE;
+        job.queueNext = null;
+        job.queuePrev = null;
+
+        size--;
+
+        return job;
+    }
+
+    public long nextWakeupTime()
+    {
+        if( size == 0 )
+        {
+            return NO_WAKEUP;
+        }
+
+        //
+        // Until the wheel has seen the time, just come look right away
+        //
+        if( started == false )
+        {
+            return 0;
+        }
+
+        if( dueHead != null )
+        {
+            return currentTick * tickMS;
+        }
+
+        return nextEventTick() * tickMS;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    //
+    // Internals
+    //
+
+    //
+    // Bit shift for the slot index at a level
+    //
+    private static int shift( int level )
+    {
+        return SLOT_BITS * level;
+    }
+
+    //
+    // Place a job according to its tick relative to currentTick
+    //
+    private void insert( Job job )
+    {
+        long tick = job.queueTick;
+
+        if( started == false )
+        {
+            job.queueSlot = SLOT_OVERFLOW;
+            overflow.add( job );
+            return;
+        }
+
+        if( tick <= currentTick )
+        {
+            appendDue( job );
+            return;
+        }
+
+        //
+        // Find the lowest level whose window contains the tick,
+        // i.e. where everything above that level's bits matches
+        //
+        for( int level = 0; level < levels; level++ )
+        {
+            int above = shift( level + 1 );
+
+            if( (tick >> above) == (currentTick >> above) )
+            {
+                int slot = (int) (tick >> shift( level )) & SLOT_MASK;
+                int index = level * SLOTS + slot;
+
+                job.queueSlot = index;
+                job.queuePrev = null;
+                job.queueNext = slotHeads[ index ];
+
+                if( job.queueNext != null )
+                {
+                    job.queueNext.queuePrev = job;
+                }
+
+                slotHeads[ index ] = job;
+                occupied[ level ] |= (1L << slot);
+
+                return;
+            }
+        }
+
+        job.queueSlot = SLOT_OVERFLOW;
+        overflow.add( job );
+    }
+
+    //
+    // The earliest tick at which the wheel has something to do:
+    // expire a level 0 slot, cascade a higher slot, or pull jobs
+    // in from overflow. Long.MAX_VALUE if there is nothing.
+    //
+    private long nextEventTick()
+    {
+        long next = Long.MAX_VALUE;
+
+        for( int level = 0; level < levels; level++ )
+        {
+            long bits = occupied[ level ];
+
+            if( bits == 0 )
+            {
+                continue;
+            }
+
+            //
+            // Occupied slots are always ahead of the current position
+            // on their level, so the lowest set bit is the next one
+            //
+            int slot = Long.numberOfTrailingZeros( bits );
+            int above = shift( level + 1 );
+
+            long tick = ((currentTick >> above) << above) | ((long) slot << shift( level ));
+
+            next = Math.min( next, tick );
+        }
+
+        if( overflow.isEmpty() == false )
+        {
+            int top = shift( levels );
+
+            long tick = (overflow.first().queueTick >> top) << top;
+
+            next = Math.min( next, Math.max( tick, currentTick ) );
+        }
+
+        return next;
+    }
+
+    //
+    // Move the wheel forward to nowTick, expiring and cascading as we go
+    //
+    private void advance( long nowTick )
+    {
+
+        while( true )
+        {
+
+            long next = nextEventTick();
+
+            if( next > nowTick )
+            {
+                if( nowTick > currentTick )
+                {
+                    currentTick = nowTick;
+                }
+
+                return;
+            }
+
+            if( next > currentTick )
+            {
+                currentTick = next;
+            }
+
+            //
+            // Cascade from the top down. Anything in a slot at the
+            // current position belongs on a lower level (or is due).
+            //
+            for( int level = levels - 1; level >= 0; level-- )
+            {
+                int slot = (int) (currentTick >> shift( level )) & SLOT_MASK;
+
+                if( (occupied[ level ] & (1L << slot)) == 0 )
+                {
+                    continue;
+                }
+
+                int index = level * SLOTS + slot;
+
+                Job job = slotHeads[ index ];
+
+                slotHeads[ index ] = null;
+                occupied[ level ] &= ~(1L << slot);
+
+                while( job != null )
+                {
+                    Job following = job.queueNext;
+
+                    job.queueNext = null;
+                    job.queuePrev = null;
+
+                    insert( job );
+
+                    job = following;
+                }
+            }
+
+            //
+            // Pull in overflow jobs that are now within reach
+            //
+            int top = shift( levels );
+
+            while( overflow.isEmpty() == false &&
+                   (overflow.first().queueTick >> top) <= (currentTick >> top) )
+            {
+                insert( overflow.pollFirst() );
+            }
+
+        }
+
+    }
+
+    private void appendDue( Job job )
+    {
+        job.queueSlot = SLOT_DUE;
+        job.queueNext = null;
+        job.queuePrev = dueTail;
+
+        if( dueTail != null )
+        {
+            dueTail.queueNext = job;
+        }
+        else
+        {
+            dueHead = job;
+        }
+
+        dueTail = job;
+    }
+
+    private void unlinkDue( Job job )
+    {
+        if( job.queuePrev != null )
+        {
+            job.queuePrev.queueNext = job.queueNext;
+        }
+        else
+        {
+            dueHead = job.queueNext;
+        }
+
+        if( job.queueNext != null )
+        {
+            job.queueNext.queuePrev = job.queuePrev;
+        }
+        else
+        {
+            dueTail = job.queuePrev;
+        }
+    }
+
+    private void unlinkSlot( Job job, int index )
+    {
+        if( job.queuePrev != null )
+        {
+            job.queuePrev.queueNext = job.queueNext;
+        }
+        else
+        {
+            slotHeads[ index ] = job.queueNext;
+        }
+
+        if( job.queueNext != null )
+        {
+            job.queueNext.queuePrev = job.queuePrev;
+        }
+
+        if( slotHeads[ index ] == null )
+        {
+            occupied[ index / SLOTS ] &= ~(1L << (index & SLOT_MASK));
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package mbot;
+
+// Java imports
+import java.util.HashMap;
+import java.util.Iterator;
+
+//
+// A token bucket per key. Each request takes a token, and tokens
+// refill at a steady rate up to the bucket's capacity, so short
+// bursts are allowed but the long run rate is capped.
+//
+public class TokenBucketRule extends RateLimitRule
+{
+
+    double capacity;
+
+    //
+    // Tokens added per MS
+    //
+    double refillPerMS;
+
+    HashMap<String, Bucket> buckets;
+
+    public TokenBucketRule( int scope, int capacity, double tokensPerSecond )
+    {
+        super( scope );
+
+        if( capacity < 1 || tokensPerSecond <= 0 )
+        {
+            throw new IllegalArgumentException("Invalid token bucket");
+        }
+
+        this.capacity = capacity;
+        this.refillPerMS = tokensPerSecond / 1000.0;
+
+        buckets = new HashMap<String, Bucket>();
+    }
+
+    //
+    // Bring a bucket's token count up to date
+    //
+    private void refill( Bucket bucket, long now )
+    {
+        if( now > bucket.lastRefill )
+        {
+            bucket.tokens = Math.min( capacity,
+                                      bucket.tokens + (now - bucket.lastRefill) * refillPerMS );
+            bucket.lastRefill = now;
+        }
+    }
+
+    long nextAllowedTime( String key, long now )
+    {
+        Bucket bucket = buckets.get( key );
+
+        if( bucket == null )
+        {
+            return now;
+        }
+
+        refill( bucket, now );
+
+        if( bucket.tokens >= 1.0 )
+        {
+            return now;
+        }
+
+        return now + (long) Math.ceil( (1.0 - bucket.tokens) / refillPerMS );
+    }
+
+    void record( String key, long time )
+    {
+        Bucket bucket = buckets.get( key );
+
+        if( bucket == null )
+        {
+            bucket = new Bucket( capacity, time );
+            buckets.put( key, bucket );
+        }
+
+        refill( bucket, time );
+
+        bucket.tokens -= 1.0;
+    }
+
+    void prune( long now )
+    {
+        Iterator<Bucket> iter = buckets.values().iterator();
+
+        while( iter.hasNext() )
+        {
+            Bucket bucket = iter.next();
+
+            refill( bucket, now );
+
+            //
+            // A full bucket is the same as no bucket
+            //
+            if( bucket.tokens >= capacity )
+            {
+                iter.remove();
+            }
+        }
+    }
+
+    static final class Bucket
+    {
+        double tokens;
+        long lastRefill;
+
+        Bucket( double tokens, long lastRefill )
+        {
+            this.tokens = tokens;
+            this.lastRefill = lastRefill;
+        }
+    }
+
+}
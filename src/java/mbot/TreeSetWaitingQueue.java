@@ -0,0 +1,64 @@
+package mbot;
+
+// Java imports
+import java.util.TreeSet;
+
+//
+// The original waiting queue -- a sorted set ordered by Job.compareTo.
+// Inserts and removes are O(log n), which is fine for small queues.
+//
+public class TreeSetWaitingQueue implements WaitingQueue
+{
+
+    TreeSet<Job> jobs;
+
+    public TreeSetWaitingQueue()
+    {
+        jobs = new TreeSet<Job>();
+    }
+
+    public void add( Job job )
+    {
+        jobs.add( job );
+    }
+
+    public boolean remove( Job job )
+    {
+        return jobs.remove( job );
+    }
+
+    public Job pollDue( long now )
+    {
+        if( jobs.size() == 0 )
+        {
+            return null;
+        }
+
+        Job job = jobs.first();
+
+        if( job.startTime > now )
+        {
+            return null;
+        }
+
+        jobs.remove( job );
+
+        return job;
+    }
+
+    public long nextWakeupTime()
+    {
+        if( jobs.size() == 0 )
+        {
+            return NO_WAKEUP;
+        }
+
+        return jobs.first().startTime;
+    }
+
+    public int size()
+    {
+        return jobs.size();
+    }
+
+}
@@ -0,0 +1,1121 @@
+package mbot;
+
+// IB imports
+import com.ib.client.*;
+import samples.base.StkContract;
+
+// Java imports
+import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+//
+// One connection to TWS: its socket, its own client id, the ticker ids
+// in use on it, and the EWrapper callbacks that come in on its reader
+// thread. TwsSubsystem spreads symbols across a pool of these.
+//
+// Ticker ids only mean something on the connection they were issued
+// on, so each connection hands out and routes its own.
+//
+// If the connection drops (e.g. TWS is restarted), it is reopened in
+// the background, backing off between attempts, and the market data
+// subscriptions on it are sent again, a batch at a time so as not to go
+// over IB's message rate. Historical requests that hadn't finished are
+// not: they count against IB's historical pacing limits, so they are
+// dropped and the controller told (callbackHistoricalDataLost), and its
+// job is retried through the scheduler's RateLimiter like any other
+// request. A historical request is forgotten as soon as its data has
+// finished, so nothing already done is asked for again.
+//
+// If TWS reports it lost its own connection to IB along with our market
+// data (error 1101), the market data is replayed the same way;
+// historical requests are still in flight on the same session then, so
+// they are left alone.
+//
+// Requests made while the connection is down are only recorded, and go
+// out with the replay (or, for historical requests, are dropped by it).
+// Other than that, none of this shows to the controllers except as a
+// gap in their data.
+//
+public class TwsConnection implements EWrapper
+{
+
+    String name;
+
+    //
+    // The EClientSocket
+    //
+    EClientSocket twsClient;
+
+    String serverHostname;
+    int serverPort;
+
+    //
+    // The client id this connection logs in to TWS with. Must be
+    // different for every connection to the same TWS.
+    //
+    int clientId;
+
+    //
+    // The next ticker id to hand out. TWS tells us where to
+    // start in nextValidId().
+    //
+    private int nextTickerId = 0;
+
+    //
+    // Waited on by the constructor until nextValidId() comes in
+    //
+    private final Object connectedLock = new Object();
+    private boolean haveValidId = false;
+
+    //
+    // This maps the datafeeds to ticker ids, and back. Lock-free
+    // to read, since every tick is routed through it.
+    //
+    final TickerRoutes routes = new TickerRoutes();
+
+    //
+    // Hands ticks on to the controllers
+    //
+    volatile TickDispatcher ticks;
+
+    //
+    // Reused for every RTVolume tick. Only touched on this
+    // connection's reader thread.
+    //
+    private final RTVolumeParser rtVolume = new RTVolumeParser();
+
+    //
+    // TWS error code for when its own connection to IB comes back,
+    // but the market data subscriptions on it were lost
+    //
+    static final int ERROR_IB_CONNECTIVITY_RESTORED_DATA_LOST = 1101;
+
+    //
+    // Reconnect backoff: the first retry comes after the minimum,
+    // doubling each time up to the maximum, give or take a fifth
+    //
+    public static final long DEFAULT_RECONNECT_MIN_MS = 1000;
+    public static final long DEFAULT_RECONNECT_MAX_MS = 60 * 1000;
+
+    //
+    // Replay pacing: this many requests, then a pause. IB allows
+    // 50 messages a second from a client.
+    //
+    public static final int DEFAULT_REPLAY_BATCH_SIZE = 40;
+    public static final long DEFAULT_REPLAY_BATCH_INTERVAL_MS = 1000;
+
+    volatile long reconnectMinMS = DEFAULT_RECONNECT_MIN_MS;
+    volatile long reconnectMaxMS = DEFAULT_RECONNECT_MAX_MS;
+    volatile int replayBatchSize = DEFAULT_REPLAY_BATCH_SIZE;
+    volatile long replayBatchIntervalMS = DEFAULT_REPLAY_BATCH_INTERVAL_MS;
+
+    //
+    // Whether requests go out now, rather than waiting for the replay.
+    // Guarded by this.
+    //
+    private boolean connected = false;
+
+    //
+    // Recovery. The thread doing it, if any, and what it has left to
+    // do; all guarded by this. generation counts recoveries, so a
+    // replay can skip requests that have gone out since it began.
+    //
+    private Thread recoveryThread = null;
+    private boolean reconnectNeeded = false;
+    private boolean replayNeeded = false;
+    private int generation = 0;
+
+    //
+    // Historical requests dropped by a reconnect, by controller and
+    // symbol, so that when the job retries the same request it skips
+    // the bars the controller already has. Guarded by this.
+    //
+    private final HashMap<Map.Entry<Controller, String>, TwsRequest> lostRequests =
+        new HashMap<Map.Entry<Controller, String>, TwsRequest>();
+
+    private volatile boolean shuttingDown = false;
+
+    private final Random jitter = new Random();
+
+    //
+    // Metrics
+    //
+    private volatile long reconnects = 0;
+    private volatile long replayed = 0;
+
+    //
+    // Constructor. Connects, and waits (not too long) for TWS to
+    // tell us which ticker ids we can use.
+    //
+    public TwsConnection( String serverHostname,
+                          int serverPort,
+                          int clientId,
+                          TickDispatcher ticks )
+        throws TwsSubsystemException
+    {
+
+        this.serverHostname = serverHostname;
+        this.serverPort = serverPort;
+        this.clientId = clientId;
+        this.ticks = ticks;
+
+        name = "TwsConnection-" + clientId;
+
+        connect();
+
+        synchronized( this )
+        {
+            connected = true;
+        }
+    }
+
+    //
+    // Open the socket and log in
+    //
+    private void connect()
+        throws TwsSubsystemException
+    {
+        try
+        {
+
+            synchronized( connectedLock )
+            {
+                haveValidId = false;
+            }
+
+            EClientSocket client = new EClientSocket( this );
+            client.eConnect( serverHostname, serverPort, clientId );
+
+            if( !client.isConnected() )
+            {
+                throw new TwsSubsystemException("Failed to connect to TWS server as client " + clientId);
+            }
+
+            twsClient = client;
+
+            //
+            // Wait for the nextValidId() to come in. Not critical.
+            //
+            try
+            {
+                synchronized( connectedLock )
+                {
+                    if( haveValidId == false )
+                    {
+                        connectedLock.wait( 10000 );
+                    }
+                }
+            }
+            catch( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+
+        }
+        catch( TwsSubsystemException e )
+        {
+            throw e;
+        }
+        catch( Exception e )
+        {
+            throw new TwsSubsystemException( e );
+        }
+    }
+
+    //
+    // Convenience
+    //
+    public String getServerInfo()
+    {
+        return "TWS server version " + twsClient.serverVersion() + " at " +
+            serverHostname + "/" + serverPort + " as client " + clientId;
+    }
+
+    public int getClientId()
+    {
+        return clientId;
+    }
+
+    public TickerRoutes getRoutes()
+    {
+        return routes;
+    }
+
+    public synchronized boolean isConnected()
+    {
+        return connected;
+    }
+
+    //
+    // Times the connection has been reopened, and requests sent
+    // again by replays
+    //
+    public long getReconnects()
+    {
+        return reconnects;
+    }
+
+    public long getReplayed()
+    {
+        return replayed;
+    }
+
+    public void setReconnectBackoff( long minMS, long maxMS )
+    {
+        if( minMS < 1 || maxMS < minMS )
+        {
+            throw new IllegalArgumentException("Bad reconnect backoff " + minMS + "-" + maxMS);
+        }
+
+        reconnectMinMS = minMS;
+        reconnectMaxMS = maxMS;
+    }
+
+    public void setReplayPacing( int batchSize, long batchIntervalMS )
+    {
+        if( batchSize < 1 || batchIntervalMS < 0 )
+        {
+            throw new IllegalArgumentException("Bad replay pacing " + batchSize + "/" + batchIntervalMS);
+        }
+
+        replayBatchSize = batchSize;
+        replayBatchIntervalMS = batchIntervalMS;
+    }
+
+    //
+    // Shutdown the connection
+    //
+    public void shutdown()
+    {
+        Thread recovery;
+
+        synchronized( this )
+        {
+            shuttingDown = true;
+            connected = false;
+
+            recovery = recoveryThread;
+        }
+
+        if( recovery != null )
+        {
+            recovery.interrupt();
+        }
+
+        EClientSocket client = twsClient;
+
+        if( client != null )
+        {
+            client.eDisconnect();
+        }
+    }
+
+    //
+    // Tws uses a specially formated date string for input,
+    // and a Long timestamp (stored as String) for output.
+
+    //
+    // Long -> TwsString
+    //
+    // TwsString format is "yyyyMMdd HH:mm:ss"
+    //
+    private String convertDateLongToTwsString( Long time )
+    {
+        Date date = new Date( time );
+        SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd HH:mm:ss");
+
+        return formatter.format( date );
+    }
+
+    //
+    // TwsStringLong -> Long
+    //
+    // TwsStringLong is the seconds since 1/1/1970 GMT, stored as a string.
+    // Must be converted to milliseconds before returning.
+    //
+    private Long convertDateTwsStringLongToLong( String time )
+    {
+        Long timeLong = Long.valueOf( time );
+
+        return timeLong * 1000;
+    }
+
+    //
+    // Hand out a ticker id and route it to the controller and symbol
+    //
+    private synchronized TickerRoutes.TickerRoute mapTickerId( Controller controller,
+                                                               String symbol,
+                                                               TwsRequest request )
+    {
+        int tickerId = nextTickerId++;
+
+        return routes.add( tickerId, controller, symbol, request );
+    }
+
+    //
+    // Stop routing a controller's symbol, so it will stop getting
+    // messages from TWS. Returns the ticker id it had.
+    //
+    private synchronized int unmapTickerId( Controller controller, String symbol )
+        throws TwsSubsystemException
+    {
+        TickerRoutes.TickerRoute route = routes.remove( controller, symbol );
+
+        if( route == null )
+        {
+            throw new TwsSubsystemException("No request for " + symbol + " from " + controller.getName());
+        }
+
+        return route.tickerId;
+    }
+
+    //
+    // Requests, called through TwsSubsystem. Arguments have been
+    // checked by then; failures are left for it to wrap. While the
+    // connection is down, requests are only recorded, for the replay.
+    //
+
+    //
+    // Market data is requested once per symbol, whoever wants it, and
+    // its ticks handed to each of the listeners
+    //
+    synchronized void requestMktData( String symbol, Controller[] listeners, String genericTicks )
+        throws Exception
+    {
+        int tickerId = nextTickerId++;
+
+        TickerRoutes.TickerRoute route = routes.add( tickerId, null, symbol, new TwsRequest( genericTicks ), listeners );
+
+        if( connected )
+        {
+            send( route );
+        }
+    }
+
+    //
+    // Change who gets a symbol's market data. The request to TWS
+    // stays as it is.
+    //
+    synchronized void setMktDataListeners( String symbol, Controller[] listeners )
+        throws Exception
+    {
+        TickerRoutes.TickerRoute route = routes.find( null, symbol );
+
+        if( route == null )
+        {
+            throw new TwsSubsystemException("No market data request for " + symbol);
+        }
+
+        routes.add( route.tickerId, null, symbol, route.request, listeners );
+    }
+
+    synchronized void cancelMktData( String symbol )
+        throws Exception
+    {
+        TickerRoutes.TickerRoute route = routes.remove( null, symbol );
+
+        if( route == null )
+        {
+            throw new TwsSubsystemException("No market data request for " + symbol);
+        }
+
+        if( connected )
+        {
+            twsClient.cancelMktData( route.tickerId );
+        }
+    }
+
+    synchronized void requestHistoricalData( Controller controller,
+                                             String symbol,
+                                             Long endDateTime,
+                                             String durationStr,
+                                             String barSizeSetting,
+                                             String whatToShow )
+        throws Exception
+    {
+        TwsRequest request = new TwsRequest( endDateTime, durationStr, barSizeSetting, whatToShow );
+
+        TwsRequest lost = lostRequests.remove( requestKey( controller, symbol ) );
+
+        if( lost != null && lost.isSameRequest( request ) )
+        {
+            request.lastBarTime = lost.lastBarTime;
+        }
+
+        TickerRoutes.TickerRoute route = mapTickerId( controller, symbol, request );
+
+        if( connected )
+        {
+            send( route );
+        }
+    }
+
+    synchronized void cancelHistoricalData( Controller controller, String symbol )
+        throws Exception
+    {
+        //
+        // Already dropped by a reconnect; nothing is open on TWS
+        //
+        if( lostRequests.remove( requestKey( controller, symbol ) ) != null )
+        {
+            return;
+        }
+
+        int tickerId = unmapTickerId( controller, symbol );
+
+        if( connected )
+        {
+            twsClient.cancelHistoricalData( tickerId );
+        }
+    }
+
+    //
+    // A historical request's data has all arrived. Stop routing it,
+    // unless the controller has made another request since.
+    //
+    private synchronized void finishHistoricalData( TickerRoutes.TickerRoute route )
+    {
+        TickerRoutes.TickerRoute current = routes.find( route.controller, route.symbol );
+
+        if( current != null && current.tickerId == route.tickerId )
+        {
+            routes.remove( route.controller, route.symbol );
+        }
+    }
+
+    //
+    // Drop the historical requests among the routes, keeping what they
+    // had received. Called holding the lock, on reconnect.
+    //
+    private List<TickerRoutes.TickerRoute> dropHistoricalData( List<TickerRoutes.TickerRoute> pending )
+    {
+        List<TickerRoutes.TickerRoute> lost = new ArrayList<TickerRoutes.TickerRoute>();
+
+        for( TickerRoutes.TickerRoute route : pending )
+        {
+            if( route.request == null || route.request.type == TwsRequest.REQUEST_MKT_DATA )
+            {
+                continue;
+            }
+
+            TickerRoutes.TickerRoute current = routes.find( route.controller, route.symbol );
+
+            if( current != null && current.tickerId == route.tickerId )
+            {
+                routes.remove( route.controller, route.symbol );
+
+                lostRequests.put( requestKey( route.controller, route.symbol ), route.request );
+
+                lost.add( route );
+            }
+        }
+
+        return lost;
+    }
+
+    private static Map.Entry<Controller, String> requestKey( Controller controller, String symbol )
+    {
+        return new AbstractMap.SimpleImmutableEntry<Controller, String>( controller, symbol );
+    }
+
+    //
+    // Send a route's request to TWS. Called holding the lock,
+    // while connected.
+    //
+    private void send( TickerRoutes.TickerRoute route )
+        throws Exception
+    {
+        TwsRequest request = route.request;
+
+        request.generation = generation;
+
+        if( request.type == TwsRequest.REQUEST_MKT_DATA )
+        {
+            twsClient.reqMktData( route.tickerId,
+                                  new StkContract( route.symbol ),
+                                  request.genericTicks,
+                                  false );
+        }
+        else
+        {
+
+            //
+            // FormatDate of 2 means use seconds since 1970
+            //
+            int formatDate = 2;
+            int useRegularTradingHours = 0;
+
+            String endDateTimeString = convertDateLongToTwsString( request.endDateTime );
+
+            twsClient.reqHistoricalData( route.tickerId,
+                                         new StkContract( route.symbol ),
+                                         endDateTimeString,
+                                         request.durationStr,
+                                         request.barSizeSetting,
+                                         request.whatToShow,
+                                         useRegularTradingHours,
+                                         formatDate );
+        }
+    }
+
+    //
+    // Recovery
+    //
+
+    //
+    // Have the recovery thread reconnect and/or replay, starting
+    // it if it isn't already going
+    //
+    private synchronized void startRecovery( boolean reconnect )
+    {
+        if( shuttingDown )
+        {
+            return;
+        }
+
+        if( reconnect )
+        {
+            reconnectNeeded = true;
+        }
+
+        replayNeeded = true;
+
+        if( recoveryThread != null )
+        {
+            return;
+        }
+
+        recoveryThread = new Thread( name + "-recovery" )
+            {
+                public void run()
+                {
+                    recover();
+                }
+            };
+
+        recoveryThread.setDaemon( true );
+        recoveryThread.start();
+    }
+
+    private void recover()
+    {
+        while( true )
+        {
+            boolean reconnect;
+
+            synchronized( this )
+            {
+                if( shuttingDown || (reconnectNeeded == false && replayNeeded == false) )
+                {
+                    recoveryThread = null;
+                    return;
+                }
+
+                reconnect = reconnectNeeded;
+
+                reconnectNeeded = false;
+                replayNeeded = false;
+            }
+
+            if( reconnect && reconnect() == false )
+            {
+                continue;
+            }
+
+            List<TickerRoutes.TickerRoute> pending;
+            List<TickerRoutes.TickerRoute> lost;
+            int replayGeneration;
+
+            synchronized( this )
+            {
+                if( shuttingDown || (reconnect == false && connected == false) )
+                {
+                    continue;
+                }
+
+                //
+                // From here new requests go straight out, and are
+                // stamped with the new generation so they aren't
+                // replayed as well
+                //
+                replayGeneration = ++generation;
+                pending = routes.getRoutes();
+
+                //
+                // Historical requests died with the old session. Sending
+                // them again here would go round the pacing limits, so
+                // their jobs retry them through the scheduler instead.
+                //
+                lost = reconnect ? dropHistoricalData( pending ) : new ArrayList<TickerRoutes.TickerRoute>();
+
+                connected = true;
+            }
+
+            for( TickerRoutes.TickerRoute route : lost )
+            {
+                System.out.println( name + ": Lost " + route + " (" + route.request + ")" );
+
+                route.controller.callbackHistoricalDataLost( route.symbol );
+            }
+
+            replay( pending, replayGeneration );
+        }
+    }
+
+    //
+    // Keep trying to reopen the connection, backing off, until it
+    // opens (true) or we are shut down (false)
+    //
+    private boolean reconnect()
+    {
+        long backoff = reconnectMinMS;
+
+        while( shuttingDown == false )
+        {
+            //
+            // Jitter, so a pool of connections doesn't all
+            // come knocking at the same moment
+            //
+            long delay = backoff + (long) (backoff * 0.2 * (2 * jitter.nextDouble() - 1));
+
+            System.out.println( name + ": Reconnecting to TWS in " + delay + "ms" );
+
+            try
+            {
+                Thread.sleep( delay );
+            }
+            catch( InterruptedException e )
+            {
+                continue;
+            }
+
+            try
+            {
+                connect();
+
+                reconnects++;
+
+                System.out.println( name + ": Reconnected to " + getServerInfo() );
+
+                return true;
+            }
+            catch( TwsSubsystemException e )
+            {
+                System.out.println( name + ": Reconnect failed: " + e.getMessage() );
+            }
+
+            backoff = Math.min( backoff * 2, reconnectMaxMS );
+        }
+
+        return false;
+    }
+
+    //
+    // Send the market data requests that are still live again, a batch
+    // at a time. Gives up if the connection drops again; the recovery
+    // that follows replays everything.
+    //
+    // Only market data is ever sent again: historical requests are
+    // either still open on the session (error 1101), where TWS would
+    // turn away the same ticker id a second time, or have been dropped
+    // for their jobs to retry.
+    //
+    private void replay( List<TickerRoutes.TickerRoute> pending, int replayGeneration )
+    {
+        int sent = 0;
+
+        for( TickerRoutes.TickerRoute route : pending )
+        {
+            synchronized( this )
+            {
+                if( connected == false || shuttingDown || generation != replayGeneration )
+                {
+                    return;
+                }
+
+                //
+                // Skip anything canceled since, or already sent
+                // since the replay began. A route whose listeners
+                // have changed is still the same request.
+                //
+                TickerRoutes.TickerRoute current = routes.find( route.controller, route.symbol );
+
+                if( current == null ||
+                    current.tickerId != route.tickerId ||
+                    current.request == null ||
+                    current.request.generation == replayGeneration ||
+                    current.request.type != TwsRequest.REQUEST_MKT_DATA )
+                {
+                    continue;
+                }
+
+                try
+                {
+                    send( current );
+                }
+                catch( Exception e )
+                {
+                    System.out.println( name + ": Failed to replay " + current + " (" + current.request + "): " + e.getMessage() );
+                    continue;
+                }
+            }
+
+            replayed++;
+
+            if( ++sent % replayBatchSize == 0 )
+            {
+                try
+                {
+                    Thread.sleep( replayBatchIntervalMS );
+                }
+                catch( InterruptedException e )
+                {
+                    return;
+                }
+            }
+        }
+
+        if( sent > 0 )
+        {
+            System.out.println( name + ": Replayed " + sent + " requests" );
+        }
+    }
+
+    //
+    // A no-op for callbacks we don't need
+    //
+    protected void notImplemented()
+    {
+        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+        String caller = stack[2].getMethodName();
+
+        if( caller != null )
+        {
+            System.out.println( name + ": EWrapper callback '" + caller + "' not implemented");
+        }
+        else
+        {
+            System.out.println( name +": Unknown EWrapper callback not implemented");
+        }
+    }
+
+    //
+    // AnyWrapper interface definitions
+    //
+
+    public void connectionClosed()
+    {
+
+        //
+        // Stop sending on the dead socket, and get it back
+        //
+        synchronized( this )
+        {
+            connected = false;
+        }
+
+        if( shuttingDown == false )
+        {
+            System.out.println( name + ": Connection to TWS closed" );
+
+            startRecovery( true );
+        }
+    }
+
+    public void error( Exception ex )
+    {
+        String msg = EWrapperMsgGenerator.error( ex );
+        System.out.println( name + ": " + msg );
+    }
+
+    public void error( String errorMsg )
+    {
+        String msg = EWrapperMsgGenerator.error( errorMsg );
+        System.out.println( name + ": " + msg );
+    }
+
+    public void error( int id, int errorCode, String errorMsg )
+    {
+        String msg = EWrapperMsgGenerator.error( id, errorCode, errorMsg );
+        System.out.println( name + ": " + msg );
+
+        //
+        // TWS is back in touch with IB, but our subscriptions
+        // didn't survive; ask for them again
+        //
+        if( errorCode == ERROR_IB_CONNECTIVITY_RESTORED_DATA_LOST )
+        {
+            startRecovery( false );
+        }
+    }
+
+    //
+    // EWrapper interface definitions
+    //
+
+    //
+    // All of these call the appropriate controller callback to indicate the data upwards
+    //
+
+    //
+    // This seems to return just trailing price data, e.g. 13/26/52 week high/low
+    //
+    // TickTypes can be:
+    //  52WeekLow
+    //  52WeekHigh
+    //  26WeekLow
+    //  26WeekHigh
+    //  13WeekLow
+    //  13WeekHigh
+    //
+    public void tickPrice( int tickerId, int field, double price, int canAutoExecute )
+    {
+        TickerRoutes.TickerRoute route = routes.get( tickerId );
+
+        //
+        // Stragglers for a feed that was just canceled
+        //
+        if( route == null )
+        {
+            return;
+        }
+
+        for( Controller listener : route.listeners )
+        {
+            ticks.tickPrice( listener, route.symbolId, field, price, canAutoExecute != 0 );
+        }
+    }
+
+    //
+    // This returns options volume data, apparently after each trade
+    //
+    // TickTypes can be:
+    //  OptionPutVolume
+    //  OptionCallVolume
+    //  AvgVolume -- sum of put/calls, unclear how long this is averaged over
+    //  OptionPutOpenInterest
+    //  OptionCallOpenInterest
+    //
+    public void tickSize( int tickerId, int field, int size )
+    {
+        TickerRoutes.TickerRoute route = routes.get( tickerId );
+
+        if( route == null )
+        {
+            return;
+        }
+
+        for( Controller listener : route.listeners )
+        {
+            ticks.tickSize( listener, route.symbolId, field, size );
+        }
+    }
+
+    public void tickOptionComputation( int tickerId, int field, double impliedVol,
+                                       double delta, double modelPrice, double pvDividend ) { notImplemented(); }
+
+    //
+    // Returns 'generic' data specified when the feed is request (we request everything)
+    //
+    // TickTypes can be:
+    //  shortable
+    //  OptionImpliedVolatility
+    //  OptionHistoricalVolatility
+    //
+    // Shortable maps to the following:
+    //  3.0 -- There are at least 1000 shares available for a short sale
+    //  2.0 -- This contract will be available for short sale if shares can be located
+    //  1.0 -- Not available for short sale
+    public void tickGeneric( int tickerId, int tickType, double value )
+    {
+        TickerRoutes.TickerRoute route = routes.get( tickerId );
+
+        if( route == null )
+        {
+            return;
+        }
+
+        for( Controller listener : route.listeners )
+        {
+            ticks.tickGeneric( listener, route.symbolId, tickType, value );
+        }
+    }
+
+    //
+    // Returns a string with useful trade information
+    //
+    // TickTypes can be:
+    //  RTVolume
+    //
+    // RTVolume has format:
+    //  lastPrice;lastSize;lastTimeMS;totalVolume;VWAP;isSingleTrade
+    //
+    // and is decoded into primitives here, on the reader thread, once for
+    // all the listeners; anything else, or an RTVolume that doesn't parse,
+    // is passed on as it is
+    //
+    public void tickString( int tickerId, int tickType, String value )
+    {
+        TickerRoutes.TickerRoute route = routes.get( tickerId );
+
+        if( route == null )
+        {
+            return;
+        }
+
+        if( tickType == TickType.RT_VOLUME && rtVolume.parse( value ) )
+        {
+            for( Controller listener : route.listeners )
+            {
+                ticks.tickRTVolume( listener,
+                                    route.symbolId,
+                                    rtVolume.lastPrice,
+                                    rtVolume.lastSize,
+                                    rtVolume.lastTimeMS,
+                                    rtVolume.totalVolume,
+                                    rtVolume.vwap,
+                                    rtVolume.isSingleTrade );
+            }
+        }
+        else
+        {
+            for( Controller listener : route.listeners )
+            {
+                ticks.tickString( listener, route.symbolId, tickType, value );
+            }
+        }
+    }
+
+    public void tickEFP( int tickerId, int tickType, double basisPoints,
+                         String formattedBasisPoints, double impliedFuture, int holdDays,
+                         String futureExpiry, double dividendImpact, double dividendsToExpiry ) { notImplemented(); }
+    public void orderStatus( int orderId, String status, int filled, int remaining,
+                             double avgFillPrice, int permId, int parentId, double lastFillPrice,
+                             int clientId, String whyHeld ) { notImplemented(); }
+    public void openOrder( int orderId, Contract contract, Order order, OrderState orderState ) { notImplemented(); }
+    public void openOrderEnd() { notImplemented(); }
+    public void updateAccountValue( String key, String value, String currency, String accountName ) { notImplemented(); }
+    public void updatePortfolio( Contract contract, int position, double marketPrice, double marketValue,
+                                 double averageCost, double unrealizedPNL, double realizedPNL, String accountName ) { notImplemented(); }
+    public void updateAccountTime( String timeStamp ) { notImplemented(); }
+    public void accountDownloadEnd( String accountName ) { notImplemented(); }
+
+    //
+    // Informs us (the client) what the next valid ticker id is
+    //
+    public void nextValidId( int tickerId )
+    {
+        synchronized( this )
+        {
+            //
+            // Always increase the id. This is arguably a bit wasteful
+            // with the id space, but shouldn't generally be a problem.
+            //
+            nextTickerId = Math.max( tickerId, nextTickerId );
+        }
+
+        //
+        // Notify the constructor, if it is still waiting
+        //
+        synchronized( connectedLock )
+        {
+            haveValidId = true;
+            connectedLock.notifyAll();
+        }
+    }
+
+    public void contractDetails( int reqId, ContractDetails contractDetails ) { notImplemented(); }
+    public void bondContractDetails( int reqId, ContractDetails contractDetails ) { notImplemented(); }
+    public void contractDetailsEnd( int reqId ) { notImplemented(); }
+    public void execDetails( int reqId, Contract contract, Execution execution ) { notImplemented(); }
+    public void execDetailsEnd( int reqId ) { notImplemented(); }
+    public void updateMktDepth( int tickerId, int position, int operation, int side, double price, int size ) { notImplemented(); }
+    public void updateMktDepthL2( int tickerId, int position, String marketMaker, int operation,
+                                  int side, double price, int size ) { notImplemented(); }
+    public void updateNewsBulletin( int msgId, int msgType, String message, String origExchange ) { notImplemented(); }
+    public void managedAccounts( String accountsList ) { notImplemented(); }
+    public void receiveFA( int faDataType, String xml ) { notImplemented(); }
+
+    //
+    // Receiving data from a historical data request. This represents a single bar of data.
+    //
+    public void historicalData( int reqId,
+                                String date,
+                                double open,
+                                double high,
+                                double low,
+                                double close,
+                                int volume,
+                                int count,
+                                double WAP,
+                                boolean hasGaps )
+    {
+
+        TickerRoutes.TickerRoute route = routes.get( reqId );
+
+        if( route == null )
+        {
+            return;
+        }
+
+        Controller controller = route.controller;
+        String symbol = route.symbol;
+        TwsRequest request = route.request;
+
+        //
+        // The date field is overloaded with the 'finish' message
+        //
+        if( date.indexOf("finished") == -1 )
+        {
+            Long startDate = convertDateTwsStringLongToLong( date );
+
+            //
+            // A resubmitted request starts over; skip the bars
+            // the controller already has
+            //
+            if( request != null )
+            {
+                if( startDate <= request.lastBarTime )
+                {
+                    return;
+                }
+
+                request.lastBarTime = startDate;
+            }
+
+            controller.callbackHistoricalData( symbol,
+                                               startDate,
+                                               new Double( open ),
+                                               new Double( high ),
+                                               new Double( low ),
+                                               new Double( close ),
+                                               new Integer( volume ),
+                                               new Integer( count ),
+                                               new Double( WAP ),
+                                               hasGaps );
+        }
+        else
+        {
+            finishHistoricalData( route );
+
+            controller.callbackHistoricalDataFinished( symbol );
+        }
+
+    }
+
+    public void scannerParameters( String xml ) { notImplemented(); }
+    public void scannerData( int reqId, int rank, ContractDetails contractDetails, String distance,
+                             String benchmark, String projection, String legsStr ) { notImplemented(); }
+    public void scannerDataEnd( int reqId ) { notImplemented(); }
+    public void realtimeBar( int reqId, long time, double open, double high, double low, double close, long volume, double wap, int count ) { notImplemented(); }
+    public void currentTime( long time ) { notImplemented(); }
+    public void fundamentalData( int reqId, String data ) { notImplemented(); }
+    public void deltaNeutralValidation( int reqId, UnderComp underComp ) { notImplemented(); }
+    public void tickSnapshotEnd( int reqId ) { notImplemented(); }
+}
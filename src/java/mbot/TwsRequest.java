@@ -0,0 +1,99 @@
+package mbot;
+
+//
+// What was asked of TWS for one ticker id, kept with its route (see
+// TickerRoutes) so the request can be sent again if the connection
+// drops and comes back (see TwsConnection).
+//
+public class TwsRequest
+{
+
+    //
+    // Request types
+    //
+    public static final int REQUEST_MKT_DATA = 0;
+    public static final int REQUEST_HISTORICAL_DATA = 1;
+
+    public static final long NO_BAR = Long.MIN_VALUE;
+
+    public final int type;
+
+    //
+    // Market data
+    //
+    public final String genericTicks;
+
+    //
+    // Historical data
+    //
+    public final Long endDateTime;
+    public final String durationStr;
+    public final String barSizeSetting;
+    public final String whatToShow;
+
+    //
+    // Start time of the last historical bar handed to the controller.
+    // A request retried after a reconnect skips bars up to here, so the
+    // controller carries on where it left off rather than seeing bars
+    // twice. Written on the reader thread.
+    //
+    volatile long lastBarTime = NO_BAR;
+
+    //
+    // Which recovery of the connection the request was last sent in,
+    // so a replay doesn't send it again. Guarded by the connection.
+    //
+    int generation;
+
+    public TwsRequest( String genericTicks )
+    {
+        this.type = REQUEST_MKT_DATA;
+        this.genericTicks = genericTicks;
+        this.endDateTime = null;
+        this.durationStr = null;
+        this.barSizeSetting = null;
+        this.whatToShow = null;
+    }
+
+    public TwsRequest( Long endDateTime,
+                       String durationStr,
+                       String barSizeSetting,
+                       String whatToShow )
+    {
+        this.type = REQUEST_HISTORICAL_DATA;
+        this.genericTicks = null;
+        this.endDateTime = endDateTime;
+        this.durationStr = durationStr;
+        this.barSizeSetting = barSizeSetting;
+        this.whatToShow = whatToShow;
+    }
+
+    //
+    // Whether this asks TWS for the same data as another request
+    //
+    public boolean isSameRequest( TwsRequest other )
+    {
+        return type == other.type &&
+            equal( genericTicks, other.genericTicks ) &&
+            equal( endDateTime, other.endDateTime ) &&
+            equal( durationStr, other.durationStr ) &&
+            equal( barSizeSetting, other.barSizeSetting ) &&
+            equal( whatToShow, other.whatToShow );
+    }
+
+    private static boolean equal( Object a, Object b )
+    {
+        return (a == null) ? (b == null) : a.equals( b );
+    }
+
+    public String toString()
+    {
+        if( type == REQUEST_MKT_DATA )
+        {
+            return "mkt data";
+        }
+
+        return "historical " + durationStr + " of " + barSizeSetting + " " + whatToShow + " to " + endDateTime;
+    }
+
+}
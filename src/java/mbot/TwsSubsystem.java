@@ -1,52 +1,65 @@
 package mbot;
 
-// IB imports
-import com.ib.client.*;
-import samples.base.StkContract;
-
 // Java imports
-import java.util.Hashtable;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.StringTokenizer;
+import java.util.ArrayList;
+import java.util.List;
 
 //
 // This implements a subsystem that interfaces with a TWS instance.
 //
-public class TwsSubsystem implements EWrapper
+// The subsystem keeps a pool of connections to TWS (see TwsConnection),
+// each logged in with its own client id and with its own reader thread.
+// Symbols are spread across the connections by consistent hashing, and
+// every request for a symbol goes out on (and its data comes back on)
+// the same connection. Which connection that is doesn't show through
+// to the controllers; they just ask for a symbol.
+//
+// More connections spread decoding and dispatching ticks across more
+// cores, and a connection stalled on one symbol's data doesn't hold up
+// the symbols on the others.
+//
+// Market data requests don't go straight out; they are budgeted against
+// the account's line limit, which is shared by all the connections, and
+// rotated when there are more than it allows (see MarketDataLines).
+// Controllers asking for the same symbol share one request and one line.
+//
+public class TwsSubsystem
 {
 
     String name = "TwsSubsystem";
 
-    //
-    // The EClientSocket
-    //
-    EClientSocket twsClient;
-
     String serverHostname;
     int serverPort;
 
     //
-    // Which client Id do we start with
+    // Which client Id do we start with. Connection i logs
+    // in as CLIENT_ID_DEFAULT + i.
     //
     final static int CLIENT_ID_DEFAULT = 0;
 
-    Integer nextValidClientId = new Integer(CLIENT_ID_DEFAULT);
-
     //
     // Generic ticks
     final static String ALL_GENERIC_TICK_TAGS = "mdoff,100,101,104,105,106,107,165,221,225,233,236,258";
     private String genericTicks = ALL_GENERIC_TICK_TAGS;
 
     //
-    // This maps the datafeeds to clientIds
+    // The connections, and which symbols go to which
     //
-    Hashtable<Integer, SymbolControllerPair> clientIdToPair;
+    TwsConnection[] connections;
+    ConsistentHash<TwsConnection> symbolMap;
 
     //
-    // SymbolControllerPair is just a container class
+    // Hands ticks on to the controllers. Inline on the reader
+    // threads unless setTickDispatcher() says otherwise.
     //
-    Hashtable<SymbolControllerPair, Integer> pairToClientId;
+    volatile TickDispatcher ticks = new TickDispatcher();
+
+    //
+    // The market data line budget
+    //
+    MarketDataLines lines = new MarketDataLines( this );
+
+    LineRotationJob rotationJob;
 
     //
     // Constructor
@@ -61,715 +74,310 @@ public class TwsSubsystem implements EWrapper
                          int serverPort )
         throws TwsSubsystemException
     {
-        
+        this( serverHostname, serverPort, 1 );
+    }
+
+    public TwsSubsystem( String serverHostname,
+                         int serverPort,
+                         int connectionCount )
+        throws TwsSubsystemException
+    {
+
+        if( connectionCount < 1 )
+        {
+            throw new TwsSubsystemException("Need at least one TWS connection");
+        }
+
         this.serverHostname = serverHostname;
         this.serverPort = serverPort;
 
+        connections = new TwsConnection[ connectionCount ];
+
         //
         // Connect to TWS
         //
         try
         {
-
-            int clientId = getNextValidClientId();
-
-            twsClient = new EClientSocket( this );
-            twsClient.eConnect( serverHostname, serverPort, clientId );
-
-            if( !twsClient.isConnected() )
+            for( int i = 0; i < connectionCount; i++ )
             {
-                //System.out.println( controllerName + ": Connected to TWS server version " +
-                //twsClient.serverVersion() + " at " +
-                //twsClient.TwsConnectionTime());
-                throw new TwsSubsystemException("Failed to connect to TWS server");
+                connections[ i ] = new TwsConnection( serverHostname,
+                                                      serverPort,
+                                                      CLIENT_ID_DEFAULT + i,
+                                                      ticks );
             }
-
-            //
-            // Wait for the nextValidId() to come in. Not critical.
-            //
-            try
-            {
-                synchronized( nextValidClientId )
-                {
-                    nextValidClientId.wait(10000);
-                }
-            }
-            catch( InterruptedException e )
-            {
-                // nothing
-            }
-
-            //
-            // clientIdToPair must be set affter we wait on nextValidClientId
-            //
-            clientIdToPair = new Hashtable<Integer, SymbolControllerPair>();
-            pairToClientId = new Hashtable<SymbolControllerPair, Integer>();
-
         }
         catch( TwsSubsystemException e )
         {
+            //
+            // Don't leave the ones that made it connected
+            //
+            shutdown();
+
             throw e;
         }
-        catch( Exception e )
-        {
-            throw new TwsSubsystemException( e );
-        }
-    }
 
-    //
-    // Convenience
-    //
-    public String getServerInfo()
-    {
-        return "TWS server version " + twsClient.serverVersion() + " at " +
-            serverHostname + "/" + serverPort;
-    }
+        symbolMap = new ConsistentHash<TwsConnection>( connections );
 
-    //
-    // Shutdown the subsystem
-    //
-    public void shutdown()
-    {
-        twsClient.eDisconnect();
     }
 
     //
-    // Tws uses a specially formated date string for input,
-    // and a Long timestamp (stored as String) for output.
-
-    //
-    // Long -> TwsString
-    //
-    // TwsString format is "yyyyMMdd HH:mm:ss"
+    // Convenience
     //
-    private String convertDateLongToTwsString( Long time )
+    public String getServerInfo()
     {
-        Date date = new Date( time );
-        SimpleDateFormat formatter = new SimpleDateFormat("yyyyMMdd HH:mm:ss");
+        String info = connections[ 0 ].getServerInfo();
 
-        return formatter.format( date );
-    }
-
-    //
-    // TwsStringLong -> Long
-    //
-    // TwsStringLong is the seconds since 1/1/1970 GMT, stored as a string.
-    // Must be converted to milliseconds before returning.
-    //
-    private Long convertDateTwsStringLongToLong( String time )
-    {
-        Long timeLong = Long.valueOf( time );
+        if( connections.length > 1 )
+        {
+            info += " (+" + (connections.length - 1) + " more connections)";
+        }
 
-        return timeLong * 1000;
+        return info;
     }
 
-
-
     //
-    // This can be made more sophisticated later,
-    // e.g. to be more efficient with id space.
+    // Hand ticks to the controllers through this dispatcher from now
+    // on. The caller starts and shuts it down.
     //
-    private int getNextValidClientId()
+    public void setTickDispatcher( TickDispatcher ticks )
     {
-        return nextValidClientId++;
-    }
+        ticks.setSharedProducers( connections.length > 1 );
 
-    //
-    // This gets the symbol mapped to a specifc client id
-    //
-    private synchronized SymbolControllerPair lookupPairFromClientId( int clientId )
-    {
-        SymbolControllerPair scp = clientIdToPair.get( clientId );
-        return scp;
-    }
+        this.ticks = ticks;
 
-    //
-    // This gets the symbol mapped to a specifc client id
-    //
-    private synchronized Controller lookupControllerFromClientId( int clientId )
-    {
-        SymbolControllerPair scp = clientIdToPair.get( clientId );
-        return scp.controller;
+        for( TwsConnection connection : connections )
+        {
+            connection.ticks = ticks;
+        }
     }
 
-    //
-    // This gets the controller mapped to a specifc client id
-    //
-    private synchronized String lookupSymbolFromClientId( int clientId )
+    public TickDispatcher getTickDispatcher()
     {
-        SymbolControllerPair scp = clientIdToPair.get( clientId );
-        return scp.symbol;
+        return ticks;
     }
 
     //
-    // This lookup the mapping between controller+symbol and id
+    // The connection a symbol's requests go out on
     //
-    private synchronized int lookupClientIdFromControllerSymbol( Controller controller, String symbol )
+    public TwsConnection getConnection( String symbol )
     {
-        SymbolControllerPair scp = new SymbolControllerPair( symbol, controller );
-        return pairToClientId.get( scp );
+        return symbolMap.get( symbol );
     }
 
-    //
-    // Controls access to valid client Ids. This helps routing
-    // of responses from TWS to the proper controller.
-    //
-    private synchronized int mapClientId( Controller controller, String symbol )
+    public List<TwsConnection> getConnections()
     {
+        List<TwsConnection> list = new ArrayList<TwsConnection>( connections.length );
 
-        int clientId = getNextValidClientId();
-
-        //
-        // Track who is using this clientId
-        //
-        SymbolControllerPair scp = new SymbolControllerPair( symbol, controller );
-
-        clientIdToPair.put( clientId, scp );
-        pairToClientId.put( scp, clientId );
-
-        return clientId;
+        for( TwsConnection connection : connections )
+        {
+            list.add( connection );
+        }
 
+        return list;
     }
 
     //
-    // This clears the mapping between id and controller, so it will stop
-    // getting messages from TWS.
+    // Everything currently requested of TWS, on all connections.
+    // This is what gets sent again when a connection comes back.
     //
-    private synchronized void unmapClientId( Controller controller, String symbol )
+    public List<TickerRoutes.TickerRoute> getActiveRequests()
     {
+        List<TickerRoutes.TickerRoute> requests = new ArrayList<TickerRoutes.TickerRoute>();
 
-        //
-        // Stop tracking this mapping
-        //
-        SymbolControllerPair scp = new SymbolControllerPair( symbol, controller );
-
-        Integer clientId = pairToClientId.remove( scp );
-
-        if( clientId != null )
+        for( TwsConnection connection : connections )
         {
-            clientIdToPair.remove( clientId );
+            requests.addAll( connection.getRoutes().getRoutes() );
         }
 
+        return requests;
     }
 
     //
-    // Interface functions called by jobs
-    //
-
+    // How dropped connections are reopened and their requests
+    // replayed (see TwsConnection)
     //
-    // MktStk data requests
-    //
-    public synchronized void requestMktStkData( Controller controller, String symbol )
-        throws TwsSubsystemException
+    public void setReconnectBackoff( long minMS, long maxMS )
     {
-
-        //
-        // Controller must be recorded
-        //
-        if( controller == null )
+        for( TwsConnection connection : connections )
         {
-            throw new TwsSubsystemException("Controller must not be null");
+            connection.setReconnectBackoff( minMS, maxMS );
         }
-
-        if( symbol  == null )
-        {
-            throw new TwsSubsystemException("Symbol must not be null");
-        }
-
-        try
-        {
-            int clientId = mapClientId( controller, symbol );
-
-            StkContract contract = new StkContract( symbol );
-
-            twsClient.reqMktData( clientId,
-                                  contract,
-                                  genericTicks,
-                                  false );
-        }
-        catch( Exception e )
-        {
-            throw new TwsSubsystemException("Exception requesting mkt stk data: " + e.getMessage());
-        }
-
     }
 
-    public synchronized void cancelMktStkData( Controller controller, String symbol )
-        throws TwsSubsystemException
+    public void setReplayPacing( int batchSize, long batchIntervalMS )
     {
-
-        //
-        // Conroller must be recorded
-        //
-        if( controller == null )
+        for( TwsConnection connection : connections )
         {
-            throw new TwsSubsystemException("Controller must not be null");
-        }
-
-        if( symbol  == null )
-        {
-            throw new TwsSubsystemException("Symbol must not be null");
-        }
-
-        try
-        {
-            int clientId = lookupClientIdFromControllerSymbol( controller, symbol );
-
-            unmapClientId( controller, symbol );
-
-            twsClient.cancelMktData( clientId );
-        }
-        catch( Exception e )
-        {
-            throw new TwsSubsystemException("Exception canceling mkt stk data: " + e.getMessage());
+            connection.setReplayPacing( batchSize, batchIntervalMS );
         }
+    }
 
+    public MarketDataLines getMarketDataLines()
+    {
+        return lines;
     }
 
     //
-    // HistoricalStk requests
+    // Start rotating market data lines (see MarketDataLines), if
+    // there are ever more subscriptions than lines
     //
-    public synchronized void requestHistoricalStkData( Controller controller,
-                                                       String symbol,
-                                                       Long endDateTime,
-                                                       String durationStr,
-                                                       String barSizeSetting,
-                                                       String whatToShow )
-        throws TwsSubsystemException
+    public synchronized void startLineRotation( Scheduler scheduler )
+        throws SchedulerException
     {
-
-        //
-        // FormatDate of 2 means use seconds since 1970
-        //
-        int formatDate = 2;
-        int useRegularTradingHours = 0;
-
-        //
-        // Controller must be recorded
-        //
-        if( controller == null )
+        if( rotationJob == null )
         {
-            throw new TwsSubsystemException("Controller must not be null");
-        }
-
-        if( symbol  == null )
-        {
-            throw new TwsSubsystemException("Symbol must not be null");
-        }
-
-        try
-        {
-            int clientId = mapClientId( controller, symbol );
-
-            StkContract contract = new StkContract( symbol );
-
-            String endDateTimeString = convertDateLongToTwsString( endDateTime );
-
-            twsClient.reqHistoricalData( clientId,
-                                         contract,
-                                         endDateTimeString,
-                                         durationStr,
-                                         barSizeSetting,
-                                         whatToShow,
-                                         useRegularTradingHours, 
-                                         formatDate );
-        }
-        catch( Exception e )
-        {
-            throw new TwsSubsystemException("Exception requesting historical stk data: " + e.getMessage());
+            rotationJob = new LineRotationJob( lines );
         }
 
+        lines.setClock( scheduler.getClock() );
 
+        scheduler.scheduleAtFixedRate( rotationJob,
+                                       MarketDataLines.ROTATION_TICK_MS,
+                                       MarketDataLines.ROTATION_TICK_MS );
     }
 
-    public synchronized void cancelHistoricalStkData( Controller controller, String symbol )
-        throws TwsSubsystemException
+    public synchronized void stopLineRotation( Scheduler scheduler )
+        throws SchedulerException
     {
-
-        //
-        // Conroller must be recorded
-        //
-        if( controller == null )
-        {
-            throw new TwsSubsystemException("Controller must not be null");
-        }
-
-        if( symbol  == null )
+        if( rotationJob != null )
         {
-            throw new TwsSubsystemException("Symbol must not be null");
-        }
-
-        try
-        {
-            int clientId = lookupClientIdFromControllerSymbol( controller, symbol );
-
-            unmapClientId( controller, symbol );
-
-            twsClient.cancelHistoricalData( clientId );
-        }
-        catch( Exception e )
-        {
-            throw new TwsSubsystemException("Exception canceling historical stk data: " + e.getMessage());
+            scheduler.unschedule( rotationJob );
         }
     }
 
-
-
-    //
-    // EClientSocket wrapper functions
-    //
-
-
     //
-    // A no-op for callbacks we don't need
+    // Shutdown the subsystem
     //
-    protected void notImplemented()
+    public void shutdown()
     {
-        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
-        String caller = stack[2].getMethodName();
-
-        if( caller != null )
+        for( TwsConnection connection : connections )
         {
-            System.out.println( name + ": EWrapper callback '" + caller + "' not implemented");
-        }
-        else
-        {
-            System.out.println( name +": Unknown EWrapper callback not implemented");
+            if( connection != null )
+            {
+                connection.shutdown();
+            }
         }
     }
 
     //
-    // AnyWrapper interface definitions
+    // Interface functions called by jobs
     //
 
-    public void connectionClosed()
-    {
-
-        //
-        // Null out the twsClient so no one uses it
-        //
-        twsClient = null;
-
-        //
-        // todo -- notify the parent system of critical error
-        //
-    }
-
-    public void error( Exception ex )
+    //
+    // MktStk data requests. These go through the line budget, so a
+    // request may not go live straight away; higher priorities get
+    // lines first.
+    //
+    public void requestMktStkData( Controller controller, String symbol )
+        throws TwsSubsystemException
     {
-        String msg = EWrapperMsgGenerator.error( ex );
-        System.out.println( msg );
+        requestMktStkData( controller, symbol, MarketDataLines.PRIORITY_DEFAULT );
     }
 
-    public void error( String errorMsg )
+    public void requestMktStkData( Controller controller, String symbol, int priority )
+        throws TwsSubsystemException
     {
-        String msg = EWrapperMsgGenerator.error( errorMsg );
-        System.out.println( msg );
-    }
 
-    public void error( int id, int errorCode, String errorMsg )
-    {
-        String msg = EWrapperMsgGenerator.error( id, errorCode, errorMsg );
-        System.out.println( msg );
-    }
+        checkRequest( controller, symbol );
 
-    //
-    // EWrapper interface definitions
-    //
+        lines.add( controller, symbol, priority );
 
-    //
-    // All of these call the appropriate controller callback to indicate the data upwards
-    //
+    }
 
-    //
-    // This seems to return just trailing price data, e.g. 13/26/52 week high/low
-    //
-    // TickTypes can be:
-    //  52WeekLow
-    //  52WeekHigh
-    //  26WeekLow
-    //  26WeekHigh
-    //  13WeekLow
-    //  13WeekHigh
-    //
-    public void tickPrice( int tickerId, int field, double price, int canAutoExecute )
+    public void cancelMktStkData( Controller controller, String symbol )
+        throws TwsSubsystemException
     {
-        Controller controller = lookupControllerFromClientId( tickerId );
-        String symbol = lookupSymbolFromClientId( tickerId );
 
-        String f = TickType.getField( field );
-        Double p = new Double( price );
-        boolean cae = (canAutoExecute == 0) ? false : true;
+        checkRequest( controller, symbol );
 
-        switch( field )
-        {
-        case TickType.LOW_13_WEEK:
-        case TickType.HIGH_13_WEEK:
-        case TickType.LOW_26_WEEK:
-        case TickType.HIGH_26_WEEK:
-        case TickType.LOW_52_WEEK:
-        case TickType.HIGH_52_WEEK:
-            controller.callbackMiscellaneous( symbol, f, p, cae );
-            break;
-        default:
-            controller.tickPriceCallback( symbol, f, p, cae );
-        }
+        lines.remove( controller, symbol );
 
     }
 
     //
-    // This returns options volume data, apparently after each trade
-    //
-    // TickTypes can be:
-    //  OptionPutVolume
-    //  OptionCallVolume
-    //  AvgVolume -- sum of put/calls, unclear how long this is averaged over
-    //  OptionPutOpenInterest
-    //  OptionCallOpenInterest
+    // Open and close an actual line, and change who its ticks go
+    // to. Called by MarketDataLines.
     //
-    public void tickSize( int tickerId, int field, int size )
+    void openMktDataLine( String symbol, Controller[] listeners )
+        throws Exception
     {
-
-        Controller controller = lookupControllerFromClientId( tickerId );
-        String symbol = lookupSymbolFromClientId( tickerId );
-
-        String f = TickType.getField( field );
-        Integer s = new Integer( size );
-
-        switch( field )
-        {
-        case TickType.OPTION_CALL_VOLUME:
-        case TickType.OPTION_PUT_VOLUME:
-            controller.callbackOptionVolume( symbol, f, s );
-            break;
-        case TickType.OPTION_CALL_OPEN_INTEREST:
-        case TickType.OPTION_PUT_OPEN_INTEREST:
-            controller.callbackOptionOpenInterest( symbol, f, s );
-            break;
-        case TickType.AVG_VOLUME:
-            controller.callbackMiscellaneous( symbol, f, s );
-            break;
-        default:
-            controller.tickSizeCallback( symbol, f, s );
-        }
+        getConnection( symbol ).requestMktData( symbol, listeners, genericTicks );
     }
 
-    public void tickOptionComputation( int tickerId, int field, double impliedVol,
-                                       double delta, double modelPrice, double pvDividend ) { notImplemented(); }
-
-    //
-    // Returns 'generic' data specified when the feed is request (we request everything)
-    //
-    // TickTypes can be:
-    //  shortable
-    //  OptionImpliedVolatility
-    //  OptionHistoricalVolatility
-    //
-    // Shortable maps to the following:
-    //  3.0 -- There are at least 1000 shares available for a short sale
-    //  2.0 -- This contract will be available for short sale if shares can be located
-    //  1.0 -- Not available for short sale
-    public void tickGeneric( int tickerId, int tickType, double value )
+    void setMktDataListeners( String symbol, Controller[] listeners )
+        throws Exception
     {
-        Controller controller = lookupControllerFromClientId( tickerId );
-        String symbol = lookupSymbolFromClientId( tickerId );
-
-        String f = TickType.getField( tickType );
-        Double v = new Double( value );
+        getConnection( symbol ).setMktDataListeners( symbol, listeners );
+    }
 
-        switch( tickType )
-        {
-        case TickType.OPTION_HISTORICAL_VOL:
-            controller.callbackOptionHistoricalVolatility( symbol, f, v );
-            break;
-        case TickType.OPTION_IMPLIED_VOL:
-            controller.callbackOptionImpliedVolatility( symbol, f, v );
-            break;
-        case TickType.SHORTABLE:
-            controller.callbackShortable( symbol, f, v );
-            break;
-        default:
-            controller.tickGenericCallback( symbol, f, v );
-        }
+    void closeMktDataLine( String symbol )
+        throws Exception
+    {
+        getConnection( symbol ).cancelMktData( symbol );
     }
 
     //
-    // Returns a string with useful trade information
-    //
-    // TickTypes can be:
-    //  RTVolume
-    //
-    // RTVolume has format:
-    //  lastPrice;lastSize;lastTimeMS;totalVolume;VWAP;isSingleTrade
+    // HistoricalStk requests
     //
-    public void tickString( int tickerId, int tickType, String value )
+    public void requestHistoricalStkData( Controller controller,
+                                          String symbol,
+                                          Long endDateTime,
+                                          String durationStr,
+                                          String barSizeSetting,
+                                          String whatToShow )
+        throws TwsSubsystemException
     {
-        Controller controller = lookupControllerFromClientId( tickerId );
-        String symbol = lookupSymbolFromClientId( tickerId );
-
-        String f = TickType.getField( tickType );
 
-        StringTokenizer st = new StringTokenizer( value, ";" );
+        checkRequest( controller, symbol );
 
-        Double lastPrice = Double.valueOf( st.nextToken() );
-        Integer lastSize = Integer.valueOf( st.nextToken() );
-        Long lastTimeMS = Long.valueOf( st.nextToken() );
-        Integer totalVolume = Integer.valueOf( st.nextToken() );
-        Double vwap = Double.valueOf( st.nextToken() );
-        boolean isSingleTrade = (st.nextToken() == "true") ? true : false;
-
-        switch( tickType )
+        try
         {
-        case TickType.RT_VOLUME:
-            controller.callbackRTVolume( symbol, lastPrice, lastSize, 
-                                         lastTimeMS, totalVolume, vwap, isSingleTrade );
-            break;
-        default:
-            controller.tickStringCallback( symbol, f, value );
+            getConnection( symbol ).requestHistoricalData( controller,
+                                                           symbol,
+                                                           endDateTime,
+                                                           durationStr,
+                                                           barSizeSetting,
+                                                           whatToShow );
         }
-    }
-
-    public void tickEFP( int tickerId, int tickType, double basisPoints,
-                         String formattedBasisPoints, double impliedFuture, int holdDays,
-                         String futureExpiry, double dividendImpact, double dividendsToExpiry ) { notImplemented(); }
-    public void orderStatus( int orderId, String status, int filled, int remaining,
-                             double avgFillPrice, int permId, int parentId, double lastFillPrice,
-                             int clientId, String whyHeld ) { notImplemented(); }
-    public void openOrder( int orderId, Contract contract, Order order, OrderState orderState ) { notImplemented(); }
-    public void openOrderEnd() { notImplemented(); }
-    public void updateAccountValue( String key, String value, String currency, String accountName ) { notImplemented(); }
-    public void updatePortfolio( Contract contract, int position, double marketPrice, double marketValue,
-                                 double averageCost, double unrealizedPNL, double realizedPNL, String accountName ) { notImplemented(); }
-    public void updateAccountTime( String timeStamp ) { notImplemented(); }
-    public void accountDownloadEnd( String accountName ) { notImplemented(); }
-
-    //
-    // Informs us (the client) what the next valid client id is
-    //
-    public synchronized void nextValidId( int clientId )
-    {
-        //
-        // Always increase the clientId. This is arguably a bit wasteful
-        // with the Id space, but shouldn't generally be a problem.
-        //
-        nextValidClientId = Math.max( clientId, nextValidClientId );
-
-        //
-        // Notfiy a thread (i.e. the constructor) waiting for a valid Id.
-        // This is only an issue before subcontrollers are allocated Id.
-        //
-        if( clientIdToPair == null )
+        catch( Exception e )
         {
-            synchronized( nextValidClientId )
-            {
-                nextValidClientId.notify();
-            }
+            throw new TwsSubsystemException("Exception requesting historical stk data: " + e.getMessage());
         }
+
     }
 
-    public void contractDetails( int reqId, ContractDetails contractDetails ) { notImplemented(); }
-    public void bondContractDetails( int reqId, ContractDetails contractDetails ) { notImplemented(); }
-    public void contractDetailsEnd( int reqId ) { notImplemented(); }
-    public void execDetails( int reqId, Contract contract, Execution execution ) { notImplemented(); }
-    public void execDetailsEnd( int reqId ) { notImplemented(); }
-    public void updateMktDepth( int tickerId, int position, int operation, int side, double price, int size ) { notImplemented(); }
-    public void updateMktDepthL2( int tickerId, int position, String marketMaker, int operation,
-                                  int side, double price, int size ) { notImplemented(); }
-    public void updateNewsBulletin( int msgId, int msgType, String message, String origExchange ) { notImplemented(); }
-    public void managedAccounts( String accountsList ) { notImplemented(); }
-    public void receiveFA( int faDataType, String xml ) { notImplemented(); }
-
-    //
-    // Receiving data from a historical data request. This represents a single bar of data.
-    //
-    public void historicalData( int reqId,
-                                String date,
-                                double open,
-                                double high,
-                                double low,
-                                double close,
-                                int volume,
-                                int count,
-                                double WAP,
-                                boolean hasGaps )
+    public void cancelHistoricalStkData( Controller controller, String symbol )
+        throws TwsSubsystemException
     {
 
-        Controller controller = lookupControllerFromClientId( reqId );
-        String symbol = lookupSymbolFromClientId( reqId );
+        checkRequest( controller, symbol );
 
-        //
-        // The date field is overloaded with the 'finish' message
-        //
-        if( date.indexOf("finished") == -1 )
+        try
         {
-            Long startDate = convertDateTwsStringLongToLong( date );
-
-            controller.callbackHistoricalData( symbol,
-                                               startDate,
-                                               new Double( open ),
-                                               new Double( high ),
-                                               new Double( low ),
-                                               new Double( close ),
-                                               new Integer( volume ),
-                                               new Integer( count ),
-                                               new Double( WAP ),
-                                               hasGaps );
+            getConnection( symbol ).cancelHistoricalData( controller, symbol );
         }
-        else
+        catch( Exception e )
         {
-            controller.callbackHistoricalDataFinished( symbol );
+            throw new TwsSubsystemException("Exception canceling historical stk data: " + e.getMessage());
         }
-
     }
 
-    public void scannerParameters( String xml ) { notImplemented(); }
-    public void scannerData( int reqId, int rank, ContractDetails contractDetails, String distance,
-                             String benchmark, String projection, String legsStr ) { notImplemented(); }
-    public void scannerDataEnd( int reqId ) { notImplemented(); }
-    public void realtimeBar( int reqId, long time, double open, double high, double low, double close, long volume, double wap, int count ) { notImplemented(); }
-    public void currentTime( long time ) { notImplemented(); }
-    public void fundamentalData( int reqId, String data ) { notImplemented(); }
-    public void deltaNeutralValidation( int reqId, UnderComp underComp ) { notImplemented(); }
-    public void tickSnapshotEnd( int reqId ) { notImplemented(); }
-
-    private class SymbolControllerPair implements Comparable<SymbolControllerPair>
+    //
+    // Controller must be recorded, and there must be a symbol
+    // to pick the connection by
+    //
+    private void checkRequest( Controller controller, String symbol )
+        throws TwsSubsystemException
     {
-
-        public String symbol;
-        public Controller controller;
-
-        public SymbolControllerPair( String symbol, Controller controller )
+        if( controller == null )
         {
-            this.symbol = symbol;
-            this.controller = controller;
+            throw new TwsSubsystemException("Controller must not be null");
         }
 
-        //
-        // Ordering doesn't matter -- we'll just alphabetize on symbol
-        //
-        public int compareTo( SymbolControllerPair scp )
+        if( symbol  == null )
         {
-
-            //
-            // if cont == cont, just test the string
-            //
-            if( this.controller == scp.controller )
-            {
-                return this.symbol.compareTo( scp.symbol );
-            }
-
-            //
-            // we don't want different conts but same strs to return 0
-            //
-            if( this.symbol != scp.symbol )
-            {
-                return this.symbol.compareTo( scp.symbol );
-            }
-
-            //
-            // return -1 to break the tie
-            //
-            return -1;
+            throw new TwsSubsystemException("Symbol must not be null");
         }
     }
+
 }
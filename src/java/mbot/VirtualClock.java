@@ -0,0 +1,54 @@
+package mbot;
+
+//
+// A discrete-event clock. Time only moves when the scheduler has
+// nothing left to do before its next due job, and then it jumps
+// straight there, so jobs start exactly on time no matter how far
+// apart they are. Jobs themselves still run in real time.
+//
+// Anything that works off Scheduler.currentTime() (pacing rules,
+// repeating jobs, lateness metrics) sees the virtual time.
+//
+public class VirtualClock implements SchedulerClock
+{
+
+    volatile long now;
+
+    //
+    // Constructor. Starts at the given time, e.g. the start of the
+    // trading day being replayed.
+    //
+    public VirtualClock( long startTime )
+    {
+        now = startTime;
+    }
+
+    public long currentTime()
+    {
+        return now;
+    }
+
+    public long currentTimeNanos()
+    {
+        return now * NANOS_PER_MS;
+    }
+
+    //
+    // Time never goes backwards
+    //
+    public synchronized boolean advanceTo( long time )
+    {
+        if( time > now )
+        {
+            now = time;
+        }
+
+        return true;
+    }
+
+    public void advanceBy( long delta )
+    {
+        advanceTo( now + delta );
+    }
+
+}
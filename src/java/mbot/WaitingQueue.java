@@ -0,0 +1,49 @@
+package mbot;
+
+//
+// The scheduler keeps jobs that aren't due yet in a waiting queue.
+// Implementations only need to hand back due jobs in roughly start
+// time order and say when the next one might come due. Each queue
+// belongs to one evaluator thread (one per shard) and is only ever
+// touched from it; other threads reach it through the scheduler's
+// intake queue, so implementations need no locking of their own.
+//
+public interface WaitingQueue
+{
+
+    //
+    // Returned by nextWakeupTime() when nothing is waiting
+    //
+    public static final long NO_WAKEUP = -1;
+
+    //
+    // Add a job, keyed on its startTime
+    //
+    public void add( Job job );
+
+    //
+    // Remove a job that hasn't come due yet.
+    // Returns false if the job wasn't in the queue.
+    //
+    public boolean remove( Job job );
+
+    //
+    // Remove and return a job whose startTime is at or before now,
+    // or null if nothing is due
+    //
+    public Job pollDue( long now );
+
+    //
+    // The earliest time in MS the evaluator should look at the queue
+    // again. This may be earlier than any job's start time (the
+    // queue can use the wakeup for its own housekeeping), but must
+    // never be later. Returns NO_WAKEUP if the queue is empty.
+    //
+    public long nextWakeupTime();
+
+    //
+    // Number of jobs waiting
+    //
+    public int size();
+
+}